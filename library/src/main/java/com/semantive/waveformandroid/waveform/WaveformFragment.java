@@ -1,7 +1,5 @@
 package com.semantive.waveformandroid.waveform;
 
-import android.app.ProgressDialog;
-import android.content.DialogInterface;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.os.Bundle;
@@ -13,6 +11,7 @@ import android.text.TextWatcher;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.TextureView;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
@@ -21,6 +20,8 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 import com.semantive.waveformandroid.R;
 import com.semantive.waveformandroid.waveform.soundfile.CheapSoundFile;
+import com.semantive.waveformandroid.waveform.soundfile.PeakCache;
+import com.semantive.waveformandroid.waveform.view.FrameGainsBuffer;
 import com.semantive.waveformandroid.waveform.view.MarkerView;
 import com.semantive.waveformandroid.waveform.view.WaveformView;
 
@@ -55,8 +56,8 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
     public static final String TAG = "WaveformFragment";
 
     protected long mLoadingLastUpdateTime;
-    protected boolean mLoadingKeepGoing;
-    protected ProgressDialog mProgressDialog;
+    protected long mLoadingLastDrawTime;
+    protected volatile boolean mLoadingKeepGoing;
     protected CheapSoundFile mSoundFile;
     protected File mFile;
     protected String mFilename;
@@ -132,6 +133,7 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
 
     @Override
     public void onDestroy() {
+        mLoadingKeepGoing = false;
         if (mPlayer != null && mPlayer.isPlaying()) {
             mPlayer.stop();
             mPlayer.release();
@@ -203,17 +205,23 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
 
     public void waveformZoomIn() {
         mWaveformView.zoomIn();
-        mStartPos = mWaveformView.getStart();
-        mEndPos = mWaveformView.getEnd();
-        mMaxPos = mWaveformView.maxPos();
-        mOffset = mWaveformView.getOffset();
-        mOffsetGoal = mOffset;
-        enableZoomButtons();
-        updateDisplay();
+        waveformZoomChanged();
     }
 
     public void waveformZoomOut() {
         mWaveformView.zoomOut();
+        waveformZoomChanged();
+    }
+
+    public void waveformZoom(float zoomFactor, float focusX) {
+        // A pinch ends any drag its first finger started
+        mTouchDragging = false;
+        mFlingVelocity = 0;
+        mWaveformView.setZoomFactor(zoomFactor, focusX);
+        waveformZoomChanged();
+    }
+
+    protected void waveformZoomChanged() {
         mStartPos = mWaveformView.getStart();
         mEndPos = mWaveformView.getEnd();
         mMaxPos = mWaveformView.maxPos();
@@ -369,6 +377,14 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
         mWaveformView = (WaveformView) view.findViewById(R.id.waveform);
         mWaveformView.setListener(this);
         mWaveformView.setSegments(getSegments());
+        if (useRenderThread()) {
+            // The waveform is drawn into a TextureView just under it
+            ViewGroup parent = (ViewGroup) mWaveformView.getParent();
+            TextureView renderTarget = new TextureView(getActivity());
+            parent.addView(renderTarget, parent.indexOfChild(mWaveformView),
+                    new ViewGroup.LayoutParams(mWaveformView.getLayoutParams()));
+            mWaveformView.setRenderTarget(renderTarget);
+        }
 
         mInfo = (TextView) view.findViewById(R.id.info);
         mInfo.setText(mCaption);
@@ -403,24 +419,41 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
     protected void loadFromFile() {
         mFile = new File(mFilename);
         mLoadingLastUpdateTime = System.currentTimeMillis();
+        mLoadingLastDrawTime = 0;
         mLoadingKeepGoing = true;
-        mProgressDialog = new ProgressDialog(getActivity());
-        mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-        mProgressDialog.setTitle(R.string.progress_dialog_loading);
-        mProgressDialog.setCancelable(true);
-        mProgressDialog.setOnCancelListener((DialogInterface dialog) -> mLoadingKeepGoing = false);
-        mProgressDialog.show();
+
+        // The waveform is drawn while the file loads, and the progress
+        // goes where the caption will be
+        final String loadingText = getResources().getString(R.string.progress_dialog_loading);
+        mInfo.setText(loadingText);
 
         final CheapSoundFile.ProgressListener listener = (double fractionComplete) -> {
             long now = System.currentTimeMillis();
             if (now - mLoadingLastUpdateTime > 100) {
-                mProgressDialog.setProgress(
-                        (int) (mProgressDialog.getMax() * fractionComplete));
+                final int percent = (int) (100 * fractionComplete);
+                mHandler.post(() -> mInfo.setText(loadingText + " " + percent + "%"));
                 mLoadingLastUpdateTime = now;
             }
             return mLoadingKeepGoing;
         };
 
+        final WaveformView waveformView = mWaveformView;
+        final FrameGainsBuffer loadingGains = new FrameGainsBuffer();
+        waveformView.setLoadingGains(loadingGains);
+        final CheapSoundFile.FrameListener frameListener =
+                (int firstFrame, int[] gains, int offset, int count) -> {
+            loadingGains.append(gains, offset, count);
+
+            // The first frames are drawn right away, later ones at
+            // most once a display frame
+            long now = System.currentTimeMillis();
+            if (firstFrame == 0 || now - mLoadingLastDrawTime > 16) {
+                waveformView.postInvalidate();
+                mLoadingLastDrawTime = now;
+            }
+            return mLoadingKeepGoing;
+        };
+
         // Create the MediaPlayer in a background thread
         new Thread() {
             public void run() {
@@ -436,24 +469,75 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
             }
         }.start();
 
-        // Load the sound file in a background thread
+        // Load the sound file in a background thread, from the peak
+        // cache if it has the file
+        final PeakCache peakCache = getPeakCache();
         new Thread() {
             public void run() {
-                try {
-                    mSoundFile = CheapSoundFile.create(mFile.getAbsolutePath(), listener);
-                } catch (final Exception e) {
-                    Log.e(TAG, "Error while loading sound file", e);
-                    mProgressDialog.dismiss();
-                    mInfo.setText(e.toString());
-                    return;
+                CheapSoundFile soundFile = null;
+                if (peakCache != null) {
+                    try {
+                        soundFile = peakCache.get(mFile);
+                    } catch (final java.io.IOException e) {
+                        Log.w(TAG, "Error while reading the peak cache", e);
+                    }
+                }
+                boolean cached = (soundFile != null);
+                if (!cached) {
+                    try {
+                        soundFile = CheapSoundFile.create(mFile.getAbsolutePath(), listener, frameListener);
+                    } catch (final Exception e) {
+                        Log.e(TAG, "Error while loading sound file", e);
+                        mHandler.post(() -> mInfo.setText(e.toString()));
+                        return;
+                    }
                 }
+                mSoundFile = soundFile;
                 if (mLoadingKeepGoing) {
                     mHandler.post(() -> finishOpeningSoundFile());
+
+                    // Only files that were read to the end are cached
+                    if (!cached && peakCache != null && soundFile != null) {
+                        try {
+                            peakCache.put(mFile, soundFile);
+                        } catch (final java.io.IOException e) {
+                            Log.w(TAG, "Error while writing the peak cache", e);
+                        }
+                    }
                 }
             }
         }.start();
     }
 
+    /**
+     * Returns the cache that the frames of opened files are kept in, or
+     * null to read every file in full.
+     */
+    protected PeakCache getPeakCache() {
+        long maxBytes = getPeakCacheBytes();
+        if (maxBytes <= 0) {
+            return null;
+        }
+        return new PeakCache(new File(getActivity().getCacheDir(), "peaks"), maxBytes);
+    }
+
+    /**
+     * Returns how much disk space the peak cache may take up; 0 turns it
+     * off.
+     */
+    protected long getPeakCacheBytes() {
+        return 32 * 1024 * 1024;
+    }
+
+    /**
+     * Returns whether the waveform is drawn on a render thread of its
+     * own, which keeps the markers and text fields responsive on long
+     * files and big screens, rather than on the UI thread.
+     */
+    protected boolean useRenderThread() {
+        return false;
+    }
+
     protected void finishOpeningSoundFile() {
         mWaveformView.setSoundFile(mSoundFile);
         mWaveformView.recomputeHeights(mDensity);
@@ -474,7 +558,6 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
                 mSoundFile.getAvgBitrateKbps() + " kbps, " +
                 formatTime(mMaxPos) + " " + getResources().getString(R.string.time_seconds);
         mInfo.setText(mCaption);
-        mProgressDialog.dismiss();
         updateDisplay();
     }
 
@@ -701,7 +784,7 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
             return;
         }
 
-        if (mPlayer == null) {
+        if (mPlayer == null || !mWaveformView.isInitialized()) {
             // Not initialized yet
             return;
         }
@@ -720,8 +803,8 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
 
             int startFrame = mWaveformView.secondsToFrames(mPlayStartMsec * 0.001);
             int endFrame = mWaveformView.secondsToFrames(mPlayEndMsec * 0.001);
-            int startByte = mSoundFile.getSeekableFrameOffset(startFrame);
-            int endByte = mSoundFile.getSeekableFrameOffset(endFrame);
+            long startByte = mSoundFile.getSeekableFrameOffset(startFrame);
+            long endByte = mSoundFile.getSeekableFrameOffset(endFrame);
             if (startByte >= 0 && endByte >= 0) {
                 try {
                     mPlayer.reset();
@@ -770,7 +853,7 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
                 if (newPos < mPlayStartMsec)
                     newPos = mPlayStartMsec;
                 mPlayer.seekTo(newPos);
-            } else {
+            } else if (mWaveformView.isInitialized()) {
                 mStartPos = trap(mStartPos - mWaveformView.secondsToPixels(getStep()));
                 updateDisplay();
                 mStartMarker.requestFocus();
@@ -786,7 +869,7 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
                 if (newPos > mPlayEndMsec)
                     newPos = mPlayEndMsec;
                 mPlayer.seekTo(newPos);
-            } else {
+            } else if (mWaveformView.isInitialized()) {
                 mStartPos = trap(mStartPos + mWaveformView.secondsToPixels(getStep()));
                 updateDisplay();
                 mStartMarker.requestFocus();
@@ -822,6 +905,9 @@ public abstract class WaveformFragment extends Fragment implements MarkerView.Ma
         }
 
         public void afterTextChanged(Editable s) {
+            if (!mWaveformView.isInitialized()) {
+                return;
+            }
             if (mStartText.hasFocus()) {
                 try {
                     mStartPos = mWaveformView.secondsToPixels(Double.parseDouble(mStartText.getText().toString()));
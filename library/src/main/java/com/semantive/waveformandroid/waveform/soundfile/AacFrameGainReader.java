@@ -0,0 +1,137 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the global gain of raw AAC frames stored in an MP4 file.
+ *
+ * Frames are read through a window onto the file that is refilled with
+ * one large positional read once a frame falls outside of it, and the
+ * fields are pulled out with a reusable BitReader, so after the first
+ * call no memory is allocated per frame.  Each thread needs its own
+ * reader; the channel itself can be shared.
+ */
+class AacFrameGainReader {
+    /**
+     * Returned for frames with an element we can't parse; such frames
+     * take the gain of the frame before.
+     */
+    public static final int GAIN_OF_PREVIOUS_FRAME = -1;
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    // Most bytes at the start of a frame that readGain() looks at: the
+    // gain of a short window frame can follow 25 bits of header and a
+    // mask of up to 15 bits for each of 8 window groups
+    static final int MAX_GAIN_BYTES = 1 + (25 + 15 * 8 + 7) / 8;
+
+    private final FileChannel mChannel;
+    private final byte[] mWindow = new byte[WINDOW_SIZE];
+    private final ByteBuffer mWrapper = ByteBuffer.wrap(mWindow);
+    private final BitReader mBits = new BitReader();
+    private long mWindowStart = -1;
+    private int mWindowLength;
+
+    public AacFrameGainReader(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Returns the gain of the frame of the given length at the given
+     * offset, 0 for frames that are too short or that have no offset
+     * (a negative one), or GAIN_OF_PREVIOUS_FRAME.
+     */
+    public int readGain(long offset, int frameLen) throws IOException {
+        if (offset < 0 || frameLen < 4) {
+            return 0;
+        }
+
+        // The gain never needs more than MAX_GAIN_BYTES bytes; these may
+        // run into the next frame, which is fine.
+        if (offset < mWindowStart ||
+            offset + MAX_GAIN_BYTES > mWindowStart + mWindowLength) {
+            fillWindow(offset);
+        }
+
+        return readGain(mWindow, (int) (offset - mWindowStart));
+    }
+
+    /**
+     * Returns the gain of the frame that starts at data[frameOffset], or
+     * GAIN_OF_PREVIOUS_FRAME, for callers that already have the frame in
+     * memory.  data must hold MAX_GAIN_BYTES bytes from there on.
+     */
+    public int readGain(byte[] data, int frameOffset) {
+        BitReader bits = mBits;
+        int frameBit = frameOffset * 8;
+        bits.reset(data, 0);
+        bits.seek(frameBit);
+
+        int idSynEle = bits.read(3);
+        switch (idSynEle) {
+        case 0:  // ID_SCE: mono
+            bits.seek(frameBit + 7);
+            return bits.read(8);
+        case 1:  // ID_CPE: stereo
+            bits.seek(frameBit + 9);
+            int windowSequence = bits.read(2);
+            bits.skip(1);  // window shape
+
+            int maxSfb;
+            int scaleFactorGrouping;
+            int maskPresent;
+            int startBit;
+
+            if (windowSequence == 2) {
+                maxSfb = bits.read(4);
+                scaleFactorGrouping = bits.read(7);
+                maskPresent = bits.read(2);
+                startBit = 25;
+            } else {
+                maxSfb = bits.read(6);
+                scaleFactorGrouping = -1;
+                bits.skip(1);
+                maskPresent = bits.read(2);
+                startBit = 21;
+            }
+
+            if (maskPresent == 1) {
+                int sfgZeroBitCount = 0;
+                for (int b = 0; b < 7; b++) {
+                    if ((scaleFactorGrouping & (1 << b)) == 0) {
+                        sfgZeroBitCount++;
+                    }
+                }
+
+                int numWindowGroups = 1 + sfgZeroBitCount;
+                startBit += maxSfb * numWindowGroups;
+            }
+
+            bits.seek(frameBit + startBit);
+            return bits.read(8);
+
+        default:
+            return GAIN_OF_PREVIOUS_FRAME;
+        }
+    }
+
+    private void fillWindow(long offset) throws IOException {
+        ByteBuffer wrapper = mWrapper;
+        wrapper.clear();
+        while (wrapper.hasRemaining()) {
+            if (mChannel.read(wrapper, offset + wrapper.position()) < 0) {
+                break;
+            }
+        }
+        mWindowStart = offset;
+        mWindowLength = wrapper.position();
+
+        // Past the end of the file, frames read as zeros
+        if (mWindowLength < MAX_GAIN_BYTES) {
+            Arrays.fill(mWindow, mWindowLength, MAX_GAIN_BYTES, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+/**
+ * Reads big-endian bit fields out of a byte array, most significant bit
+ * first.  A single instance is meant to be pointed at one frame after
+ * another with reset(), so parsing frames doesn't allocate anything.
+ *
+ * There is no bounds checking beyond the array itself; callers make sure
+ * the fields they read are in the data.
+ */
+class BitReader {
+    private byte[] mData;
+    private int mStart;     // In bits, where reset() pointed us
+    private int mPosition;  // In bits, from the start of mData
+
+    /**
+     * Starts reading at the given byte of data.
+     */
+    public void reset(byte[] data, int byteOffset) {
+        mData = data;
+        mStart = byteOffset * 8;
+        mPosition = mStart;
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public void seek(int bitPosition) {
+        mPosition = bitPosition;
+    }
+
+    public void skip(int numBits) {
+        mPosition += numBits;
+    }
+
+    /**
+     * Returns the single bit the given number of bits after the byte
+     * reset() started at, for formats whose fields are scattered over
+     * the frame.  Doesn't move the read position.
+     */
+    public int bitAt(int bit) {
+        int position = mStart + bit;
+        return (mData[position >> 3] >> (7 - (position & 7))) & 1;
+    }
+
+    /**
+     * Reads the next numBits bits, at most 32, as an unsigned value.
+     */
+    public int read(int numBits) {
+        int value = 0;
+        while (numBits > 0) {
+            int available = 8 - (mPosition & 7);
+            int take = (numBits < available) ? numBits : available;
+            int bits = (mData[mPosition >> 3] >> (available - take)) &
+                ((1 << take) - 1);
+            value = (value << take) | bits;
+            numBits -= take;
+            mPosition += take;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,96 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+/**
+ * A sound file whose frames came from a PeakCache instead of being read
+ * from the file itself.  It has everything the waveform needs: the
+ * gains and their envelope, the frame times and, for formats that
+ * support it, the byte offsets to play part of the file from.  It can't
+ * write the file out.
+ */
+class CachedSoundFile extends CheapSoundFile {
+    private String mFiletype;
+    private long mFileSize;
+    private int mSampleRate;
+    private int mSamplesPerFrame;
+    private int mChannels;
+    private int mAvgBitrateKbps;
+    private int mNumFrames;
+    private int[] mFrameGains;
+    private FrameTimeIndex mFrameTimes;
+    private int mEnvelopeChannels;
+    private short[] mFrameEnvelope;
+
+    // Offsets of frames 0 to mNumFrames, where the last one is the end
+    // of the audio, or null if the format can't seek
+    private FrameOffsetIndex mFrameOffsets;
+
+    CachedSoundFile(String filetype, long fileSize, int sampleRate,
+                    int samplesPerFrame, int channels, int avgBitrateKbps,
+                    int[] frameGains, FrameTimeIndex frameTimes,
+                    FrameOffsetIndex frameOffsets,
+                    int envelopeChannels, short[] frameEnvelope) {
+        mFiletype = filetype;
+        mFileSize = fileSize;
+        mSampleRate = sampleRate;
+        mSamplesPerFrame = samplesPerFrame;
+        mChannels = channels;
+        mAvgBitrateKbps = avgBitrateKbps;
+        mNumFrames = frameGains.length;
+        mFrameGains = frameGains;
+        mFrameTimes = frameTimes;
+        mFrameOffsets = frameOffsets;
+        mEnvelopeChannels = envelopeChannels;
+        mFrameEnvelope = frameEnvelope;
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    public int getSamplesPerFrame() {
+        return mSamplesPerFrame;
+    }
+
+    public int[] getFrameGains() {
+        return mFrameGains;
+    }
+
+    public short[] getFrameEnvelope() {
+        return mFrameEnvelope;
+    }
+
+    public int getEnvelopeChannels() {
+        return mEnvelopeChannels;
+    }
+
+    FrameTimeIndex getFrameTimeIndex() {
+        return mFrameTimes;
+    }
+
+    public long getFileSizeBytes() {
+        return mFileSize;
+    }
+
+    public int getAvgBitrateKbps() {
+        return mAvgBitrateKbps;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public String getFiletype() {
+        return mFiletype;
+    }
+
+    public long getSeekableFrameOffset(int frame) {
+        if (mFrameOffsets == null) {
+            return -1;
+        }
+        return mFrameOffsets.get(Math.max(0, Math.min(frame, mNumFrames)));
+    }
+}
@@ -18,8 +18,12 @@ package com.semantive.waveformandroid.waveform.soundfile;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * CheapAAC is a CheapSoundFile implementation for AAC (Advanced Audio
@@ -38,15 +42,70 @@ public class CheapAAC extends CheapSoundFile {
             public String[] getSupportedExtensions() {
                 return new String[] { "aac", "m4a" };
             }
+            public int probe(byte[] header, int length) {
+                return probeHeader(header, length);
+            }
         };
     }
 
+    /**
+     * MP4 files start with an ftyp atom.  3GPP files are MP4 files too,
+     * but usually hold AMR, so leave those to CheapAMR if it wants them.
+     * Raw ADTS streams start with a frame header, possibly after an
+     * ID3v2 tag.
+     */
+    static int probeHeader(byte[] header, int length) {
+        if (hasMagic(header, length, 4, "ftyp")) {
+            if (hasMagic(header, length, 8, "3gp")) {
+                return PROBE_POSSIBLE;
+            }
+            return PROBE_CERTAIN;
+        }
+
+        int start = getAdtsStart(header, length);
+        if (start > 0 && start + ADTS_HEADER_SIZE > length) {
+            // Tagged file whose audio starts past what we have; tags are
+            // far more common on MP3 files, so leave those to CheapMP3
+            // unless the extension says otherwise
+            return PROBE_POSSIBLE;
+        }
+        if (start + ADTS_HEADER_SIZE > length ||
+            !isAdtsHeader(header, start, -1)) {
+            return PROBE_NONE;
+        }
+        int next = start + getAdtsFrameLength(header, start);
+        if (next + ADTS_HEADER_SIZE > length) {
+            return PROBE_POSSIBLE;
+        }
+        if (isAdtsHeader(header, next, getAdtsFixedHeader(header, start))) {
+            return PROBE_CERTAIN;
+        }
+        return PROBE_NONE;
+    }
+
+    // Frame headers of raw ADTS streams
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int ADTS_CRC_SIZE = 2;
+    private static final int ADTS_WINDOW_SIZE = 64 * 1024;
+
+    // Files with fewer frames than this are always read on one thread
+    private static final int PARALLEL_MIN_FRAMES = 4096;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int PROGRESS_INTERVAL_FRAMES = 256;
+
+    /**
+     * Entry of the atom index built while parsing.  Only the position of
+     * most atoms is recorded; their contents are read when first asked
+     * for through getAtomData().
+     */
     class Atom {
-        public int start;
-        public int len;  // including header
+        public long start;
+        public long len;  // including header
+        public int headerLen;  // 16 for atoms with a 64-bit size
         public byte[] data;
     };
 
+    public static final int kCO64 = 0x636f3634;
     public static final int kDINF = 0x64696e66;
     public static final int kFTYP = 0x66747970;
     public static final int kHDLR = 0x68646c72;
@@ -98,9 +157,16 @@ public class CheapAAC extends CheapSoundFile {
     private int mNumFrames;
     private int[] mFrameLens;
     private int[] mFrameGains;
-    private int mFileSize;
+    private long mFileSize;
     private HashMap<Integer, Atom> mAtomMap;
 
+    // Start time of each frame, from stts or the ADTS headers
+    private FrameTimeIndex mFrameTimes;
+
+    // Where each frame starts, only for ADTS streams
+    private FrameOffsetIndex mAdtsFrameOffsets;
+    private long mAdtsEnd;
+
     // Member variables containing sound file info
     private int mBitrate;
     private int mSampleRate;
@@ -108,11 +174,14 @@ public class CheapAAC extends CheapSoundFile {
     private int mSamplesPerFrame;
 
     // Member variables used only while initially parsing the file
-    private int mOffset;
+    private long mOffset;
     private int mMinGain;
     private int mMaxGain;
-    private int mMdatOffset;
-    private int mMdatLength;
+    private long mMdatOffset;
+    private long mMdatLength;
+    private long mFirstChunkOffset;
+    private int mResolvedFrames;
+    private byte[] mAtomHeader = new byte[16];
 
     public CheapAAC() {
     }
@@ -129,12 +198,12 @@ public class CheapAAC extends CheapSoundFile {
         return mFrameGains;
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return mFileSize;        
     }
 
     public int getAvgBitrateKbps() {
-        return mFileSize / (mNumFrames * mSamplesPerFrame);
+        return (int) (mFileSize / (mNumFrames * mSamplesPerFrame));
     }
 
     public int getSampleRate() {
@@ -149,6 +218,22 @@ public class CheapAAC extends CheapSoundFile {
         return "AAC";
     }
 
+    /**
+     * Frames of ADTS streams can be decoded on their own, so those can be
+     * played from any frame.  MP4 files can't.
+     */
+    public long getSeekableFrameOffset(int frame) {
+        if (mAdtsFrameOffsets == null) {
+            return -1;
+        } else if (frame <= 0) {
+            return 0;
+        } else if (frame >= mNumFrames) {
+            return mAdtsEnd;
+        } else {
+            return mAdtsFrameOffsets.get(frame);
+        }
+    }
+
     public String atomToString(int atomType) {
         String str = "";
         str += (char)((atomType >> 24) & 0xff);
@@ -172,40 +257,51 @@ public class CheapAAC extends CheapSoundFile {
         mOffset = 0;
         mMdatOffset = -1;
         mMdatLength = -1;
+        mFirstChunkOffset = -1;
+        mResolvedFrames = 0;
 
         mAtomMap = new HashMap<Integer, Atom>();
 
-        // No need to handle filesizes larger than can fit in a 32-bit int
-        mFileSize = (int)mInputFile.length();
+        mFileSize = mInputFile.length();
 
         if (mFileSize < 128) {
             throw new java.io.IOException("File too small to parse");
         }
 
-        // Read the first 8 bytes
+        mAdtsFrameOffsets = null;
+        mFrameTimes = null;
+        byte[] header = getHeader();
+        int headerLength = getHeaderLength();
+
         FileInputStream stream = new FileInputStream(mInputFile);
-        byte[] header = new byte[8];
-        stream.read(header, 0, 8);
-
-        if (header[0] == 0 &&
-            header[4] == 'f' &&
-            header[5] == 't' &&
-            header[6] == 'y' &&
-            header[7] == 'p') {
-            // Create a new stream, reset to the beginning of the file
-            stream = new FileInputStream(mInputFile);
-            parseMp4(stream, mFileSize);
-        } else {
-            throw new java.io.IOException("Unknown file format");
-        }
+        try {
+            FileChannel channel = stream.getChannel();
+
+            if (header[0] == 0 &&
+                header[4] == 'f' &&
+                header[5] == 't' &&
+                header[6] == 'y' &&
+                header[7] == 'p') {
+                parseMp4(channel, 0, mFileSize);
+            } else {
+                parseAdts(channel, getAdtsStart(header, headerLength));
+                return;
+            }
 
-        if (mMdatOffset > 0 && mMdatLength > 0) {
-            stream = new FileInputStream(mInputFile);
-            stream.skip(mMdatOffset);
-            mOffset = mMdatOffset;
-            parseMdat(stream, mMdatLength);
-        } else {
-            throw new java.io.IOException("Didn't find mdat");
+            if (mMdatOffset > 0 && mMdatLength > 0) {
+                // The frames are taken to follow each other from the
+                // first chunk on, which is normally the start of mdat
+                mOffset = mMdatOffset;
+                if (mFirstChunkOffset > mMdatOffset &&
+                    mFirstChunkOffset < mMdatOffset + mMdatLength) {
+                    mOffset = mFirstChunkOffset;
+                }
+                parseMdat(channel, mMdatLength - (mOffset - mMdatOffset));
+            } else {
+                throw new java.io.IOException("Didn't find mdat");
+            }
+        } finally {
+            stream.close();
         }
 
         boolean bad = false;
@@ -220,22 +316,77 @@ public class CheapAAC extends CheapSoundFile {
         if (bad) {
             throw new java.io.IOException("Could not parse MP4 file");
         }
+
+        mFrameTimes.setTimescale(getTimescale());
     }
 
-    private void parseMp4(InputStream stream, int maxLen)
-            throws java.io.IOException {
-        while (maxLen > 8) {
-            int initialOffset = mOffset;
+    /**
+     * Only files whose frames don't all last mSamplesPerFrame samples at
+     * mSampleRate need the index.
+     */
+    FrameTimeIndex getFrameTimeIndex() {
+        if (mFrameTimes == null ||
+            (mFrameTimes.getNumRuns() <= 1 &&
+             mFrameTimes.getTimescale() == mSampleRate)) {
+            return null;
+        }
+        return mFrameTimes;
+    }
+
+    /**
+     * Returns the contents of the given atom, without its header, or null
+     * if the file doesn't have one.  The contents are read from the file
+     * the first time they are asked for.
+     */
+    public byte[] getAtomData(int atomType) throws java.io.IOException {
+        Atom atom = mAtomMap.get(atomType);
+        if (atom == null) {
+            return null;
+        }
+        if (atom.data == null) {
+            FileInputStream stream = new FileInputStream(mInputFile);
+            try {
+                atom.data = readAtomData(stream.getChannel(), atom);
+            } finally {
+                stream.close();
+            }
+        }
+        return atom.data;
+    }
 
-            byte[] atomHeader = new byte[8];
-            stream.read(atomHeader, 0, 8);
-            int atomLen =
-                ((0xff & atomHeader[0]) << 24) |
+    /**
+     * Walks the atoms between start and start + maxLen.  Only the headers
+     * are read, the atoms we don't need are skipped by moving on to the
+     * next position, so the cost doesn't depend on how large the atoms
+     * are or in which order they appear; in particular moov may come
+     * after mdat.
+     */
+    private void parseMp4(FileChannel channel, long start, long maxLen)
+            throws java.io.IOException {
+        long position = start;
+        while (maxLen >= 8) {
+            byte[] atomHeader = mAtomHeader;
+            readFully(channel, atomHeader, 8, position);
+            long atomLen =
+                ((0xffL & atomHeader[0]) << 24) |
                 ((0xff & atomHeader[1]) << 16) |
                 ((0xff & atomHeader[2]) << 8) |
                 ((0xff & atomHeader[3]));
-            if (atomLen > maxLen)
+            int headerLen = 8;
+            if (atomLen == 1 && maxLen >= 16) {
+                // The atom is too large for 32 bits; its size follows
+                // the type as a 64-bit value
+                readFully(channel, atomHeader, 16, position);
+                atomLen = getLong(atomHeader, 8);
+                headerLen = 16;
+            }
+            if (atomLen == 0 || atomLen > maxLen) {
+                // 0 means the atom extends to the end of the file
                 atomLen = maxLen;
+            }
+            if (atomLen < headerLen) {
+                throw new java.io.IOException("Invalid atom size " + atomLen);
+            }
             int atomType = 
                 ((0xff & atomHeader[4]) << 24) |
                 ((0xff & atomHeader[5]) << 16) |
@@ -243,86 +394,193 @@ public class CheapAAC extends CheapSoundFile {
                 ((0xff & atomHeader[7]));
 
             Atom atom = new Atom();
-            atom.start = mOffset;
+            atom.start = position;
             atom.len = atomLen;
+            atom.headerLen = headerLen;
             mAtomMap.put(atomType, atom);
 
-            mOffset += 8;
-
+            long dataStart = position + headerLen;
+            long dataLen = atomLen - headerLen;
             if (atomType == kMOOV ||
                 atomType == kTRAK ||
                 atomType == kMDIA ||
                 atomType == kMINF ||
                 atomType == kSTBL) {
-                parseMp4(stream, atomLen);
+                parseMp4(channel, dataStart, dataLen);
             } else if (atomType == kSTSZ) {
-                parseStsz(stream, atomLen - 8);
+                parseStsz(channel, dataStart, dataLen);
             } else if (atomType == kSTTS) {
-                parseStts(stream, atomLen - 8);
+                parseStts(channel, dataStart, dataLen);
+            } else if (atomType == kSTCO || atomType == kCO64) {
+                parseChunkOffsets(channel, dataStart, dataLen,
+                                  atomType == kCO64);
             } else if (atomType == kMDAT) {
-                mMdatOffset = mOffset;
-                mMdatLength = atomLen - 8;
-            } else {
-                for (int savedAtomType : kSaveDataAtoms) {
-                    if (savedAtomType == atomType) {
-                        byte[] data = new byte[atomLen - 8];
-                        stream.read(data, 0, atomLen - 8);
-                        mOffset += atomLen - 8;
-                        mAtomMap.get(atomType).data = data;
-                    }
-                }
-            }
-
-            if (atomType == kSTSD) {
+                mMdatOffset = dataStart;
+                mMdatLength = dataLen;
+            } else if (atomType == kSTSD) {
+                atom.data = readAtomData(channel, atom);
                 parseMp4aFromStsd();
             }
 
+            position += atomLen;
             maxLen -= atomLen;
-            int skipLen = atomLen - (mOffset - initialOffset);
-            if (skipLen < 0) {
-                throw new java.io.IOException(
-                    "Went over by " + (-skipLen) + " bytes");
+        }
+    }
+
+    private static byte[] readAtomData(FileChannel channel, Atom atom)
+            throws java.io.IOException {
+        byte[] data = new byte[(int) (atom.len - atom.headerLen)];
+        readFully(channel, data, data.length, atom.start + atom.headerLen);
+        return data;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (0xff & data[i]);
+        }
+        return value;
+    }
+
+    private static void readFully(FileChannel channel, byte[] data,
+                                  int length, long position)
+            throws java.io.IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new java.io.EOFException();
             }
-                               
-            stream.skip(skipLen);
-            mOffset += skipLen;
         }
     }
 
-    void parseStts(InputStream stream, int maxLen)
+    /**
+     * Reads the durations of the frames, a table of runs of frames that
+     * last as long.  The duration of the first run is the nominal
+     * number of samples per frame.
+     */
+    void parseStts(FileChannel channel, long start, long maxLen)
         throws java.io.IOException {
-        byte[] sttsData = new byte[16];
-        stream.read(sttsData, 0, 16);
-        mOffset += 16;
-        mSamplesPerFrame =
-            ((0xff & sttsData[12]) << 24) |
-            ((0xff & sttsData[13]) << 16) |
-            ((0xff & sttsData[14]) << 8) |
-            ((0xff & sttsData[15]));
+        byte[] sttsHeader = new byte[8];
+        readFully(channel, sttsHeader, 8, start);
+        int numEntries =
+            ((0xff & sttsHeader[4]) << 24) |
+            ((0xff & sttsHeader[5]) << 16) |
+            ((0xff & sttsHeader[6]) << 8) |
+            ((0xff & sttsHeader[7]));
+        if (numEntries < 0 || numEntries > (maxLen - 8) / 8) {
+            throw new java.io.IOException("Time to sample table is truncated");
+        }
+
+        byte[] sttsData = new byte[numEntries * 8];
+        readFully(channel, sttsData, sttsData.length, start + 8);
+        mFrameTimes = new FrameTimeIndex(0);
+        for (int i = 0; i < sttsData.length; i += 8) {
+            int count =
+                ((0xff & sttsData[i]) << 24) |
+                ((0xff & sttsData[i + 1]) << 16) |
+                ((0xff & sttsData[i + 2]) << 8) |
+                ((0xff & sttsData[i + 3]));
+            int duration =
+                ((0xff & sttsData[i + 4]) << 24) |
+                ((0xff & sttsData[i + 5]) << 16) |
+                ((0xff & sttsData[i + 6]) << 8) |
+                ((0xff & sttsData[i + 7]));
+            mFrameTimes.add(count, duration);
+        }
+        mSamplesPerFrame = mFrameTimes.getFirstDuration();
     }
 
-    void parseStsz(InputStream stream, int maxLen)
+    /**
+     * Returns the number of stts time units per second, from mdhd, or
+     * the sample rate if mdhd doesn't tell.
+     */
+    private int getTimescale() throws java.io.IOException {
+        byte[] mdhdData = getAtomData(kMDHD);
+        int offset = (mdhdData != null && mdhdData[0] == 1) ? 20 : 12;
+        if (mdhdData == null || mdhdData.length < offset + 4) {
+            return mSampleRate;
+        }
+        int timescale =
+            ((0xff & mdhdData[offset]) << 24) |
+            ((0xff & mdhdData[offset + 1]) << 16) |
+            ((0xff & mdhdData[offset + 2]) << 8) |
+            ((0xff & mdhdData[offset + 3]));
+        return (timescale > 0) ? timescale : mSampleRate;
+    }
+
+    void parseStsz(FileChannel channel, long start, long maxLen)
         throws java.io.IOException {
         byte[] stszHeader = new byte[12];
-        stream.read(stszHeader, 0, 12);
-        mOffset += 12;
+        readFully(channel, stszHeader, 12, start);
+        int sampleSize =
+            ((0xff & stszHeader[4]) << 24) |
+            ((0xff & stszHeader[5]) << 16) |
+            ((0xff & stszHeader[6]) << 8) |
+            ((0xff & stszHeader[7]));
         mNumFrames =
             ((0xff & stszHeader[8]) << 24) |
             ((0xff & stszHeader[9]) << 16) |
             ((0xff & stszHeader[10]) << 8) |
             ((0xff & stszHeader[11]));
+        if (mNumFrames < 0) {
+            throw new java.io.IOException("Bad sample count " + mNumFrames);
+        }
 
+        if (sampleSize != 0) {
+            // All frames have the same size and there is no table, so
+            // the count can only be checked against the file
+            if (sampleSize < 0 || (long) mNumFrames * sampleSize > mFileSize) {
+                throw new java.io.IOException("Samples don't fit in the file");
+            }
+            mFrameLens = new int[mNumFrames];
+            mFrameGains = new int[mNumFrames];
+            java.util.Arrays.fill(mFrameLens, sampleSize);
+            return;
+        }
+
+        if (maxLen < 12 || mNumFrames > (maxLen - 12) / 4) {
+            throw new java.io.IOException("Sample size table is truncated");
+        }
         mFrameLens = new int[mNumFrames];
         mFrameGains = new int[mNumFrames];
-        byte[] frameLenBytes = new byte[4 * mNumFrames];
-        stream.read(frameLenBytes, 0, 4 * mNumFrames);
-        mOffset += 4 * mNumFrames;
-        for (int i = 0; i < mNumFrames; i++) {
-            mFrameLens[i] =
-                ((0xff & frameLenBytes[4 * i + 0]) << 24) |
-                ((0xff & frameLenBytes[4 * i + 1]) << 16) |
-                ((0xff & frameLenBytes[4 * i + 2]) << 8) |
-                ((0xff & frameLenBytes[4 * i + 3]));
+
+        // Decode the big-endian table straight from a mapping of the file
+        if (mNumFrames > 0) {
+            MappedByteBuffer table = channel.map(
+                FileChannel.MapMode.READ_ONLY, start + 12, 4L * mNumFrames);
+            table.asIntBuffer().get(mFrameLens);
+        }
+    }
+
+    /**
+     * Reads where the first chunk of frames is from the chunk offset
+     * table, stco, or co64 in files where offsets need 64 bits.
+     */
+    void parseChunkOffsets(FileChannel channel, long start, long maxLen,
+                           boolean largeOffsets)
+        throws java.io.IOException {
+        int entrySize = largeOffsets ? 8 : 4;
+        if (maxLen < 8 + entrySize) {
+            return;
+        }
+        byte[] data = new byte[8 + entrySize];
+        readFully(channel, data, data.length, start);
+        int numEntries =
+            ((0xff & data[4]) << 24) |
+            ((0xff & data[5]) << 16) |
+            ((0xff & data[6]) << 8) |
+            ((0xff & data[7]));
+        if (numEntries <= 0) {
+            return;
+        }
+        if (largeOffsets) {
+            mFirstChunkOffset = getLong(data, 8);
+        } else {
+            mFirstChunkOffset =
+                ((0xffL & data[8]) << 24) |
+                ((0xff & data[9]) << 16) |
+                ((0xff & data[10]) << 8) |
+                ((0xff & data[11]));
         }
     }
 
@@ -336,134 +594,272 @@ public class CheapAAC extends CheapSoundFile {
             ((0xff & stsdData[41]));
     }
 
-    void parseMdat(InputStream stream, int maxLen)
+    void parseMdat(FileChannel channel, long maxLen)
         throws java.io.IOException {
-        int initialOffset = mOffset;
+        // Work out where each frame starts first, which is cheap, so the
+        // gains can then be computed in any order.  A frame that would
+        // run past the end of mdat is not read and gets no position.
+        // (Frames under 4 bytes have never counted towards that check.)
+        long[] frameOffsets = new long[mNumFrames];
+        long initialOffset = mOffset;
+        long position = mOffset;
         for (int i = 0; i < mNumFrames; i++) {
-
             if (mOffset - initialOffset + mFrameLens[i] > maxLen - 8) {
-                mFrameGains[i] = 0;
+                frameOffsets[i] = -1;
             } else {
-                readFrameAndComputeGain(stream, i);
+                frameOffsets[i] = position;
+                position += mFrameLens[i];
+                if (mFrameLens[i] >= 4)
+                    mOffset += mFrameLens[i];
             }
-            if (mFrameGains[i] < mMinGain)
-                mMinGain = mFrameGains[i];
-            if (mFrameGains[i] > mMaxGain)
-                mMaxGain = mFrameGains[i];
+        }
 
-            if (mProgressListener != null) {
-                boolean keepGoing = mProgressListener.reportProgress(
-                    mOffset * 1.0 / mFileSize);
-                if (!keepGoing) {
+        if (mParallelScanEnabled &&
+            ParallelScanner.getParallelism() > 1 &&
+            mNumFrames >= PARALLEL_MIN_FRAMES) {
+            computeGainsParallel(channel, frameOffsets);
+        } else {
+            AacFrameGainReader reader = new AacFrameGainReader(channel);
+            for (int i = 0; i < mNumFrames; i++) {
+                mFrameGains[i] = reader.readGain(frameOffsets[i], mFrameLens[i]);
+                if (!deliverGains(i + 1)) {
                     break;
                 }
+
+                if (mProgressListener != null) {
+                    boolean keepGoing = mProgressListener.reportProgress(
+                        (frameOffsets[i] < 0 ? initialOffset : frameOffsets[i]) * 1.0 / mFileSize);
+                    if (!keepGoing) {
+                        break;
+                    }
+                }
             }
         }
-    }
 
-    void readFrameAndComputeGain(InputStream stream, int frameIndex)
-        throws java.io.IOException {
+        resolveGains(mNumFrames);
+        deliverRemainingFrames();
+    }
 
-        if (mFrameLens[frameIndex] < 4) {
-            mFrameGains[frameIndex] = 0;
-            stream.skip(mFrameLens[frameIndex]);
-            return;
+    /**
+     * Frames we couldn't parse take the gain of the previous frame,
+     * which in a parallel pass may have been in another chunk.  Resolves
+     * the frames up to numFrames that haven't been yet.
+     */
+    private void resolveGains(int numFrames) {
+        for (int i = mResolvedFrames; i < numFrames; i++) {
+            if (mFrameGains[i] == AacFrameGainReader.GAIN_OF_PREVIOUS_FRAME) {
+                mFrameGains[i] = (i > 0) ? mFrameGains[i - 1] : 0;
+            }
+            if (mFrameGains[i] < mMinGain)
+                mMinGain = mFrameGains[i];
+            if (mFrameGains[i] > mMaxGain)
+                mMaxGain = mFrameGains[i];
         }
+        mResolvedFrames = Math.max(mResolvedFrames, numFrames);
+    }
 
-        int initialOffset = mOffset;
-
-        byte[] data = new byte[4];
-        stream.read(data, 0, 4);
-        mOffset += 4;
-
-        int idSynEle = (0xe0 & data[0]) >> 5;
-
-        switch(idSynEle) {
-        case 0:  // ID_SCE: mono
-            int monoGain = ((0x01 & data[0]) << 7) | ((0xfe & data[1]) >> 1);
-            mFrameGains[frameIndex] = monoGain;
-            break;
-        case 1:  // ID_CPE: stereo
-            int windowSequence = (0x60 & data[1]) >> 5;
-            int windowShape = (0x10 & data[1]) >> 4;
-
-            int maxSfb;
-            int scaleFactorGrouping;
-            int maskPresent;
-            int startBit;
-
-            if (windowSequence == 2) {
-                maxSfb = 0x0f & data[1];
-
-                scaleFactorGrouping = (0xfe & data[2]) >> 1;
-
-                maskPresent =
-                    ((0x01 & data[2]) << 1) |
-                    ((0x80 & data[3]) >> 7);
+    /**
+     * Passes the gains of the frames before numFrames to the
+     * FrameListener once there is a whole slice of them, which means
+     * resolving them first.  Returns false if it asks to stop.
+     */
+    private boolean deliverGains(int numFrames) {
+        if (mFrameListener == null ||
+            numFrames - mResolvedFrames < FRAME_SLICE_SIZE) {
+            return true;
+        }
+        resolveGains(numFrames);
+        return deliverFrames(numFrames);
+    }
 
-                startBit = 25;
-            } else {
-                maxSfb =
-                    ((0x0f & data[1]) << 2) |
-                    ((0xc0 & data[2]) >> 6);
+    /**
+     * Walks the frames of a raw ADTS stream that starts at the given
+     * offset.  Each header holds the length of its frame, so the scan
+     * jumps from header to header through a large window onto the file,
+     * refilled with positional reads.  The gain is at the start of the
+     * raw data block that follows the header, which is in the window as
+     * well, so the file is only read once.
+     *
+     * The first frame must be at start, or this is not an ADTS stream.
+     * If a later header is missing, the stream is searched byte by byte
+     * for the next one that has the same fixed header as the first.
+     */
+    private void parseAdts(FileChannel channel, long start)
+        throws java.io.IOException {
+        // Past the end of the file, the window reads as zeros
+        int lookahead = ADTS_HEADER_SIZE + ADTS_CRC_SIZE +
+            AacFrameGainReader.MAX_GAIN_BYTES;
+        byte[] window = new byte[ADTS_WINDOW_SIZE + lookahead];
+        ByteBuffer wrapper = ByteBuffer.wrap(window, 0, ADTS_WINDOW_SIZE);
+        long windowStart = 0;
+        long windowEnd = 0;
+        AacFrameGainReader reader = new AacFrameGainReader(channel);
+
+        int fixedHeader = -1;
+        int maxFrames = 0;
+        int numFrames = 0;
+        long position = start;
+        mAdtsEnd = start;
+        while (position + ADTS_HEADER_SIZE <= mFileSize) {
+            if (position + lookahead > windowEnd && windowEnd < mFileSize) {
+                wrapper.clear();
+                wrapper.limit((int) Math.min(ADTS_WINDOW_SIZE, mFileSize - position));
+                while (wrapper.hasRemaining()) {
+                    if (channel.read(wrapper, position + wrapper.position()) < 0) {
+                        throw new java.io.EOFException();
+                    }
+                }
+                windowStart = position;
+                windowEnd = position + wrapper.position();
+                java.util.Arrays.fill(window, wrapper.position(),
+                                      wrapper.position() + lookahead, (byte) 0);
+            }
 
-                scaleFactorGrouping = -1;
+            int i = (int) (position - windowStart);
+            int frameLen = getAdtsFrameLength(window, i);
+            int headerLen = ((window[i + 1] & 1) != 0) ?
+                ADTS_HEADER_SIZE : ADTS_HEADER_SIZE + ADTS_CRC_SIZE;
+            if (!isAdtsHeader(window, i, fixedHeader) || frameLen < headerLen) {
+                if (fixedHeader == -1) {
+                    throw new java.io.IOException("Unknown file format");
+                }
+                position++;
+                continue;
+            }
+            if (position + frameLen > mFileSize) {
+                break;
+            }
 
-                maskPresent = (0x18 & data[2]) >> 3;
+            if (fixedHeader == -1) {
+                fixedHeader = getAdtsFixedHeader(window, i);
+                mSampleRate = ADTS_SAMPLE_RATES[(window[i + 2] & 0x3C) >> 2];
+                mChannels =
+                    ((window[i + 2] & 0x01) << 2) | ((window[i + 3] & 0xC0) >> 6);
+                mSamplesPerFrame = 1024 * ((window[i + 6] & 0x03) + 1);
+
+                mFrameTimes = new FrameTimeIndex(mSampleRate);
+
+                maxFrames = (int) Math.min((mFileSize - position) / frameLen + 1,
+                                           Integer.MAX_VALUE - 8);
+                mFrameLens = new int[maxFrames];
+                mFrameGains = new int[maxFrames];
+                mAdtsFrameOffsets = new FrameOffsetIndex(maxFrames);
+            } else if (numFrames == maxFrames) {
+                maxFrames = numFrames + numFrames / 2 + 1;
+                mFrameLens = java.util.Arrays.copyOf(mFrameLens, maxFrames);
+                mFrameGains = java.util.Arrays.copyOf(mFrameGains, maxFrames);
+            }
 
-                startBit = 21;
+            int rawLen = frameLen - headerLen;
+            mFrameLens[numFrames] = rawLen;
+            mFrameGains[numFrames] = (rawLen < 4) ? 0 :
+                reader.readGain(window, i + headerLen);
+            mAdtsFrameOffsets.add(position);
+            mFrameTimes.add(1, 1024 * ((window[i + 6] & 0x03) + 1));
+            numFrames++;
+            position += frameLen;
+            mAdtsEnd = position;
+            if (!deliverGains(numFrames)) {
+                break;
             }
 
-            if (maskPresent == 1) {
-                int sfgZeroBitCount = 0;
-                for (int b = 0; b < 7; b++) {
-                    if ((scaleFactorGrouping & (1 << b)) == 0) {
-                        sfgZeroBitCount++;
-                    }
+            if (mProgressListener != null &&
+                numFrames % PROGRESS_INTERVAL_FRAMES == 0) {
+                boolean keepGoing = mProgressListener.reportProgress(
+                    position * 1.0 / mFileSize);
+                if (!keepGoing) {
+                    break;
                 }
+            }
+        }
 
-                int numWindowGroups = 1 + sfgZeroBitCount;
+        if (numFrames == 0) {
+            throw new java.io.IOException("No ADTS frames found");
+        }
+        mNumFrames = numFrames;
+        resolveGains(mNumFrames);
+        deliverRemainingFrames();
+    }
 
-                int skip = maxSfb * numWindowGroups;
+    /**
+     * Returns where the first ADTS frame should be: past any ID3v2 tag at
+     * the start of the file.
+     */
+    private static int getAdtsStart(byte[] header, int length) {
+        return getId3v2End(header, length);
+    }
 
-                startBit += skip;
-            }
+    /**
+     * Returns whether an ADTS header starts at data[i]: the sync word,
+     * layer 0 and a valid sample rate, and if fixedHeader isn't -1, the
+     * fixed header of the first frame.
+     */
+    private static boolean isAdtsHeader(byte[] data, int i, int fixedHeader) {
+        if (data[i] != -1 || (data[i + 1] & 0xF6) != 0xF0) {
+            return false;
+        }
+        if (((data[i + 2] & 0x3C) >> 2) >= ADTS_SAMPLE_RATES.length) {
+            return false;
+        }
+        return fixedHeader == -1 || getAdtsFixedHeader(data, i) == fixedHeader;
+    }
 
-            // We may need to fill our buffer with more than the 4
-            // bytes we've already read, here.
-            int bytesNeeded = 1 + ((startBit + 7) / 8);
-            byte[] oldData = data;
-            data = new byte[bytesNeeded];
-            data[0] = oldData[0];
-            data[1] = oldData[1];
-            data[2] = oldData[2];
-            data[3] = oldData[3];
-            stream.read(data, 4, bytesNeeded - 4);
-            mOffset += (bytesNeeded - 4);
-
-            int firstChannelGain = 0;
-            for (int b = 0; b < 8; b++) {
-                int b0 = (b + startBit) / 8;
-                int b1 = 7 - ((b + startBit) % 8);
-                int add = (((1 << b1) & data[b0]) >> b1) << (7 - b);
-                firstChannelGain += add;
-            }
+    /**
+     * Returns the fields of the header at data[i] that must not change
+     * from frame to frame: MPEG version, CRC, profile, sample rate and
+     * channels.
+     */
+    private static int getAdtsFixedHeader(byte[] data, int i) {
+        return ((0xff & data[i + 1]) << 16) |
+            ((0xfd & data[i + 2]) << 8) |
+            (0xc0 & data[i + 3]);
+    }
 
-            mFrameGains[frameIndex] = firstChannelGain;
-            break;
+    private static int getAdtsFrameLength(byte[] data, int i) {
+        return ((data[i + 3] & 0x03) << 11) |
+            ((0xff & data[i + 4]) << 3) |
+            ((0xff & data[i + 5]) >> 5);
+    }
 
-        default:
-            if (frameIndex > 0) {
-                mFrameGains[frameIndex] = mFrameGains[frameIndex - 1];
-            } else {
-                mFrameGains[frameIndex] = 0;
-            }
-            break;
+    /**
+     * Computes the gains of chunks of frames on several threads.  Frames
+     * are read with positional reads, so the chunks can share the channel.
+     */
+    private void computeGainsParallel(final FileChannel channel,
+                                      final long[] frameOffsets)
+        throws java.io.IOException {
+        int numChunks = ParallelScanner.getParallelism() * CHUNKS_PER_THREAD;
+        int chunkFrames = Math.max(mNumFrames / numChunks, PARALLEL_MIN_FRAMES / 4);
+
+        List<ParallelScanner.Chunk> chunks = new ArrayList<>();
+        final List<Integer> chunkEnds = new ArrayList<>();
+        for (int start = 0; start < mNumFrames; start += chunkFrames) {
+            final int first = start;
+            final int last = Math.min(start + chunkFrames, mNumFrames);
+            chunkEnds.add(last);
+            chunks.add(scanner -> {
+                AacFrameGainReader reader = new AacFrameGainReader(channel);
+                int reported = first;
+                for (int i = first; i < last; i++) {
+                    mFrameGains[i] = reader.readGain(frameOffsets[i], mFrameLens[i]);
+                    if (i - reported == PROGRESS_INTERVAL_FRAMES) {
+                        scanner.addProgress(i - reported);
+                        reported = i;
+                        if (scanner.isCancelled()) {
+                            return;
+                        }
+                    }
+                }
+                scanner.addProgress(last - reported);
+            });
         }
 
-        int skip = mFrameLens[frameIndex] - (mOffset - initialOffset);
-
-        stream.skip(skip);
-        mOffset += skip;
+        new ParallelScanner(mProgressListener, mNumFrames).run(
+            chunks, index -> deliverGains(chunkEnds.get(index)));
     }
+
+    // Sample rates by the sampling_frequency_index of ADTS headers
+    static private int ADTS_SAMPLE_RATES[] = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050,
+        16000, 12000, 11025, 8000, 7350 };
 }
@@ -16,9 +16,14 @@
 
 package com.semantive.waveformandroid.waveform.soundfile;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * CheapAMR is a CheapSoundFile implementation for AMR (Adaptive Multi-Rate)
@@ -42,21 +47,53 @@ public class CheapAMR extends CheapSoundFile {
             public String[] getSupportedExtensions() {
                 return new String[] { "3gpp", "3gp", "amr" };
             }
+            public int probe(byte[] header, int length) {
+                return probeHeader(header, length);
+            }
         };
     }
 
+    static int probeHeader(byte[] header, int length) {
+        if (hasMagic(header, length, 0, AMR_MAGIC)) {
+            return PROBE_CERTAIN;
+        }
+        if (hasMagic(header, length, 4, "ftyp3gp4")) {
+            return PROBE_LIKELY;
+        }
+        return PROBE_NONE;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String AMR_MAGIC = "#!AMR\n";
+
+    // Streams shorter than this are always parsed on one thread
+    private static final int PARALLEL_MIN_BYTES = 1024 * 1024;
+    private static final int MIN_CHUNK_BYTES = 64 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int PROGRESS_INTERVAL_BYTES = 16 * 1024;
+
+    // Subframe gains in each frame we can decode
+    private static final int MAX_GAINS_PER_FRAME = 4;
+
+    // Frames read ahead to estimate the number of frames in a stream
+    private static final int ESTIMATE_SAMPLE_FRAMES = 256;
+
     // Member variables containing frame info
     private int mNumFrames;
     private int[] mFrameGains;
-    private int mFileSize;
+    private long mFileSize;
     private int mBitRate;
 
     // Member variables used only while initially parsing the file
-    private int mOffset;
+    private long mOffset;
     private int mMaxFrames;
     private int mMinGain;
     private int mMaxGain;
 
+    // Whether the frames were parsed on all cores, for tests
+    boolean mParsedInParallel;
+
     public CheapAMR() {
     }
 
@@ -72,7 +109,7 @@ public class CheapAMR extends CheapSoundFile {
         return mFrameGains;
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return mFileSize;        
     }
 
@@ -97,44 +134,42 @@ public class CheapAMR extends CheapSoundFile {
             java.io.IOException {
         super.ReadFile(inputFile);
         mNumFrames = 0;
-        mMaxFrames = 64;  // This will grow as needed
+        mMaxFrames = 0;  // Sized by parseAMR
         mFrameGains = new int[mMaxFrames];
         mMinGain = 1000000000;
         mMaxGain = 0;
         mBitRate = 10;
         mOffset = 0;
 
-        // No need to handle filesizes larger than can fit in a 32-bit int
-        mFileSize = (int)mInputFile.length();
+        mFileSize = mInputFile.length();
 
         if (mFileSize < 128) {
             throw new java.io.IOException("File too small to parse");
         }
 
-        FileInputStream stream = new FileInputStream(mInputFile);
-        byte[] header = new byte[12];
-        stream.read(header, 0, 6);
-        mOffset += 6;
-        if (header[0] == '#' &&
-            header[1] == '!' &&
-            header[2] == 'A' &&
-            header[3] == 'M' &&
-            header[4] == 'R' &&
-            header[5] == '\n') {
-            parseAMR(stream, mFileSize - 6);
+        // Frames are only a few bytes long, so read them through a buffer
+        InputStream stream = new BufferedInputStream(
+            new FileInputStream(mInputFile), BUFFER_SIZE);
+        try {
+            parseFile(stream);
+        } finally {
+            stream.close();
         }
+        deliverRemainingFrames();
+    }
 
-        stream.read(header, 6, 6);
-        mOffset += 6;
+    private void parseFile(InputStream stream) throws java.io.IOException {
+        // The header is usually still around from probing the format
+        byte[] header = getHeader();
+        int headerLength = getHeaderLength();
 
-        if (header[4] == 'f' &&
-            header[5] == 't' &&
-            header[6] == 'y' &&
-            header[7] == 'p' &&
-            header[8] == '3' &&
-            header[9] == 'g' &&
-            header[10] == 'p' &&
-            header[11] == '4') {
+        if (hasMagic(header, headerLength, 0, AMR_MAGIC)) {
+            skip(stream, AMR_MAGIC.length());
+            mOffset += AMR_MAGIC.length();
+            parseAMR(stream, mFileSize - AMR_MAGIC.length());
+        } else if (hasMagic(header, headerLength, 4, "ftyp3gp4")) {
+            skip(stream, 12);
+            mOffset += 12;
 
             int boxLen =
                 ((0xff & header[0]) << 24) |
@@ -143,7 +178,7 @@ public class CheapAMR extends CheapSoundFile {
                 ((0xff & header[3]));
 
             if (boxLen >= 4 && boxLen <= mFileSize - 8) {
-                stream.skip(boxLen - 12);
+                skip(stream, boxLen - 12);
                 mOffset += boxLen - 12;
             }
 
@@ -151,7 +186,7 @@ public class CheapAMR extends CheapSoundFile {
         }
     }
 
-    private void parse3gpp(InputStream stream, int maxLen)
+    private void parse3gpp(InputStream stream, long maxLen)
             throws java.io.IOException {
         if (maxLen < 8)
             return;
@@ -160,47 +195,88 @@ public class CheapAMR extends CheapSoundFile {
         stream.read(boxHeader, 0, 8);
         mOffset += 8;
 
-        int boxLen =
-            ((0xff & boxHeader[0]) << 24) |
+        long boxLen =
+            ((0xffL & boxHeader[0]) << 24) |
             ((0xff & boxHeader[1]) << 16) |
             ((0xff & boxHeader[2]) << 8) |
             ((0xff & boxHeader[3]));
+        int headerLen = 8;
+
+        if (boxLen == 1 && maxLen >= 16) {
+            // A box over 4 GB has its 64-bit size after the type
+            byte[] largeSize = new byte[8];
+            stream.read(largeSize, 0, 8);
+            mOffset += 8;
+            boxLen = 0;
+            for (int i = 0; i < 8; i++) {
+                boxLen = (boxLen << 8) | (0xff & largeSize[i]);
+            }
+            headerLen = 16;
+        }
 
-        if (boxLen > maxLen || boxLen <= 0)
+        if (boxLen > maxLen || boxLen < headerLen)
             return;
 
         if (boxHeader[4] == 'm' &&
             boxHeader[5] == 'd' &&
             boxHeader[6] == 'a' &&
             boxHeader[7] == 't') {
-            parseAMR(stream, boxLen);
+            // mOffset is past the header already
+            parseAMR(stream, boxLen - headerLen);
             return;
         }
 
-	stream.skip(boxLen - 8);
-	mOffset += (boxLen - 8);
+        skip(stream, boxLen - headerLen);
+        mOffset += (boxLen - headerLen);
 
         parse3gpp(stream, maxLen - boxLen);
     }
 
-    void parseAMR(InputStream stream, int maxLen)
+    /**
+     * Skips count bytes; a buffered stream only skips what it has
+     * buffered at a time.
+     */
+    private static void skip(InputStream stream, long count)
             throws java.io.IOException {
-        int[] prevEner = new int[4];
-        for (int i = 0; i < 4; i++) {
-            prevEner[i] = 0;
+        while (count > 0) {
+            long skipped = stream.skip(count);
+            if (skipped <= 0) {
+                return;
+            }
+            count -= skipped;
         }
+    }
 
-        int[] prevEnerMR122 = new int[4];
-        for (int i = 0; i < 4; i++) {
-            prevEnerMR122[i] = -2381;
+    void parseAMR(InputStream stream, long maxLen)
+            throws java.io.IOException {
+        // Frames past the end of the file would read as zeros; leave
+        // such broken files to the sequential parser.
+        if (mParallelScanEnabled &&
+            ParallelScanner.getParallelism() > 1 &&
+            maxLen >= PARALLEL_MIN_BYTES &&
+            mOffset + maxLen <= mFileSize) {
+            parseAMRParallel(stream, maxLen);
+            return;
         }
 
-        int originalMaxLen = maxLen;
-        int bytesTotal = 0;
+        FrameDecoder decoder = new FrameDecoder();
+        ensureFrames(estimateNumFrames(stream, maxLen));
+
+        long originalMaxLen = maxLen;
+        long bytesTotal = 0;
         while (maxLen > 0) {
-            int bytesConsumed = parseAMRFrame(stream, maxLen, prevEner);
+            // If the estimate was too low, grow once to what the rest of
+            // the stream can hold at most
+            if (mNumFrames + MAX_GAINS_PER_FRAME > mMaxFrames) {
+                ensureFrames(mNumFrames + getMaxNumFrames(maxLen));
+            }
+
+            int bytesConsumed = parseAMRFrame(stream, maxLen, decoder);
             bytesTotal += bytesConsumed;
             maxLen -= bytesConsumed;
+            if (!deliverFrames(mNumFrames)) {
+                break;
+            }
 
             if (mProgressListener != null) {
                 boolean keepGoing = mProgressListener.reportProgress(
@@ -212,580 +288,846 @@ public class CheapAMR extends CheapSoundFile {
         }
     }
 
-    int parseAMRFrame(InputStream stream, int maxLen, int[] prevEner)
+    int parseAMRFrame(InputStream stream, long maxLen, FrameDecoder decoder)
             throws java.io.IOException {
-        int frameOffset = mOffset;
-        byte[] frameTypeHeader = new byte[1];
-        stream.read(frameTypeHeader, 0, 1);
+        long frameOffset = mOffset;
+        int frameTypeHeader = stream.read();
+        if (frameTypeHeader < 0) {
+            frameTypeHeader = 0;
+        }
         mOffset += 1;
-        int frameType = ((0xff & frameTypeHeader[0]) >> 3) % 0x0F;
-        int frameQuality = ((0xff & frameTypeHeader[0]) >> 2) & 0x01;
+        int frameType = (frameTypeHeader >> 3) % 0x0F;
         int blockSize = BLOCK_SIZES[frameType];
 
         if (blockSize + 1 > maxLen) {
             // We can't read the full frame, so consume the remaining
             // bytes to end processing the AMR stream.
-            return maxLen;
+            return (int) maxLen;
         }
 
         if (blockSize == 0) {
             return 1;
         }
 
-        byte[] v = new byte[blockSize];
-        stream.read(v, 0, blockSize);
-        mOffset += blockSize;
-
-        int[] bits = new int[blockSize * 8];
-        int ii = 0;
-        int value = 0xff & v[ii];
-        for (int i = 0; i < blockSize * 8; i++) {
-            bits[i] = ((value & 0x80) >> 7);
-            value <<= 1;
-            if ((i & 0x07) == 0x07 && i < blockSize * 8 - 1) {
-                ii += 1;
-                value = 0xff & v[ii];
+        byte[] v = decoder.mFrame;
+        int read = 0;
+        while (read < blockSize) {
+            int count = stream.read(v, read, blockSize - read);
+            if (count < 0) {
+                // Past the end of the file the frame reads as zeros
+                java.util.Arrays.fill(v, read, blockSize, (byte) 0);
+                break;
             }
+            read += count;
         }
+        mOffset += blockSize;
 
-	int[] gain;
         switch (frameType) {
-	case 0:
-            mBitRate = 5;
-            gain = new int[4];
-            gain[0] =
-                0x01 * bits[28] +
-                0x02 * bits[29] +
-                0x04 * bits[30] +
-                0x08 * bits[31] +
-                0x10 * bits[46] +
-                0x20 * bits[47] +
-		0x40 * bits[48] +
-		0x80 * bits[49];
-            gain[1] = gain[0];
-            gain[2] =
-                0x01 * bits[32] +
-                0x02 * bits[33] +
-                0x04 * bits[34] +
-                0x08 * bits[35] +
-                0x10 * bits[40] +
-                0x20 * bits[41] +
-                0x40 * bits[42] +
-                0x80 * bits[43];
-            gain[3] = gain[2];
-
-            for (int i = 0; i < 4; i++) {
-		int index = gain[i] * 4 + (i & 1) * 2 + 1;
-		int gFac = GAIN_FAC_MR475[index];
-
-                double log2 = Math.log(gFac) / Math.log(2);
-                int exp = (int)log2;
-                int frac = (int)((log2 - exp) * 32768);
-
-		exp -= 12;
-		int tmp = exp * 49320;
-		tmp += ((frac * 24660) >> 15) * 2;
-		int quaEner = ((tmp * 8192) + 0x8000) >> 16;
-
-                int gcode0 =
-                    (385963008 +
-                     prevEner[0] * 5571 +
-                     prevEner[1] * 4751 +
-                     prevEner[2] * 2785 +
-                     prevEner[3] * 1556) >> 15;
-
-                prevEner[3] = prevEner[2];
-                prevEner[2] = prevEner[1];
-                prevEner[1] = prevEner[0];
-                prevEner[0] = quaEner;
-
-                int frameGainEstimate = (gcode0 * gFac) >> 24;
-
-                addFrame(frameOffset, blockSize + 1, frameGainEstimate);
-            }
-
-	    break;
-
+        case 0:
         case 1:
             mBitRate = 5;
-            gain = new int[4];
-            gain[0] =
-                0x01 * bits[24] +
-                0x02 * bits[25] +
-                0x04 * bits[26] +
-                0x08 * bits[36] +
-                0x10 * bits[45] +
-                0x20 * bits[55];
-            gain[1] =
-                0x01 * bits[27] +
-                0x02 * bits[28] +
-                0x04 * bits[29] +
-                0x08 * bits[37] +
-                0x10 * bits[46] +
-                0x20 * bits[56];
-            gain[2] =
-                0x01 * bits[30] +
-                0x02 * bits[31] +
-                0x04 * bits[32] +
-                0x08 * bits[38] +
-                0x10 * bits[47] +
-                0x20 * bits[57];
-            gain[3] =
-                0x01 * bits[33] +
-                0x02 * bits[34] +
-                0x04 * bits[35] +
-                0x08 * bits[39] +
-                0x10 * bits[48] +
-                0x20 * bits[58];
-
-            for (int i = 0; i < 4; i++) {
-                int gcode0 =
-                    (385963008 +
-                     prevEner[0] * 5571 +
-                     prevEner[1] * 4751 +
-                     prevEner[2] * 2785 +
-                     prevEner[3] * 1556) >> 15;
-                int quaEner = QUA_ENER_MR515[gain[i]];
-                int gFac = GAIN_FAC_MR515[gain[i]];
-
-                prevEner[3] = prevEner[2];
-                prevEner[2] = prevEner[1];
-                prevEner[1] = prevEner[0];
-                prevEner[0] = quaEner;
-
-                int frameGainEstimate = (gcode0 * gFac) >> 24;
-
-                addFrame(frameOffset, blockSize + 1, frameGainEstimate);
-            }
-
             break;
         case 7:
             mBitRate = 12;
-            int[] adaptiveIndex = new int[4];
-            int[] adaptiveGain = new int[4];
-            int[] fixedGain = new int[4];
-            int[][] pulse = new int[4][];
-            for (int i = 0; i < 4; i++) {
-                pulse[i] = new int[10];
+            break;
+        default:
+            // Counted as one frame with a gain of 1 below; a damaged
+            // file can have plenty of these, so they aren't reported
+            break;
+        }
+
+        int numGains = decoder.decode(frameType, v, 0);
+        for (int i = 0; i < numGains; i++) {
+            addFrame(frameOffset, blockSize + 1, decoder.mGains[i]);
+        }
+
+        // Return number of bytes consumed
+        return blockSize + 1;
+    }
+
+    /**
+     * Parses the AMR stream on all cores.  A first pass only walks the
+     * frame headers, which is cheap since the frame type gives the size
+     * of the frame, to split the stream into chunks and count the gains
+     * exactly.  The chunks are then decoded at the same time.
+     *
+     * Decoding a frame depends on the gain predictor state left by the
+     * frames before it, so each chunk first decodes the last frame before
+     * it that updates the predictor, and throws away its gains.  The four
+     * subframes of such a frame replace all four taps of the predictor
+     * and other frames don't touch it, so one frame of warm-up gives the
+     * state exactly: the gains are the same as those of parsing on one
+     * thread, with no tolerance needed at the chunk boundaries.
+     */
+    private void parseAMRParallel(InputStream stream, long maxLen)
+            throws java.io.IOException {
+        mParsedInParallel = true;
+        long chunkBytes = Math.max(
+            maxLen / (ParallelScanner.getParallelism() * CHUNKS_PER_THREAD),
+            MIN_CHUNK_BYTES);
+
+        List<DecodeChunk> chunks = new ArrayList<>();
+        DecodeChunk chunk = new DecodeChunk(mOffset, mOffset, 0);
+        chunks.add(chunk);
+        long lastDecodable = -1;
+        int numGains = 0;
+        long bytesLeft = maxLen;
+        while (bytesLeft > 0) {
+            long frameOffset = mOffset;
+            if (frameOffset - chunk.mStart >= chunkBytes) {
+                chunk.mEnd = frameOffset;
+                chunk = new DecodeChunk(
+                    (lastDecodable >= 0) ? lastDecodable : frameOffset,
+                    frameOffset, numGains);
+                chunks.add(chunk);
             }
-            getMR122Params(bits, adaptiveIndex, adaptiveGain, fixedGain, pulse);
 
-            int T0 = 0;
-            for (int subframe = 0; subframe < 4; subframe++) {
-                int[] code = new int[40];
-                for (int i = 0; i < 40; i++) {
-                    code[i] = 0;
-                }
+            // Same steps as parseAMRFrame, without the decoding
+            int frameType = (stream.read() >> 3) % 0x0F;
+            int blockSize = BLOCK_SIZES[frameType];
+            mOffset += 1;
+            if (blockSize + 1 > bytesLeft) {
+                break;
+            }
+            bytesLeft -= blockSize + 1;
+            if (blockSize == 0) {
+                continue;
+            }
+            skip(stream, blockSize);
+            mOffset += blockSize;
+
+            switch (frameType) {
+            case 0:
+            case 1:
+                mBitRate = 5;
+                lastDecodable = frameOffset;
+                break;
+            case 7:
+                mBitRate = 12;
+                lastDecodable = frameOffset;
+                break;
+            }
+            numGains += getNumGains(frameType);
+        }
+        chunk.mEnd = mOffset - ((bytesLeft > 0) ? 1 : 0);
+
+        ensureFrames(numGains);
+        final int totalGains = numGains;
+        FileInputStream input = new FileInputStream(mInputFile);
+        try {
+            FileChannel channel = input.getChannel();
+            for (DecodeChunk c : chunks) {
+                c.mChannel = channel;
+            }
+            new ParallelScanner(mProgressListener, maxLen).run(chunks, index ->
+                deliverFrames((index + 1 < chunks.size()) ?
+                              chunks.get(index + 1).mFirstGain : totalGains));
+        } finally {
+            input.close();
+        }
 
-                int sign;
-                for (int j = 0; j < 5; j++) {
-                    if (((pulse[subframe][j] >> 3) & 1) == 0) {
-                        sign = 4096;
-                    } else {
-                        sign = -4096;
-                    }
+        mNumFrames = numGains;
+        for (int i = 0; i < numGains; i++) {
+            int gain = mFrameGains[i];
+            if (gain < mMinGain)
+                mMinGain = gain;
+            if (gain > mMaxGain)
+                mMaxGain = gain;
+        }
+    }
+
+    /**
+     * Decodes the frames that start between mStart and mEnd into
+     * mFrameGains, from mFirstGain on, after warming up the predictor
+     * with the frames from mWarmUpStart.
+     */
+    private class DecodeChunk implements ParallelScanner.Chunk {
+        final long mWarmUpStart;
+        final long mStart;
+        final int mFirstGain;
+        long mEnd;
+        FileChannel mChannel;
+
+        DecodeChunk(long warmUpStart, long start, int firstGain) {
+            mWarmUpStart = warmUpStart;
+            mStart = start;
+            mFirstGain = firstGain;
+        }
 
-                    int pos1 = j + GRAY[pulse[subframe][j] & 7] * 5;
-                    int pos2 = j + GRAY[pulse[subframe][j + 5] & 7] * 5;
-                    code[pos1] = sign;
-                    if (pos2 < pos1) {
-                        sign = -sign;
+        public void scan(ParallelScanner scanner) throws java.io.IOException {
+            FrameDecoder decoder = new FrameDecoder();
+            byte[] window = new byte[BUFFER_SIZE];
+            ByteBuffer wrapper = ByteBuffer.wrap(window);
+            long windowStart = mWarmUpStart;
+            long windowEnd = mWarmUpStart;
+            int gainIndex = mFirstGain;
+            long reported = mStart;
+
+            long offset = mWarmUpStart;
+            while (offset < mEnd) {
+                // The largest frame is 32 bytes with its header
+                if (offset + 32 > windowEnd && windowEnd < mEnd) {
+                    wrapper.clear();
+                    wrapper.limit((int) Math.min(BUFFER_SIZE, mEnd - offset));
+                    while (wrapper.hasRemaining()) {
+                        if (mChannel.read(wrapper, offset + wrapper.position()) < 0) {
+                            throw new java.io.EOFException();
+                        }
                     }
-                    code[pos2] = code[pos2] + sign;
+                    windowStart = offset;
+                    windowEnd = offset + wrapper.position();
                 }
 
-                int index = adaptiveIndex[subframe];
-
-                if (subframe == 0 || subframe == 2) {
-                    if (index < 463) {
-                        T0 = (index + 5) / 6 + 17;
-                    } else {
-                        T0 = index - 368;
-                    }
-                } else {
-                    int pitMin = 18;
-                    int pitMax = 143;
-                    int T0Min = T0 - 5;
-                    if (T0Min < pitMin) {
-                        T0Min = pitMin;
-                    }
-                    int T0Max = T0Min + 9;
-                    if (T0Max > pitMax) {
-                        T0Max = pitMax;
-                        T0Min = T0Max - 9;
+                int i = (int) (offset - windowStart);
+                int frameType = ((0xff & window[i]) >> 3) % 0x0F;
+                int blockSize = BLOCK_SIZES[frameType];
+                if (blockSize > 0) {
+                    int numGains = decoder.decode(frameType, window, i + 1);
+                    if (offset >= mStart) {
+                        for (int g = 0; g < numGains; g++) {
+                            mFrameGains[gainIndex++] = decoder.mGains[g];
+                        }
                     }
-                    T0 = T0Min + (index + 5) / 6 - 1;
                 }
+                offset += blockSize + 1;
 
-                int pitSharp =
-                    (QUA_GAIN_PITCH[adaptiveGain[subframe]] >> 2) << 2;
-                if (pitSharp > 16383) {
-                    pitSharp = 32767;
-                } else {
-                    pitSharp *= 2;
+                if (offset - reported >= PROGRESS_INTERVAL_BYTES) {
+                    scanner.addProgress(offset - reported);
+                    reported = offset;
+                    if (scanner.isCancelled()) {
+                        return;
+                    }
                 }
+            }
+            scanner.addProgress(Math.max(mEnd - reported, 0));
+        }
+    }
 
-                for (int j = T0; j < 40; j++) {
-                    code[j] += (code[j - T0] * pitSharp) >> 15;
-                }
-            
-                int enerCode = 0;
-                for (int j = 0; j < 40; j++) {
-                    enerCode += code[j] * code[j];
+    /**
+     * Estimates how many frames the AMR stream of the given length holds.
+     * Frame sizes only depend on the frame type, so the types of the
+     * first frames, read ahead and then reset, give the frames per byte.
+     */
+    private int estimateNumFrames(InputStream stream, long maxLen)
+            throws java.io.IOException {
+        if (!stream.markSupported()) {
+            return getMaxNumFrames(maxLen);
+        }
+
+        stream.mark(BUFFER_SIZE);
+        int sampleBytes = 0;
+        int sampleFrames = 0;
+        for (int i = 0; i < ESTIMATE_SAMPLE_FRAMES; i++) {
+            int frameTypeHeader = stream.read();
+            if (frameTypeHeader < 0) {
+                break;
+            }
+            int frameType = (frameTypeHeader >> 3) % 0x0F;
+            int blockSize = BLOCK_SIZES[frameType];
+            if (sampleBytes + blockSize + 1 > maxLen ||
+                sampleBytes + blockSize + 1 > BUFFER_SIZE) {
+                break;
+            }
+            skip(stream, blockSize);
+            sampleBytes += blockSize + 1;
+            sampleFrames += getNumGains(frameType);
+        }
+        stream.reset();
+
+        if (sampleBytes == 0) {
+            return 0;
+        }
+        return (int) Math.min(
+            (maxLen * sampleFrames + sampleBytes - 1) / sampleBytes,
+            getMaxNumFrames(maxLen));
+    }
+
+    /**
+     * Returns the most frames an AMR stream of the given length can hold:
+     * all MR475 frames, 13 bytes each, make for the most subframe gains.
+     * Capped at the largest array we can allocate.
+     */
+    private static int getMaxNumFrames(long len) {
+        return (int) Math.min(
+            (len + BLOCK_SIZES[0]) / (BLOCK_SIZES[0] + 1) * MAX_GAINS_PER_FRAME,
+            Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Returns how many gains parseAMRFrame adds for a frame of the given
+     * type, see FrameDecoder.decode.
+     */
+    private static int getNumGains(int frameType) {
+        if (BLOCK_SIZES[frameType] == 0) {
+            return 0;
+        }
+        switch (frameType) {
+        case 0:
+        case 1:
+        case 7:
+            return MAX_GAINS_PER_FRAME;
+        default:
+            return 1;
+        }
+    }
+
+    private void ensureFrames(int maxFrames) {
+        if (maxFrames > mMaxFrames) {
+            mFrameGains = java.util.Arrays.copyOf(mFrameGains, maxFrames);
+            mMaxFrames = maxFrames;
+        }
+    }
+
+    void addFrame(long offset, int frameSize, int gain) {
+        mFrameGains[mNumFrames] = gain;
+        if (gain < mMinGain)
+            mMinGain = gain;
+        if (gain > mMaxGain)
+            mMaxGain = gain;
+
+        mNumFrames++;
+    }
+
+    /**
+     * Estimates the gain of each subframe of AMR frames.  The gain
+     * predictor state carries over from one frame to the next, so a
+     * decoder has to see all frames of a stream in order.  Fields are
+     * read straight from the packed frame bytes and all scratch arrays
+     * are allocated up front, so decoding a frame allocates nothing.
+     */
+    static class FrameDecoder {
+        // Largest block size, see BLOCK_SIZES
+        final byte[] mFrame = new byte[31];
+        final int[] mGains = new int[4];
+
+        private final BitReader mBits = new BitReader();
+        private final int[] mPrevEner = new int[4];
+        private final int[] mGainIndex = new int[4];
+        private final int[] mAdaptiveIndex = new int[4];
+        private final int[] mAdaptiveGain = new int[4];
+        private final int[] mFixedGain = new int[4];
+        private final int[][] mPulse = new int[4][10];
+        private final int[] mCode = new int[40];
+
+        /**
+         * Decodes the frame of the given type whose block, without the
+         * frame type byte, starts at data[offset].  Stores the gains of
+         * its subframes in mGains and returns how many there are: 4 for
+         * the frame types we can decode, otherwise 1 with a gain of 1.
+         */
+        int decode(int frameType, byte[] data, int offset) {
+            BitReader bits = mBits;
+            bits.reset(data, offset);
+            int[] gains = mGains;
+            int[] gain = mGainIndex;
+            int numGains = 0;
+
+            switch (frameType) {
+            case 0:
+                gain[0] =
+                    0x01 * bits.bitAt(28) +
+                    0x02 * bits.bitAt(29) +
+                    0x04 * bits.bitAt(30) +
+                    0x08 * bits.bitAt(31) +
+                    0x10 * bits.bitAt(46) +
+                    0x20 * bits.bitAt(47) +
+                    0x40 * bits.bitAt(48) +
+                    0x80 * bits.bitAt(49);
+                gain[1] = gain[0];
+                gain[2] =
+                    0x01 * bits.bitAt(32) +
+                    0x02 * bits.bitAt(33) +
+                    0x04 * bits.bitAt(34) +
+                    0x08 * bits.bitAt(35) +
+                    0x10 * bits.bitAt(40) +
+                    0x20 * bits.bitAt(41) +
+                    0x40 * bits.bitAt(42) +
+                    0x80 * bits.bitAt(43);
+                gain[3] = gain[2];
+
+                for (int i = 0; i < 4; i++) {
+                    int index = gain[i] * 4 + (i & 1) * 2 + 1;
+                    int gFac = GAIN_FAC_MR475[index];
+
+                    double log2 = Math.log(gFac) / Math.log(2);
+                    int exp = (int)log2;
+                    int frac = (int)((log2 - exp) * 32768);
+
+                    exp -= 12;
+                    int tmp = exp * 49320;
+                    tmp += ((frac * 24660) >> 15) * 2;
+                    int quaEner = ((tmp * 8192) + 0x8000) >> 16;
+
+                    int gcode0 =
+                        (385963008 +
+                         mPrevEner[0] * 5571 +
+                         mPrevEner[1] * 4751 +
+                         mPrevEner[2] * 2785 +
+                         mPrevEner[3] * 1556) >> 15;
+
+                    mPrevEner[3] = mPrevEner[2];
+                    mPrevEner[2] = mPrevEner[1];
+                    mPrevEner[1] = mPrevEner[0];
+                    mPrevEner[0] = quaEner;
+
+                    int frameGainEstimate = (gcode0 * gFac) >> 24;
+
+                    gains[numGains++] = frameGainEstimate;
                 }
 
-                if ((0x3fffffff <= enerCode) || (enerCode < 0)) {
-                    enerCode = 0x7fffffff;
-                } else {
-                    enerCode *= 2;
+                break;
+
+            case 1:
+                gain[0] =
+                    0x01 * bits.bitAt(24) +
+                    0x02 * bits.bitAt(25) +
+                    0x04 * bits.bitAt(26) +
+                    0x08 * bits.bitAt(36) +
+                    0x10 * bits.bitAt(45) +
+                    0x20 * bits.bitAt(55);
+                gain[1] =
+                    0x01 * bits.bitAt(27) +
+                    0x02 * bits.bitAt(28) +
+                    0x04 * bits.bitAt(29) +
+                    0x08 * bits.bitAt(37) +
+                    0x10 * bits.bitAt(46) +
+                    0x20 * bits.bitAt(56);
+                gain[2] =
+                    0x01 * bits.bitAt(30) +
+                    0x02 * bits.bitAt(31) +
+                    0x04 * bits.bitAt(32) +
+                    0x08 * bits.bitAt(38) +
+                    0x10 * bits.bitAt(47) +
+                    0x20 * bits.bitAt(57);
+                gain[3] =
+                    0x01 * bits.bitAt(33) +
+                    0x02 * bits.bitAt(34) +
+                    0x04 * bits.bitAt(35) +
+                    0x08 * bits.bitAt(39) +
+                    0x10 * bits.bitAt(48) +
+                    0x20 * bits.bitAt(58);
+
+                for (int i = 0; i < 4; i++) {
+                    int gcode0 =
+                        (385963008 +
+                         mPrevEner[0] * 5571 +
+                         mPrevEner[1] * 4751 +
+                         mPrevEner[2] * 2785 +
+                         mPrevEner[3] * 1556) >> 15;
+                    int quaEner = QUA_ENER_MR515[gain[i]];
+                    int gFac = GAIN_FAC_MR515[gain[i]];
+
+                    mPrevEner[3] = mPrevEner[2];
+                    mPrevEner[2] = mPrevEner[1];
+                    mPrevEner[1] = mPrevEner[0];
+                    mPrevEner[0] = quaEner;
+
+                    int frameGainEstimate = (gcode0 * gFac) >> 24;
+
+                    gains[numGains++] = frameGainEstimate;
                 }
-                enerCode = ((enerCode + 0x8000) >> 16) * 52428;
 
-                double log2 = Math.log(enerCode) / Math.log(2);
-                int exp = (int)log2;
-                int frac = (int)((log2 - exp) * 32768);
-                enerCode = ((exp - 30) << 16) + (frac * 2);
+                break;
+            case 7:
+                int[] adaptiveIndex = mAdaptiveIndex;
+                int[] adaptiveGain = mAdaptiveGain;
+                int[] fixedGain = mFixedGain;
+                int[][] pulse = mPulse;
+                getMR122Params(bits, adaptiveIndex, adaptiveGain, fixedGain, pulse);
+
+                int T0 = 0;
+                for (int subframe = 0; subframe < 4; subframe++) {
+                    int[] code = mCode;
+                    for (int i = 0; i < 40; i++) {
+                        code[i] = 0;
+                    }
 
-                int ener =
-                    prevEner[0] * 44 +
-                    prevEner[1] * 37 +
-                    prevEner[2] * 22 +
-                    prevEner[3] * 12;
+                    int sign;
+                    for (int j = 0; j < 5; j++) {
+                        if (((pulse[subframe][j] >> 3) & 1) == 0) {
+                            sign = 4096;
+                        } else {
+                            sign = -4096;
+                        }
+
+                        int pos1 = j + GRAY[pulse[subframe][j] & 7] * 5;
+                        int pos2 = j + GRAY[pulse[subframe][j + 5] & 7] * 5;
+                        code[pos1] = sign;
+                        if (pos2 < pos1) {
+                            sign = -sign;
+                        }
+                        code[pos2] = code[pos2] + sign;
+                    }
 
-                ener = 2 * ener + 783741;
-                ener = (ener - enerCode) / 2;
+                    int index = adaptiveIndex[subframe];
 
-                int expGCode = ener >> 16;
-                int fracGCode = (ener >> 1) - (expGCode << 15);
+                    if (subframe == 0 || subframe == 2) {
+                        if (index < 463) {
+                            T0 = (index + 5) / 6 + 17;
+                        } else {
+                            T0 = index - 368;
+                        }
+                    } else {
+                        int pitMin = 18;
+                        int pitMax = 143;
+                        int T0Min = T0 - 5;
+                        if (T0Min < pitMin) {
+                            T0Min = pitMin;
+                        }
+                        int T0Max = T0Min + 9;
+                        if (T0Max > pitMax) {
+                            T0Max = pitMax;
+                            T0Min = T0Max - 9;
+                        }
+                        T0 = T0Min + (index + 5) / 6 - 1;
+                    }
 
-                int gCode0 = (int)
-                    (Math.pow(2.0, expGCode + (fracGCode / 32768.0)) + 0.5);
+                    int pitSharp =
+                        (QUA_GAIN_PITCH[adaptiveGain[subframe]] >> 2) << 2;
+                    if (pitSharp > 16383) {
+                        pitSharp = 32767;
+                    } else {
+                        pitSharp *= 2;
+                    }
 
-                if (gCode0 <= 2047) {
-                    gCode0 = gCode0 << 4;
-                } else {
-                    gCode0 = 32767;
-                }
+                    for (int j = T0; j < 40; j++) {
+                        code[j] += (code[j - T0] * pitSharp) >> 15;
+                    }
+            
+                    int enerCode = 0;
+                    for (int j = 0; j < 40; j++) {
+                        enerCode += code[j] * code[j];
+                    }
 
-                index = fixedGain[subframe];
+                    if ((0x3fffffff <= enerCode) || (enerCode < 0)) {
+                        enerCode = 0x7fffffff;
+                    } else {
+                        enerCode *= 2;
+                    }
+                    enerCode = ((enerCode + 0x8000) >> 16) * 52428;
 
-                int gainCode =
-                    ((gCode0 * QUA_GAIN_CODE[3 * index]) >> 15) << 1;
+                    double log2 = Math.log(enerCode) / Math.log(2);
+                    int exp = (int)log2;
+                    int frac = (int)((log2 - exp) * 32768);
+                    enerCode = ((exp - 30) << 16) + (frac * 2);
 
-                if ((gainCode & 0xFFFF8000) != 0) {
-                    gainCode = 32767;
-                }
+                    int ener =
+                        mPrevEner[0] * 44 +
+                        mPrevEner[1] * 37 +
+                        mPrevEner[2] * 22 +
+                        mPrevEner[3] * 12;
 
-                int frameGainEstimate = gainCode;
+                    ener = 2 * ener + 783741;
+                    ener = (ener - enerCode) / 2;
 
-                addFrame(frameOffset, blockSize + 1, frameGainEstimate);
+                    int expGCode = ener >> 16;
+                    int fracGCode = (ener >> 1) - (expGCode << 15);
 
-                int quaEnerMR122 = QUA_GAIN_CODE[3 * index + 1];
-                prevEner[3] = prevEner[2];
-                prevEner[2] = prevEner[1];
-                prevEner[1] = prevEner[0];
-                prevEner[0] = quaEnerMR122;
-            }
-            break;
+                    int gCode0 = (int)
+                        (Math.pow(2.0, expGCode + (fracGCode / 32768.0)) + 0.5);
 
-        default:
-            System.out.println("Unsupported frame type: " + frameType);
-            addFrame(frameOffset, blockSize + 1, 1);
-            break;
-        }
+                    if (gCode0 <= 2047) {
+                        gCode0 = gCode0 << 4;
+                    } else {
+                        gCode0 = 32767;
+                    }
 
-        // Return number of bytes consumed
-        return blockSize + 1;
-    }
+                    index = fixedGain[subframe];
 
-    void addFrame(int offset, int frameSize, int gain) {
-        mFrameGains[mNumFrames] = gain;
-        if (gain < mMinGain)
-            mMinGain = gain;
-        if (gain > mMaxGain)
-            mMaxGain = gain;
+                    int gainCode =
+                        ((gCode0 * QUA_GAIN_CODE[3 * index]) >> 15) << 1;
 
-        mNumFrames++;
-        if (mNumFrames == mMaxFrames) {
-            int newMaxFrames = mMaxFrames * 2;
-
-            int[] newOffsets = new int[newMaxFrames];
-            int[] newLens = new int[newMaxFrames];
-            int[] newGains = new int[newMaxFrames];
-            for (int i = 0; i < mNumFrames; i++) {
-                newGains[i] = mFrameGains[i];
+                    if ((gainCode & 0xFFFF8000) != 0) {
+                        gainCode = 32767;
+                    }
+
+                    int frameGainEstimate = gainCode;
+
+                    gains[numGains++] = frameGainEstimate;
+
+                    int quaEnerMR122 = QUA_GAIN_CODE[3 * index + 1];
+                    mPrevEner[3] = mPrevEner[2];
+                    mPrevEner[2] = mPrevEner[1];
+                    mPrevEner[1] = mPrevEner[0];
+                    mPrevEner[0] = quaEnerMR122;
+                }
+                break;
+
+            default:
+                gains[numGains++] = 1;
+                break;
             }
-            mFrameGains = newGains;
-            mMaxFrames = newMaxFrames;
+
+            return numGains;
         }
-    }
 
-    void getMR122Params(int[] bits,
-                        int[] adaptiveIndex,
-                        int[] adaptiveGain,
-                        int[] fixedGain,
-                        int[][] pulse) {
-        adaptiveIndex[0] =
-            0x01 * bits[45] +
-            0x02 * bits[43] +
-            0x04 * bits[41] +
-            0x08 * bits[39] +
-            0x10 * bits[37] +
-            0x20 * bits[35] +
-            0x40 * bits[33] +
-            0x80 * bits[31] +
-            0x100 * bits[29];
-        adaptiveIndex[1] =
-            0x01 * bits[242] +
-            0x02 * bits[79] +
-            0x04 * bits[77] +
-            0x08 * bits[75] +
-            0x10 * bits[73] +
-            0x20 * bits[71];
-        adaptiveIndex[2] =
-            0x01 * bits[46] +
-            0x02 * bits[44] +
-            0x04 * bits[42] +
-            0x08 * bits[40] +
-            0x10 * bits[38] +
-            0x20 * bits[36] +
-            0x40 * bits[34] +
-            0x80 * bits[32] +
-            0x100 * bits[30];
-        adaptiveIndex[3] =
-            0x01 * bits[243] +
-            0x02 * bits[80] +
-            0x04 * bits[78] +
-            0x08 * bits[76] +
-            0x10 * bits[74] +
-            0x20 * bits[72];
-
-        adaptiveGain[0] =
-            0x01 * bits[88] +
-            0x02 * bits[55] +
-            0x04 * bits[51] +
-            0x08 * bits[47];
-        adaptiveGain[1] =
-            0x01 * bits[89] +
-            0x02 * bits[56] +
-            0x04 * bits[52] +
-            0x08 * bits[48];
-        adaptiveGain[2] =
-            0x01 * bits[90] +
-            0x02 * bits[57] +
-            0x04 * bits[53] +
-            0x08 * bits[49];
-        adaptiveGain[3] =
-            0x01 * bits[91] +
-            0x02 * bits[58] +
-            0x04 * bits[54] +
-            0x08 * bits[50];
-
-        fixedGain[0] =
-            0x01 * bits[104] +
-            0x02 * bits[92] +
-            0x04 * bits[67] +
-            0x08 * bits[63] +
-            0x10 * bits[59];
-        fixedGain[1] =
-            0x01 * bits[105] +
-            0x02 * bits[93] +
-            0x04 * bits[68] +
-            0x08 * bits[64] +
-            0x10 * bits[60];
-        fixedGain[2] =
-            0x01 * bits[106] +
-            0x02 * bits[94] +
-            0x04 * bits[69] +
-            0x08 * bits[65] +
-            0x10 * bits[61];
-        fixedGain[3] =
-            0x01 * bits[107] +
-            0x02 * bits[95] +
-            0x04 * bits[70] +
-            0x08 * bits[66] +
-            0x10 * bits[62];
-
-        pulse[0][0] =
-            0x01 * bits[122] +
-            0x02 * bits[123] +
-            0x04 * bits[124] +
-            0x08 * bits[96];
-        pulse[0][1] =
-            0x01 * bits[125] +
-            0x02 * bits[126] +
-            0x04 * bits[127] +
-            0x08 * bits[100];
-        pulse[0][2] =
-            0x01 * bits[128] +
-            0x02 * bits[129] +
-            0x04 * bits[130] +
-            0x08 * bits[108];
-        pulse[0][3] =
-            0x01 * bits[131] +
-            0x02 * bits[132] +
-            0x04 * bits[133] +
-            0x08 * bits[112];
-        pulse[0][4] =
-            0x01 * bits[134] +
-            0x02 * bits[135] +
-            0x04 * bits[136] +
-            0x08 * bits[116];
-        pulse[0][5] =
-            0x01 * bits[182] +
-            0x02 * bits[183] +
-            0x04 * bits[184];
-        pulse[0][6] =
-            0x01 * bits[185] +
-            0x02 * bits[186] +
-            0x04 * bits[187];
-        pulse[0][7] =
-            0x01 * bits[188] +
-            0x02 * bits[189] +
-            0x04 * bits[190];
-        pulse[0][8] =
-            0x01 * bits[191] +
-            0x02 * bits[192] +
-            0x04 * bits[193];
-        pulse[0][9] =
-            0x01 * bits[194] +
-            0x02 * bits[195] +
-            0x04 * bits[196];
-        pulse[1][0] =
-            0x01 * bits[137] +
-            0x02 * bits[138] +
-            0x04 * bits[139] +
-            0x08 * bits[97];
-        pulse[1][1] =
-            0x01 * bits[140] +
-            0x02 * bits[141] +
-            0x04 * bits[142] +
-            0x08 * bits[101];
-        pulse[1][2] =
-            0x01 * bits[143] +
-            0x02 * bits[144] +
-            0x04 * bits[145] +
-            0x08 * bits[109];
-        pulse[1][3] =
-            0x01 * bits[146] +
-            0x02 * bits[147] +
-            0x04 * bits[148] +
-            0x08 * bits[113];
-        pulse[1][4] =
-            0x01 * bits[149] +
-            0x02 * bits[150] +
-            0x04 * bits[151] +
-            0x08 * bits[117];
-        pulse[1][5] =
-            0x01 * bits[197] +
-            0x02 * bits[198] +
-            0x04 * bits[199];
-        pulse[1][6] =
-            0x01 * bits[200] +
-            0x02 * bits[201] +
-            0x04 * bits[202];
-        pulse[1][7] =
-            0x01 * bits[203] +
-            0x02 * bits[204] +
-            0x04 * bits[205];
-        pulse[1][8] =
-            0x01 * bits[206] +
-            0x02 * bits[207] +
-            0x04 * bits[208];
-        pulse[1][9] =
-            0x01 * bits[209] +
-            0x02 * bits[210] +
-            0x04 * bits[211];
-        pulse[2][0] =
-            0x01 * bits[152] +
-            0x02 * bits[153] +
-            0x04 * bits[154] +
-            0x08 * bits[98];
-        pulse[2][1] =
-            0x01 * bits[155] +
-            0x02 * bits[156] +
-            0x04 * bits[157] +
-            0x08 * bits[102];
-        pulse[2][2] =
-            0x01 * bits[158] +
-            0x02 * bits[159] +
-            0x04 * bits[160] +
-            0x08 * bits[110];
-        pulse[2][3] =
-            0x01 * bits[161] +
-            0x02 * bits[162] +
-            0x04 * bits[163] +
-            0x08 * bits[114];
-        pulse[2][4] =
-            0x01 * bits[164] +
-            0x02 * bits[165] +
-            0x04 * bits[166] +
-            0x08 * bits[118];
-        pulse[2][5] =
-            0x01 * bits[212] +
-            0x02 * bits[213] +
-            0x04 * bits[214];
-        pulse[2][6] =
-            0x01 * bits[215] +
-            0x02 * bits[216] +
-            0x04 * bits[217];
-        pulse[2][7] =
-            0x01 * bits[218] +
-            0x02 * bits[219] +
-            0x04 * bits[220];
-        pulse[2][8] =
-            0x01 * bits[221] +
-            0x02 * bits[222] +
-            0x04 * bits[223];
-        pulse[2][9] =
-            0x01 * bits[224] +
-            0x02 * bits[225] +
-            0x04 * bits[226];
-        pulse[3][0] =
-            0x01 * bits[167] +
-            0x02 * bits[168] +
-            0x04 * bits[169] +
-            0x08 * bits[99];
-        pulse[3][1] =
-            0x01 * bits[170] +
-            0x02 * bits[171] +
-            0x04 * bits[172] +
-            0x08 * bits[103];
-        pulse[3][2] =
-            0x01 * bits[173] +
-            0x02 * bits[174] +
-            0x04 * bits[175] +
-            0x08 * bits[111];
-        pulse[3][3] =
-            0x01 * bits[176] +
-            0x02 * bits[177] +
-            0x04 * bits[178] +
-            0x08 * bits[115];
-        pulse[3][4] =
-            0x01 * bits[179] +
-            0x02 * bits[180] +
-            0x04 * bits[181] +
-            0x08 * bits[119];
-        pulse[3][5] =
-            0x01 * bits[227] +
-            0x02 * bits[228] +
-            0x04 * bits[229];
-        pulse[3][6] =
-            0x01 * bits[230] +
-            0x02 * bits[231] +
-            0x04 * bits[232];
-        pulse[3][7] =
-            0x01 * bits[233] +
-            0x02 * bits[234] +
-            0x04 * bits[235];
-        pulse[3][8] =
-            0x01 * bits[236] +
-            0x02 * bits[237] +
-            0x04 * bits[238];
-        pulse[3][9] =
-            0x01 * bits[239] +
-            0x02 * bits[240] +
-            0x04 * bits[241];
+        void getMR122Params(BitReader bits,
+                                int[] adaptiveIndex,
+                                int[] adaptiveGain,
+                                int[] fixedGain,
+                                int[][] pulse) {
+            adaptiveIndex[0] =
+                0x01 * bits.bitAt(45) +
+                0x02 * bits.bitAt(43) +
+                0x04 * bits.bitAt(41) +
+                0x08 * bits.bitAt(39) +
+                0x10 * bits.bitAt(37) +
+                0x20 * bits.bitAt(35) +
+                0x40 * bits.bitAt(33) +
+                0x80 * bits.bitAt(31) +
+                0x100 * bits.bitAt(29);
+            adaptiveIndex[1] =
+                0x01 * bits.bitAt(242) +
+                0x02 * bits.bitAt(79) +
+                0x04 * bits.bitAt(77) +
+                0x08 * bits.bitAt(75) +
+                0x10 * bits.bitAt(73) +
+                0x20 * bits.bitAt(71);
+            adaptiveIndex[2] =
+                0x01 * bits.bitAt(46) +
+                0x02 * bits.bitAt(44) +
+                0x04 * bits.bitAt(42) +
+                0x08 * bits.bitAt(40) +
+                0x10 * bits.bitAt(38) +
+                0x20 * bits.bitAt(36) +
+                0x40 * bits.bitAt(34) +
+                0x80 * bits.bitAt(32) +
+                0x100 * bits.bitAt(30);
+            adaptiveIndex[3] =
+                0x01 * bits.bitAt(243) +
+                0x02 * bits.bitAt(80) +
+                0x04 * bits.bitAt(78) +
+                0x08 * bits.bitAt(76) +
+                0x10 * bits.bitAt(74) +
+                0x20 * bits.bitAt(72);
+
+            adaptiveGain[0] =
+                0x01 * bits.bitAt(88) +
+                0x02 * bits.bitAt(55) +
+                0x04 * bits.bitAt(51) +
+                0x08 * bits.bitAt(47);
+            adaptiveGain[1] =
+                0x01 * bits.bitAt(89) +
+                0x02 * bits.bitAt(56) +
+                0x04 * bits.bitAt(52) +
+                0x08 * bits.bitAt(48);
+            adaptiveGain[2] =
+                0x01 * bits.bitAt(90) +
+                0x02 * bits.bitAt(57) +
+                0x04 * bits.bitAt(53) +
+                0x08 * bits.bitAt(49);
+            adaptiveGain[3] =
+                0x01 * bits.bitAt(91) +
+                0x02 * bits.bitAt(58) +
+                0x04 * bits.bitAt(54) +
+                0x08 * bits.bitAt(50);
+
+            fixedGain[0] =
+                0x01 * bits.bitAt(104) +
+                0x02 * bits.bitAt(92) +
+                0x04 * bits.bitAt(67) +
+                0x08 * bits.bitAt(63) +
+                0x10 * bits.bitAt(59);
+            fixedGain[1] =
+                0x01 * bits.bitAt(105) +
+                0x02 * bits.bitAt(93) +
+                0x04 * bits.bitAt(68) +
+                0x08 * bits.bitAt(64) +
+                0x10 * bits.bitAt(60);
+            fixedGain[2] =
+                0x01 * bits.bitAt(106) +
+                0x02 * bits.bitAt(94) +
+                0x04 * bits.bitAt(69) +
+                0x08 * bits.bitAt(65) +
+                0x10 * bits.bitAt(61);
+            fixedGain[3] =
+                0x01 * bits.bitAt(107) +
+                0x02 * bits.bitAt(95) +
+                0x04 * bits.bitAt(70) +
+                0x08 * bits.bitAt(66) +
+                0x10 * bits.bitAt(62);
+
+            pulse[0][0] =
+                0x01 * bits.bitAt(122) +
+                0x02 * bits.bitAt(123) +
+                0x04 * bits.bitAt(124) +
+                0x08 * bits.bitAt(96);
+            pulse[0][1] =
+                0x01 * bits.bitAt(125) +
+                0x02 * bits.bitAt(126) +
+                0x04 * bits.bitAt(127) +
+                0x08 * bits.bitAt(100);
+            pulse[0][2] =
+                0x01 * bits.bitAt(128) +
+                0x02 * bits.bitAt(129) +
+                0x04 * bits.bitAt(130) +
+                0x08 * bits.bitAt(108);
+            pulse[0][3] =
+                0x01 * bits.bitAt(131) +
+                0x02 * bits.bitAt(132) +
+                0x04 * bits.bitAt(133) +
+                0x08 * bits.bitAt(112);
+            pulse[0][4] =
+                0x01 * bits.bitAt(134) +
+                0x02 * bits.bitAt(135) +
+                0x04 * bits.bitAt(136) +
+                0x08 * bits.bitAt(116);
+            pulse[0][5] =
+                0x01 * bits.bitAt(182) +
+                0x02 * bits.bitAt(183) +
+                0x04 * bits.bitAt(184);
+            pulse[0][6] =
+                0x01 * bits.bitAt(185) +
+                0x02 * bits.bitAt(186) +
+                0x04 * bits.bitAt(187);
+            pulse[0][7] =
+                0x01 * bits.bitAt(188) +
+                0x02 * bits.bitAt(189) +
+                0x04 * bits.bitAt(190);
+            pulse[0][8] =
+                0x01 * bits.bitAt(191) +
+                0x02 * bits.bitAt(192) +
+                0x04 * bits.bitAt(193);
+            pulse[0][9] =
+                0x01 * bits.bitAt(194) +
+                0x02 * bits.bitAt(195) +
+                0x04 * bits.bitAt(196);
+            pulse[1][0] =
+                0x01 * bits.bitAt(137) +
+                0x02 * bits.bitAt(138) +
+                0x04 * bits.bitAt(139) +
+                0x08 * bits.bitAt(97);
+            pulse[1][1] =
+                0x01 * bits.bitAt(140) +
+                0x02 * bits.bitAt(141) +
+                0x04 * bits.bitAt(142) +
+                0x08 * bits.bitAt(101);
+            pulse[1][2] =
+                0x01 * bits.bitAt(143) +
+                0x02 * bits.bitAt(144) +
+                0x04 * bits.bitAt(145) +
+                0x08 * bits.bitAt(109);
+            pulse[1][3] =
+                0x01 * bits.bitAt(146) +
+                0x02 * bits.bitAt(147) +
+                0x04 * bits.bitAt(148) +
+                0x08 * bits.bitAt(113);
+            pulse[1][4] =
+                0x01 * bits.bitAt(149) +
+                0x02 * bits.bitAt(150) +
+                0x04 * bits.bitAt(151) +
+                0x08 * bits.bitAt(117);
+            pulse[1][5] =
+                0x01 * bits.bitAt(197) +
+                0x02 * bits.bitAt(198) +
+                0x04 * bits.bitAt(199);
+            pulse[1][6] =
+                0x01 * bits.bitAt(200) +
+                0x02 * bits.bitAt(201) +
+                0x04 * bits.bitAt(202);
+            pulse[1][7] =
+                0x01 * bits.bitAt(203) +
+                0x02 * bits.bitAt(204) +
+                0x04 * bits.bitAt(205);
+            pulse[1][8] =
+                0x01 * bits.bitAt(206) +
+                0x02 * bits.bitAt(207) +
+                0x04 * bits.bitAt(208);
+            pulse[1][9] =
+                0x01 * bits.bitAt(209) +
+                0x02 * bits.bitAt(210) +
+                0x04 * bits.bitAt(211);
+            pulse[2][0] =
+                0x01 * bits.bitAt(152) +
+                0x02 * bits.bitAt(153) +
+                0x04 * bits.bitAt(154) +
+                0x08 * bits.bitAt(98);
+            pulse[2][1] =
+                0x01 * bits.bitAt(155) +
+                0x02 * bits.bitAt(156) +
+                0x04 * bits.bitAt(157) +
+                0x08 * bits.bitAt(102);
+            pulse[2][2] =
+                0x01 * bits.bitAt(158) +
+                0x02 * bits.bitAt(159) +
+                0x04 * bits.bitAt(160) +
+                0x08 * bits.bitAt(110);
+            pulse[2][3] =
+                0x01 * bits.bitAt(161) +
+                0x02 * bits.bitAt(162) +
+                0x04 * bits.bitAt(163) +
+                0x08 * bits.bitAt(114);
+            pulse[2][4] =
+                0x01 * bits.bitAt(164) +
+                0x02 * bits.bitAt(165) +
+                0x04 * bits.bitAt(166) +
+                0x08 * bits.bitAt(118);
+            pulse[2][5] =
+                0x01 * bits.bitAt(212) +
+                0x02 * bits.bitAt(213) +
+                0x04 * bits.bitAt(214);
+            pulse[2][6] =
+                0x01 * bits.bitAt(215) +
+                0x02 * bits.bitAt(216) +
+                0x04 * bits.bitAt(217);
+            pulse[2][7] =
+                0x01 * bits.bitAt(218) +
+                0x02 * bits.bitAt(219) +
+                0x04 * bits.bitAt(220);
+            pulse[2][8] =
+                0x01 * bits.bitAt(221) +
+                0x02 * bits.bitAt(222) +
+                0x04 * bits.bitAt(223);
+            pulse[2][9] =
+                0x01 * bits.bitAt(224) +
+                0x02 * bits.bitAt(225) +
+                0x04 * bits.bitAt(226);
+            pulse[3][0] =
+                0x01 * bits.bitAt(167) +
+                0x02 * bits.bitAt(168) +
+                0x04 * bits.bitAt(169) +
+                0x08 * bits.bitAt(99);
+            pulse[3][1] =
+                0x01 * bits.bitAt(170) +
+                0x02 * bits.bitAt(171) +
+                0x04 * bits.bitAt(172) +
+                0x08 * bits.bitAt(103);
+            pulse[3][2] =
+                0x01 * bits.bitAt(173) +
+                0x02 * bits.bitAt(174) +
+                0x04 * bits.bitAt(175) +
+                0x08 * bits.bitAt(111);
+            pulse[3][3] =
+                0x01 * bits.bitAt(176) +
+                0x02 * bits.bitAt(177) +
+                0x04 * bits.bitAt(178) +
+                0x08 * bits.bitAt(115);
+            pulse[3][4] =
+                0x01 * bits.bitAt(179) +
+                0x02 * bits.bitAt(180) +
+                0x04 * bits.bitAt(181) +
+                0x08 * bits.bitAt(119);
+            pulse[3][5] =
+                0x01 * bits.bitAt(227) +
+                0x02 * bits.bitAt(228) +
+                0x04 * bits.bitAt(229);
+            pulse[3][6] =
+                0x01 * bits.bitAt(230) +
+                0x02 * bits.bitAt(231) +
+                0x04 * bits.bitAt(232);
+            pulse[3][7] =
+                0x01 * bits.bitAt(233) +
+                0x02 * bits.bitAt(234) +
+                0x04 * bits.bitAt(235);
+            pulse[3][8] =
+                0x01 * bits.bitAt(236) +
+                0x02 * bits.bitAt(237) +
+                0x04 * bits.bitAt(238);
+            pulse[3][9] =
+                0x01 * bits.bitAt(239) +
+                0x02 * bits.bitAt(240) +
+                0x04 * bits.bitAt(241);
+        }
     }
 
     // Block size in bytes for each of the 16 frame types, not
@@ -18,6 +18,11 @@ package com.semantive.waveformandroid.waveform.soundfile;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * CheapMP3 represents an MP3 file by doing a "cheap" scan of the file,
@@ -36,16 +41,94 @@ public class CheapMP3 extends CheapSoundFile {
             public String[] getSupportedExtensions() {
                 return new String[] { "mp3" };
             }
+            public int probe(byte[] header, int length) {
+                return probeHeader(header, length);
+            }
         };
     }
 
+    /**
+     * MP3 files have no magic of their own, so look for an ID3v2 tag or
+     * for two Layer III frame headers in a row.
+     */
+    static int probeHeader(byte[] header, int length) {
+        if (length >= ID3V2_HEADER_SIZE && isTag(header, 0, ID3V2_TAG)) {
+            return PROBE_LIKELY;
+        }
+
+        int score = PROBE_NONE;
+        for (int i = 0; i + 4 <= length; i++) {
+            int frameLen = getProbedFrameLength(header, i);
+            if (frameLen == 0) {
+                continue;
+            }
+            int next = i + frameLen;
+            if (next + 4 > length) {
+                score = PROBE_POSSIBLE;
+            } else if (getProbedFrameLength(header, next) != 0 &&
+                       header[next + 1] == header[i + 1]) {
+                return PROBE_LIKELY;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Returns the length of the MPEG Layer III frame whose header is at
+     * the given offset, or 0 if there is no valid header there.
+     */
+    private static int getProbedFrameLength(byte[] data, int i) {
+        if (data[i] != -1) {
+            return 0;
+        }
+        int b1 = data[i + 1];
+        int b2 = data[i + 2];
+        if (b1 == -6 || b1 == -5) {
+            int bitRate = BITRATES_MPEG1_L3[(b2 & 0xF0) >> 4];
+            int sampleRate = SAMPLERATES_MPEG1_L3[(b2 & 0x0C) >> 2];
+            if (bitRate == 0 || sampleRate == 0) {
+                return 0;
+            }
+            return 144 * bitRate * 1000 / sampleRate + ((b2 & 2) >> 1);
+        } else if (b1 == -14 || b1 == -13) {
+            int bitRate = BITRATES_MPEG2_L3[(b2 & 0xF0) >> 4];
+            int sampleRate = SAMPLERATES_MPEG2_L3[(b2 & 0x0C) >> 2];
+            if (bitRate == 0 || sampleRate == 0) {
+                return 0;
+            }
+            return 72 * bitRate * 1000 / sampleRate + ((b2 & 2) >> 1);
+        }
+        return 0;
+    }
+
+    // Size of the buffer the frame scanner reads the file into.  Large
+    // enough that reads are rare, small enough to be cheap on the heap.
+    private static final int SCAN_BUFFER_SIZE = 256 * 1024;
+
+    // How often progress is reported, in bytes scanned
+    private static final int PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
+    // Files smaller than this are always scanned on the calling thread
+    private static final int PARALLEL_SCAN_MIN_BYTES = 8 * 1024 * 1024;
+    private static final int MIN_CHUNK_BYTES = 2 * 1024 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    // Number of valid headers that have to follow a sync code before a
+    // parallel scan worker trusts it
+    private static final int RESYNC_FRAMES = 3;
+
     // Member variables representing frame data
     private int mNumFrames;
     private int[] mFrameGains;
-    private int mFileSize;
+    private byte[] mSecondChannelGains;  // Same as mFrameGains if mono
+    private FrameOffsetIndex mFrameOffsets;
+    private long mFileSize;
+    private long mAudioStart;  // Where the audio starts, after any ID3v2 tag
+    private long mAudioEnd;    // Where the audio ends, before trailing tags
     private int mAvgBitRate;
     private int mGlobalSampleRate;
     private int mGlobalChannels;
+    private int mExpectedFrames;
 
     // Member variables used during initialization
     private int mMaxFrames;
@@ -60,6 +143,10 @@ public class CheapMP3 extends CheapSoundFile {
         return mNumFrames;
     }
 
+    public int getExpectedNumFrames() {
+        return mExpectedFrames;
+    }
+
     public int getSamplesPerFrame() {
         return 1152;
     }
@@ -68,7 +155,36 @@ public class CheapMP3 extends CheapSoundFile {
         return mFrameGains;
     }
 
-    public int getFileSizeBytes() {
+    /**
+     * The envelope is estimated from the global gain of the first
+     * granule of each channel.
+     */
+    public short[] getFrameEnvelope() {
+        int channels = getEnvelopeChannels();
+        int maxGain = Math.max(mMaxGain, 1);
+        for (int i = 0; i < mNumFrames; i++) {
+            maxGain = Math.max(maxGain, mSecondChannelGains[i] & 0xff);
+        }
+
+        short[] envelope = new short[mNumFrames * getEnvelopeStride()];
+        int index = 0;
+        for (int i = 0; i < mNumFrames; i++) {
+            putEstimatedEnvelope(envelope, index, mFrameGains[i], maxGain);
+            index += ENVELOPE_VALUES;
+            if (channels == 2) {
+                putEstimatedEnvelope(envelope, index,
+                                     mSecondChannelGains[i] & 0xff, maxGain);
+                index += ENVELOPE_VALUES;
+            }
+        }
+        return envelope;
+    }
+
+    public int getEnvelopeChannels() {
+        return (mGlobalChannels == 2) ? 2 : 1;
+    }
+
+    public long getFileSizeBytes() {
         return mFileSize;        
     }
 
@@ -88,161 +204,785 @@ public class CheapMP3 extends CheapSoundFile {
         return "MP3";
     }
 
+    public long getSeekableFrameOffset(int frame) {
+        if (frame <= 0) {
+            return 0;
+        } else if (frame >= mNumFrames) {
+            return mAudioEnd;
+        } else {
+            return mFrameOffsets.get(frame);
+        }
+    }
+
     public void ReadFile(File inputFile)
             throws java.io.FileNotFoundException,
             java.io.IOException {
         super.ReadFile(inputFile);
         mNumFrames = 0;
-        mMaxFrames = 64;  // This will grow as needed
+        mMaxFrames = 0;  // Sized once the first frame has been seen
         mFrameGains = new int[mMaxFrames];
+        mSecondChannelGains = new byte[mMaxFrames];
+        mFrameOffsets = new FrameOffsetIndex(0);
+        mExpectedFrames = 0;
         mBitrateSum = 0;
         mMinGain = 255;
         mMaxGain = 0;
 
-        // No need to handle filesizes larger than can fit in a 32-bit int
-        mFileSize = (int)mInputFile.length();
+        mFileSize = mInputFile.length();
 
         FileInputStream stream = new FileInputStream(mInputFile);
+        try {
+            FileChannel channel = stream.getChannel();
+
+            // Tags can be megabytes of cover art, full of bytes that look
+            // like sync codes, so they are skipped rather than scanned.
+            findAudioBounds(channel);
+            FrameScanner scanner = new FrameScanner(channel, mAudioEnd);
+            long lastStart = scanner.getLastStart();
+
+            // The first frame tells us how big to make our arrays, and
+            // may be a header frame that doesn't hold any audio.
+            long scanStart = lastStart;
+            scanner.seek(mAudioStart);
+            if (scanner.next(lastStart)) {
+                mGlobalSampleRate = scanner.sampleRate;
+                mGlobalChannels = scanner.channels;
+                if (parseFirstFrame(channel, scanner.frameStart,
+                                    scanner.mpgVersion, scanner.channels,
+                                    scanner.bitRate, scanner.sampleRate)) {
+                    scanStart = scanner.getPosition();
+                } else {
+                    scanStart = scanner.frameStart;
+                }
+            }
+
+            if (mParallelScanEnabled &&
+                ParallelScanner.getParallelism() > 1 &&
+                lastStart - scanStart >= PARALLEL_SCAN_MIN_BYTES) {
+                scanFramesParallel(channel, scanner, scanStart);
+            } else {
+                scanFrames(scanner, scanStart);
+            }
+        } finally {
+            stream.close();
+        }
+
+        // We're done reading the file, do some postprocessing
+        mExpectedFrames = mNumFrames;
+        if (mNumFrames > 0)
+            mAvgBitRate = mBitrateSum / mNumFrames;
+        else
+            mAvgBitRate = 0;
+        deliverRemainingFrames();
+    }
 
-        int pos = 0;
-        int offset = 0;
-        byte[] buffer = new byte[12];
-        while (pos < mFileSize - 12) {
-            // Read 12 bytes at a time and look for a sync code (0xFF)
-            while (offset < 12) {
-                offset += stream.read(buffer, offset, 12 - offset);
+    private void scanFrames(FrameScanner scanner, long scanStart)
+            throws java.io.IOException {
+        long lastStart = scanner.getLastStart();
+        long nextReport = scanStart;
+        scanner.seek(scanStart);
+        while (scanner.next(lastStart)) {
+            mGlobalSampleRate = scanner.sampleRate;
+            mGlobalChannels = scanner.channels;
+            addFrame(scanner.frameStart, scanner.bitRate, scanner.gain,
+                     scanner.secondChannelGain);
+            if (!deliverFrames(mNumFrames)) {
+                break;
             }
-            int bufferOffset = 0;
-            while (bufferOffset < 12 &&
-                    buffer[bufferOffset] != -1)
-                bufferOffset++;
 
-            if (mProgressListener != null) {
+            if (mProgressListener != null &&
+                scanner.getPosition() >= nextReport) {
                 boolean keepGoing = mProgressListener.reportProgress(
-                    pos * 1.0 / mFileSize);
+                    scanner.getPosition() * 1.0 / mFileSize);
                 if (!keepGoing) {
                     break;
                 }
+                nextReport = scanner.getPosition() + PROGRESS_INTERVAL_BYTES;
             }
+        }
+    }
 
-            if (bufferOffset > 0) {
-                // We didn't find a sync code (0xFF) at position 0;
-                // shift the buffer over and try again
-                for (int i = 0; i < 12 - bufferOffset; i++)
-                    buffer[i] = buffer[bufferOffset + i];
-                pos += bufferOffset;
-                offset = 12 - bufferOffset;
-                continue;
+    /**
+     * Splits the file into chunks and scans them on several threads.
+     * Every chunk but the first starts out in the middle of some frame,
+     * so its worker first resyncs on a run of valid headers.  Since the
+     * scan only depends on the position it starts from, a chunk's frames
+     * are exactly the ones the sequential scan would find once that
+     * reaches one of them.  So when stitching the chunks together, we
+     * continue the sequential scan from where the previous chunk left
+     * off until it hits a frame the next chunk found (normally its first
+     * frame right away), and take that chunk's frames from there on.
+     * Chunks are stitched as soon as they and those before them are
+     * done, so their frames can be passed on while the rest is scanned.
+     */
+    private void scanFramesParallel(FileChannel channel,
+                                    FrameScanner scanner, long scanStart)
+            throws java.io.IOException {
+        long lastStart = scanner.getLastStart();
+        int numChunks = ParallelScanner.getParallelism() * CHUNKS_PER_THREAD;
+        long chunkSize = Math.max((lastStart - scanStart) / numChunks,
+                                 MIN_CHUNK_BYTES);
+
+        List<ScanChunk> chunks = new ArrayList<>();
+        long start = scanStart;
+        while (start < lastStart) {
+            long end = (lastStart - start > chunkSize) ?
+                start + chunkSize : lastStart;
+            chunks.add(new ScanChunk(channel, mAudioEnd, start, end,
+                                     start == scanStart));
+            start = end;
+        }
+
+        final ChunkStitcher stitcher = new ChunkStitcher(scanner, scanStart);
+        ParallelScanner parallelScanner =
+            new ParallelScanner(mProgressListener, lastStart - scanStart);
+        parallelScanner.run(chunks, index -> {
+            stitcher.stitch(chunks.get(index));
+            return deliverFrames(mNumFrames);
+        });
+
+        // If the scan was cancelled, keep what we have so far
+        for (int i = stitcher.mNumStitched; i < chunks.size(); i++) {
+            if (!chunks.get(i).mDone) {
+                break;
+            }
+            stitcher.stitch(chunks.get(i));
+        }
+    }
+
+    /**
+     * Adds the frames of the chunks of a parallel scan in order, picking
+     * up the sequential scan where the previous chunk left off.
+     */
+    private class ChunkStitcher {
+        private final FrameScanner mScanner;
+        private long mPosition;
+        int mNumStitched;
+
+        ChunkStitcher(FrameScanner scanner, long scanStart) {
+            mScanner = scanner;
+            mPosition = scanStart;
+        }
+
+        void stitch(ScanChunk chunk) throws java.io.IOException {
+            FrameScanner scanner = mScanner;
+            mNumStitched++;
+
+            int first = 0;
+            if (chunk.mNumFrames == 0 || chunk.mOffsets[0] != mPosition) {
+                first = -1;
+                scanner.seek(mPosition);
+                while (scanner.next(chunk.mEnd)) {
+                    int index = Arrays.binarySearch(
+                        chunk.mOffsets, 0, chunk.mNumFrames,
+                        scanner.frameStart);
+                    if (index >= 0) {
+                        first = index;
+                        break;
+                    }
+                    mGlobalSampleRate = scanner.sampleRate;
+                    mGlobalChannels = scanner.channels;
+                    addFrame(scanner.frameStart, scanner.bitRate,
+                             scanner.gain, scanner.secondChannelGain);
+                }
+                if (first < 0) {
+                    // The chunk's frames were all false syncs
+                    mPosition = scanner.getPosition();
+                    return;
+                }
+            }
+
+            for (int i = first; i < chunk.mNumFrames; i++) {
+                int frame = chunk.mFrames[i];
+                addFrame(chunk.mOffsets[i], frame >> 16,
+                         frame & 0xff, (frame >> 8) & 0xff);
             }
+            mGlobalSampleRate = chunk.mSampleRate;
+            mGlobalChannels = chunk.mChannels;
+            mPosition = chunk.mEndPosition;
+        }
+    }
+
+    /**
+     * Sets mAudioStart and mAudioEnd to the part of the file between the
+     * tags.  ID3v2 tags at the start say how long they are; at the end
+     * there can be an ID3v1 tag, a Lyrics3 tag, an APEv2 tag and an
+     * appended ID3v2 tag, in about any order, so we keep peeling them
+     * off until there is nothing left that we recognize.
+     */
+    private void findAudioBounds(FileChannel channel)
+            throws java.io.IOException {
+        byte[] data = new byte[ID3V2_HEADER_SIZE];
+        mAudioStart = 0;
+        mAudioEnd = mFileSize;
+
+        // There may be more than one ID3v2 tag, one after the other
+        while (mAudioStart + ID3V2_HEADER_SIZE <= mFileSize) {
+            readFully(channel, data, 0, ID3V2_HEADER_SIZE, mAudioStart);
+            if (!isTag(data, 0, ID3V2_TAG) || data[3] == -1 || data[4] == -1)
+                break;
+            int size = getSyncsafe(data, 6);
+            if (size < 0)
+                break;
+            size += ID3V2_HEADER_SIZE;
+            if ((data[5] & 0x10) != 0) {
+                // Footer present
+                size += ID3V2_HEADER_SIZE;
+            }
+            if (size > mFileSize - mAudioStart)
+                break;
+            mAudioStart += size;
+        }
 
+        byte[] tail = new byte[LYRICS3_MAX_SIZE];
+        while (true) {
+            long end = mAudioEnd;
+            int tailLen = (int) Math.min(end - mAudioStart, tail.length);
+            if (tailLen < 3)
+                break;
+            long tailStart = end - tailLen;
+            readFully(channel, tail, 0, tailLen, tailStart);
+            int t = tailLen;  // End of the audio, relative to tail
+
+            if (t >= ID3V1_SIZE && isTag(tail, t - ID3V1_SIZE, ID3V1_TAG)) {
+                mAudioEnd -= ID3V1_SIZE;
+            } else if (t >= APE_FOOTER_SIZE &&
+                       isTag(tail, t - APE_FOOTER_SIZE, APE_TAG)) {
+                // The size doesn't include the header, if there is one
+                int size = getLE(tail, t - APE_FOOTER_SIZE + 12);
+                if ((tail[t - APE_FOOTER_SIZE + 23] & 0x80) != 0)
+                    size += APE_FOOTER_SIZE;
+                if (size < APE_FOOTER_SIZE || size > end - mAudioStart)
+                    break;
+                mAudioEnd -= size;
+            } else if (t >= ID3V2_HEADER_SIZE &&
+                       isTag(tail, t - ID3V2_HEADER_SIZE, ID3V2_FOOTER_TAG)) {
+                int size = getSyncsafe(tail, t - ID3V2_HEADER_SIZE + 6);
+                if (size < 0 || size + 2 * ID3V2_HEADER_SIZE > end - mAudioStart)
+                    break;
+                mAudioEnd -= size + 2 * ID3V2_HEADER_SIZE;
+            } else if (t >= 15 && isTag(tail, t - 9, LYRICS200_TAG)) {
+                // Lyrics3 v2.00 stores the size of everything but the
+                // size field and the end marker as six decimal digits
+                int size = 0;
+                for (int i = t - 15; i < t - 9; i++) {
+                    if (tail[i] < '0' || tail[i] > '9') {
+                        size = -1;
+                        break;
+                    }
+                    size = size * 10 + tail[i] - '0';
+                }
+                if (size < LYRICSBEGIN_TAG.length ||
+                    size + 15 > end - mAudioStart)
+                    break;
+                mAudioEnd -= size + 15;
+            } else if (t >= 9 && isTag(tail, t - 9, LYRICSEND_TAG)) {
+                // Lyrics3 v1 has no size, only a start marker somewhere
+                // in the previous 5100 bytes
+                int begin = -1;
+                for (int i = t - 9 - LYRICSBEGIN_TAG.length; i >= 0; i--) {
+                    if (isTag(tail, i, LYRICSBEGIN_TAG)) {
+                        begin = i;
+                        break;
+                    }
+                }
+                if (begin < 0)
+                    break;
+                mAudioEnd = tailStart + begin;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, byte[] data,
+                                  int offset, int length, long position)
+            throws java.io.IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - offset) < 0)
+                throw new java.io.EOFException();
+        }
+    }
+
+    /**
+     * Sizes the frame arrays from the first frame.  Encoders usually put
+     * a Xing/Info or VBRI header in an otherwise empty first frame which
+     * holds the exact number of frames and bytes; if there is none, the
+     * file is assumed to be CBR and the frame count follows from the file
+     * size.  Returns true if the first frame is such a header frame.
+     */
+    private boolean parseFirstFrame(FileChannel channel, long frameStart,
+                                    int mpgVersion, int channels,
+                                    int bitRate, int sampleRate)
+            throws java.io.IOException {
+        byte[] data = new byte[64];
+        channel.read(ByteBuffer.wrap(data), frameStart);
+
+        // The Xing header follows the side information, whose size
+        // depends on the MPEG version and the channel mode.
+        boolean mono = (channels == 1);
+        int xingOffset;
+        if (mpgVersion == 1) {
+            xingOffset = mono ? 4 + 17 : 4 + 32;
+        } else {
+            xingOffset = mono ? 4 + 9 : 4 + 17;
+        }
+        int samplesPerFrame = (mpgVersion == 1) ? 1152 : 576;
+
+        int numFrames = -1;
+        int numBytes = -1;
+        boolean headerFrame = false;
+        if (isTag(data, xingOffset, XING_TAG) ||
+            isTag(data, xingOffset, INFO_TAG)) {
+            headerFrame = true;
+            int flags = getBE(data, xingOffset + 4);
+            int fieldOffset = xingOffset + 8;
+            if ((flags & 0x01) != 0) {
+                numFrames = getBE(data, fieldOffset);
+                fieldOffset += 4;
+            }
+            if ((flags & 0x02) != 0) {
+                numBytes = getBE(data, fieldOffset);
+            }
+        } else if (isTag(data, VBRI_OFFSET, VBRI_TAG)) {
+            headerFrame = true;
+            numBytes = getBE(data, VBRI_OFFSET + 10);
+            numFrames = getBE(data, VBRI_OFFSET + 14);
+        }
+
+        // Don't trust a count that can't possibly fit in the file; the
+        // shortest Layer III frame is 48 bytes.
+        if (numFrames > 0 && numFrames <= mAudioEnd / 48) {
+            mExpectedFrames = numFrames;
+            if (numBytes > 0) {
+                mAvgBitRate = (int) ((long) numBytes * 8 * sampleRate /
+                    ((long) numFrames * samplesPerFrame * 1000));
+            } else {
+                mAvgBitRate = bitRate;
+            }
+        } else {
+            // No frame count to go by, so treat the file as CBR.  Frame
+            // lengths only differ by the padding byte, so the count is
+            // the remaining bytes over the average frame length.
+            long remaining = mAudioEnd - frameStart;
+            mExpectedFrames = (int) ((remaining * sampleRate +
+                144000L * bitRate - 1) / (144000L * bitRate));
+            mAvgBitRate = bitRate;
+        }
+
+        mMaxFrames = mExpectedFrames;
+        mFrameGains = new int[mMaxFrames];
+        mSecondChannelGains = new byte[mMaxFrames];
+        mFrameOffsets = new FrameOffsetIndex(mExpectedFrames);
+        return headerFrame;
+    }
+
+    private static boolean isTag(byte[] data, int offset, byte[] tag) {
+        for (int i = 0; i < tag.length; i++) {
+            if (data[offset + i] != tag[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int getLE(byte[] data, int offset) {
+        return ((0xff & data[offset + 3]) << 24) |
+            ((0xff & data[offset + 2]) << 16) |
+            ((0xff & data[offset + 1]) << 8) |
+            ((0xff & data[offset]));
+    }
+
+    /**
+     * Reads an ID3v2 size: 28 bits stored in the low 7 bits of each of
+     * four bytes.  Returns -1 if the top bit of any byte is set.
+     */
+    private static int getSyncsafe(byte[] data, int offset) {
+        int size = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            if ((data[i] & 0x80) != 0)
+                return -1;
+            size = (size << 7) | data[i];
+        }
+        return size;
+    }
+
+    private static int getBE(byte[] data, int offset) {
+        return ((0xff & data[offset]) << 24) |
+            ((0xff & data[offset + 1]) << 16) |
+            ((0xff & data[offset + 2]) << 8) |
+            ((0xff & data[offset + 3]));
+    }
+
+    private void addFrame(long frameStart, int bitRate, int gain,
+                          int secondChannelGain) {
+        if (mNumFrames == mMaxFrames) {
+            // The frame count estimated from the first frame was too
+            // low, which happens for VBR files without a Xing header.
+            // Rather than naively doubling the array, we estimate the
+            // number of frames still to come from the average frame
+            // length so far and add 10% padding, so a single resize
+            // is normally all it takes.
+            int remainingGuess = 0;
+            // The tag before the audio, if any, is no part of the frames
+            if (mNumFrames > 0 && frameStart > mAudioStart) {
+                long avgFrameLen = Math.max((frameStart - mAudioStart) / mNumFrames, 1);
+                remainingGuess = (int) ((mAudioEnd - frameStart) / avgFrameLen);
+            }
+            int newMaxFrames = mNumFrames + remainingGuess * 11 / 10 + 64;
+
+            int[] newGains = new int[newMaxFrames];
+            System.arraycopy(mFrameGains, 0, newGains, 0, mNumFrames);
+            mFrameGains = newGains;
+            byte[] newSecondChannelGains = new byte[newMaxFrames];
+            System.arraycopy(mSecondChannelGains, 0,
+                             newSecondChannelGains, 0, mNumFrames);
+            mSecondChannelGains = newSecondChannelGains;
+            mMaxFrames = newMaxFrames;
+        }
+
+        mBitrateSum += bitRate;
+
+        mFrameGains[mNumFrames] = gain;
+        mSecondChannelGains[mNumFrames] = (byte) secondChannelGain;
+        mFrameOffsets.add(frameStart);
+        if (gain < mMinGain)
+            mMinGain = gain;
+        if (gain > mMaxGain)
+            mMaxGain = gain;
+
+        mNumFrames++;
+    }
+
+    /**
+     * Walks the frame headers of a file.  Rather than issuing a read and
+     * a skip for every frame, the file is pulled into a large buffer with
+     * positional channel reads and the sync search and header decoding
+     * work directly on that buffer.  Frames are skipped by moving the
+     * scan index, so a new read only happens once the scan index runs
+     * off the end of the buffer.
+     */
+    private static class FrameScanner {
+        private final FileChannel mChannel;
+        private final long mLastStart;
+        private final byte[] mBuffer = new byte[SCAN_BUFFER_SIZE];
+        private final ByteBuffer mWrapper = ByteBuffer.wrap(mBuffer);
+        private final byte[] mPeekBuffer = new byte[12];
+        private final ByteBuffer mPeekWrapper = ByteBuffer.wrap(mPeekBuffer);
+        private long mBufferStart; // File position of mBuffer[0]
+        private int mLimit;        // Number of valid bytes in mBuffer
+        private int mIndex;        // Scan index, relative to mBufferStart
+
+        // The frame last found by next()
+        long frameStart;
+        int frameLen;
+        int mpgVersion;
+        int bitRate;
+        int sampleRate;
+        int channels;
+        int gain;
+        int secondChannelGain;
+
+        FrameScanner(FileChannel channel, long audioEnd) {
+            mChannel = channel;
+            // A header is only accepted if the 12 bytes we look at are
+            // part of the audio, i.e. the frame starts before audioEnd - 12.
+            mLastStart = audioEnd - 12;
+        }
+
+        long getLastStart() {
+            return mLastStart;
+        }
+
+        long getPosition() {
+            return mBufferStart + mIndex;
+        }
+
+        void seek(long position) {
+            if (position >= mBufferStart && position <= mBufferStart + mLimit) {
+                mIndex = (int) (position - mBufferStart);
+            } else {
+                mBufferStart = position;
+                mLimit = 0;
+                mIndex = 0;
+            }
+        }
+
+        /**
+         * Advances to the next frame that starts before the given
+         * position and returns true, or returns false if there is none.
+         * In that case the scan stops at the first position at or after
+         * until that it would have looked at.
+         */
+        boolean next(long until) throws java.io.IOException {
+            until = Math.min(until, mLastStart);
+            while (mBufferStart + mIndex < until) {
+                if (mLimit - mIndex < 12) {
+                    if (!fill()) {
+                        return false;
+                    }
+                    continue;
+                }
+
+                // Look for a sync code (0xFF) within what's buffered
+                byte[] buffer = mBuffer;
+                int i = mIndex;
+                int end = (int) Math.min(mLimit - 12, until - 1 - mBufferStart);
+                while (i <= end && buffer[i] != -1)
+                    i++;
+                mIndex = i;
+                if (i > end)
+                    continue;
+
+                int skip = decodeHeader(buffer, i);
+                if (skip > 0) {
+                    mIndex += skip;
+                    continue;
+                }
+
+                frameStart = mBufferStart + i;
+                secondChannelGain = readSecondChannelGain(i);
+                mIndex += frameLen;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Moves to the first frame at or after the given position that is
+         * followed by RESYNC_FRAMES more valid headers, which rules out
+         * sync codes that just happen to appear inside frame data.
+         * Returns false if there is no such frame before until.
+         */
+        boolean resync(long position, long until) throws java.io.IOException {
+            seek(position);
+            while (next(until)) {
+                long start = frameStart;
+                long pos = start + frameLen;
+                int count = 0;
+                while (count < RESYNC_FRAMES && pos < mLastStart &&
+                       isFrameAt(pos)) {
+                    pos += frameLen;
+                    count++;
+                }
+                if (count == RESYNC_FRAMES || pos >= mLastStart) {
+                    seek(start);
+                    return true;
+                }
+                seek(start + 1);
+            }
+            return false;
+        }
+
+        private boolean isFrameAt(long position) throws java.io.IOException {
+            byte[] buffer;
+            int i;
+            if (position >= mBufferStart &&
+                position + 12 <= mBufferStart + mLimit) {
+                buffer = mBuffer;
+                i = (int) (position - mBufferStart);
+            } else {
+                buffer = mPeekBuffer;
+                i = 0;
+                if (!peek(position, 12)) {
+                    return false;
+                }
+            }
+            return buffer[i] == -1 && decodeHeader(buffer, i) == 0;
+        }
+
+        private boolean peek(long position, int length)
+                throws java.io.IOException {
+            mPeekWrapper.clear();
+            mPeekWrapper.limit(length);
+            while (mPeekWrapper.hasRemaining()) {
+                if (mChannel.read(mPeekWrapper,
+                                  position + mPeekWrapper.position()) <= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the global gain of the second channel of the frame at
+         * buffer[i], which is further into the side information than the
+         * 12 bytes we normally look at.  Only MPEG 1 stereo frames are
+         * parsed this far; for the others it is the first channel's gain.
+         */
+        private int readSecondChannelGain(int i) throws java.io.IOException {
+            if (mpgVersion != 1 || channels != 2) {
+                return gain;
+            }
+            byte[] buffer = mBuffer;
+            if (i + 18 > mLimit) {
+                // The header straddles the end of the buffer
+                if (!peek(mBufferStart + i + 16, 2)) {
+                    return gain;
+                }
+                buffer = mPeekBuffer;
+                i = -16;
+            }
+            return ((buffer[i + 16] & 0x0F) << 4) +
+                ((buffer[i + 17] & 0xF0) >> 4);
+        }
+
+        /**
+         * Decodes the header starting with the sync code at buffer[i].
+         * Returns 0 if it is a valid Layer III header, otherwise the
+         * number of bytes the sync search should move on by.
+         */
+        private int decodeHeader(byte[] buffer, int i) {
             // Check for MPEG 1 Layer III or MPEG 2 Layer III codes
-            int mpgVersion = 0;
-            if (buffer[1] == -6 || buffer[1] == -5) {
+            byte b1 = buffer[i + 1];
+            if (b1 == -6 || b1 == -5) {
                 mpgVersion = 1;
-            } else if (buffer[1] == -14 || buffer[1] == -13) {
+            } else if (b1 == -14 || b1 == -13) {
                 mpgVersion = 2;
             } else {
-                bufferOffset = 1;
-                for (int i = 0; i < 12 - bufferOffset; i++)
-                    buffer[i] = buffer[bufferOffset + i];
-                pos += bufferOffset;
-                offset = 12 - bufferOffset;
-                continue;
+                return 1;
             }
 
             // The third byte has the bitrate and samplerate
-            int bitRate;
-            int sampleRate;
+            int b2 = buffer[i + 2];
             if (mpgVersion == 1) {
                 // MPEG 1 Layer III
-                bitRate = BITRATES_MPEG1_L3[(buffer[2] & 0xF0) >> 4];
-                sampleRate = SAMPLERATES_MPEG1_L3[(buffer[2] & 0x0C) >> 2];
+                bitRate = BITRATES_MPEG1_L3[(b2 & 0xF0) >> 4];
+                sampleRate = SAMPLERATES_MPEG1_L3[(b2 & 0x0C) >> 2];
             } else {
                 // MPEG 2 Layer III
-                bitRate = BITRATES_MPEG2_L3[(buffer[2] & 0xF0) >> 4];
-                sampleRate = SAMPLERATES_MPEG2_L3[(buffer[2] & 0x0C) >> 2];
+                bitRate = BITRATES_MPEG2_L3[(b2 & 0xF0) >> 4];
+                sampleRate = SAMPLERATES_MPEG2_L3[(b2 & 0x0C) >> 2];
             }
 
             if (bitRate == 0 || sampleRate == 0) {
-                bufferOffset = 2;
-                for (int i = 0; i < 12 - bufferOffset; i++)
-                    buffer[i] = buffer[bufferOffset + i];
-                pos += bufferOffset;
-                offset = 12 - bufferOffset;
-                continue;
+                return 2;
             }
 
             // From here on we assume the frame is good
-            mGlobalSampleRate = sampleRate;
-            int padding = (buffer[2] & 2) >> 1;
-            int frameLen = 144 * bitRate * 1000 / sampleRate + padding;
+            int padding = (b2 & 2) >> 1;
+            frameLen = 144 * bitRate * 1000 / sampleRate + padding;
 
-            int gain;
-            if ((buffer[3] & 0xC0) == 0xC0) {
+            if ((buffer[i + 3] & 0xC0) == 0xC0) {
                 // 1 channel
-                mGlobalChannels = 1;
+                channels = 1;
                 if (mpgVersion == 1) {
-                    gain = ((buffer[10] & 0x01) << 7) +
-                        ((buffer[11] & 0xFE) >> 1);
+                    gain = ((buffer[i + 10] & 0x01) << 7) +
+                        ((buffer[i + 11] & 0xFE) >> 1);
                 } else {
-                    gain = ((buffer[9] & 0x03) << 6) +
-                    ((buffer[10] & 0xFC) >> 2);
+                    gain = ((buffer[i + 9] & 0x03) << 6) +
+                    ((buffer[i + 10] & 0xFC) >> 2);
                 }
             } else {
                 // 2 channels
-                mGlobalChannels = 2;
+                channels = 2;
                 if (mpgVersion == 1) {
-                    gain = ((buffer[9]  & 0x7F) << 1) +
-                        ((buffer[10] & 0x80) >> 7);
+                    gain = ((buffer[i + 9]  & 0x7F) << 1) +
+                        ((buffer[i + 10] & 0x80) >> 7);
                 } else {
                     gain = 0;  // ???
                 }
             }
+            return 0;
+        }
 
-            mBitrateSum += bitRate;
-
-            mFrameGains[mNumFrames] = gain;
-            if (gain < mMinGain)
-                mMinGain = gain;
-            if (gain > mMaxGain)
-                mMaxGain = gain;
-
-            mNumFrames++;
-            if (mNumFrames == mMaxFrames) {
-                // We need to grow our arrays.  Rather than naively
-                // doubling the array each time, we estimate the exact
-                // number of frames we need and add 10% padding.  In
-                // practice this seems to work quite well, only one
-                // resize is ever needed, however to avoid pathological
-                // cases we make sure to always double the size at a minimum.
-
-                mAvgBitRate = mBitrateSum / mNumFrames;
-                int totalFramesGuess =
-                    ((mFileSize / mAvgBitRate) * sampleRate) / 144000;
-                int newMaxFrames = totalFramesGuess * 11 / 10;
-                if (newMaxFrames < mMaxFrames * 2)
-                    newMaxFrames = mMaxFrames * 2;
-
-                int[] newOffsets = new int[newMaxFrames];
-                int[] newLens = new int[newMaxFrames];
-                int[] newGains = new int[newMaxFrames];
-                for (int i = 0; i < mNumFrames; i++) {
-                    newGains[i] = mFrameGains[i];
+        private boolean fill() throws java.io.IOException {
+            // Move the unscanned tail to the front (or drop the part of
+            // a frame we jumped over) and top the buffer up.
+            int keep = mLimit - mIndex;
+            if (keep > 0) {
+                System.arraycopy(mBuffer, mIndex, mBuffer, 0, keep);
+            } else {
+                keep = 0;
+            }
+            mBufferStart += mIndex;
+            mLimit = keep;
+            mIndex = 0;
+            while (mLimit < SCAN_BUFFER_SIZE) {
+                mWrapper.limit(SCAN_BUFFER_SIZE);
+                mWrapper.position(mLimit);
+                int read = mChannel.read(mWrapper, mBufferStart + mLimit);
+                if (read <= 0) {
+                    break;
                 }
-                mFrameGains = newGains;
-                mMaxFrames = newMaxFrames;
+                mLimit += read;
             }
+            return mLimit >= 12;
+        }
+    }
 
-            stream.skip(frameLen - 12);
-            pos += frameLen;
-            offset = 0;
+    /**
+     * The frames found in one chunk of a parallel scan, i.e. those that
+     * start between mStart and mEnd.  Each frame is stored as its offset
+     * plus its bitrate and the gains of both channels packed into one
+     * int.
+     */
+    private static class ScanChunk implements ParallelScanner.Chunk {
+        final FileChannel mChannel;
+        final long mAudioEnd;
+        final long mStart;
+        final long mEnd;
+        final boolean mAtFrame;  // Whether mStart is known to be a frame
+
+        long[] mOffsets;
+        int[] mFrames;
+        int mNumFrames;
+        int mSampleRate;
+        int mChannels;
+        long mEndPosition;
+        boolean mDone;
+
+        ScanChunk(FileChannel channel, long audioEnd,
+                  long start, long end, boolean atFrame) {
+            mChannel = channel;
+            mAudioEnd = audioEnd;
+            mStart = start;
+            mEnd = end;
+            mAtFrame = atFrame;
         }
 
-        // We're done reading the file, do some postprocessing
-        if (mNumFrames > 0)
-            mAvgBitRate = mBitrateSum / mNumFrames;
-        else
-            mAvgBitRate = 0;
+        public void scan(ParallelScanner parallelScanner)
+                throws java.io.IOException {
+            int capacity = (int) ((mEnd - mStart) / 400) + 16;
+            mOffsets = new long[capacity];
+            mFrames = new int[capacity];
+
+            FrameScanner scanner = new FrameScanner(mChannel, mAudioEnd);
+            if (mAtFrame) {
+                scanner.seek(mStart);
+            } else if (!scanner.resync(mStart, mEnd)) {
+                mEndPosition = scanner.getPosition();
+                parallelScanner.addProgress(mEnd - mStart);
+                mDone = true;
+                return;
+            }
+
+            long reported = mStart;
+            while (scanner.next(mEnd)) {
+                if (mNumFrames == mOffsets.length) {
+                    mOffsets = Arrays.copyOf(mOffsets, mNumFrames * 2);
+                    mFrames = Arrays.copyOf(mFrames, mNumFrames * 2);
+                }
+                mOffsets[mNumFrames] = scanner.frameStart;
+                mFrames[mNumFrames] = (scanner.bitRate << 16) |
+                    (scanner.secondChannelGain << 8) | scanner.gain;
+                mNumFrames++;
+                mSampleRate = scanner.sampleRate;
+                mChannels = scanner.channels;
+
+                long position = scanner.getPosition();
+                if (position - reported >= PROGRESS_INTERVAL_BYTES) {
+                    parallelScanner.addProgress(position - reported);
+                    reported = position;
+                    if (parallelScanner.isCancelled()) {
+                        return;
+                    }
+                }
+            }
+            mEndPosition = scanner.getPosition();
+            parallelScanner.addProgress(mEnd - reported);
+            mDone = true;
+        }
     }
 
     static private int BITRATES_MPEG1_L3[] = {
@@ -255,4 +995,28 @@ public class CheapMP3 extends CheapSoundFile {
         44100, 48000, 32000, 0 };
     static private int SAMPLERATES_MPEG2_L3[] = {
         22050, 24000, 16000, 0 };
+
+    // Tags of the headers that can be found in the first frame.  The VBRI
+    // header always sits 32 bytes after the frame header.
+    static private final byte[] XING_TAG = { 'X', 'i', 'n', 'g' };
+    static private final byte[] INFO_TAG = { 'I', 'n', 'f', 'o' };
+    static private final byte[] VBRI_TAG = { 'V', 'B', 'R', 'I' };
+    static private final int VBRI_OFFSET = 4 + 32;
+
+    static private final byte[] ID3V2_TAG = { 'I', 'D', '3' };
+    static private final byte[] ID3V2_FOOTER_TAG = { '3', 'D', 'I' };
+    static private final int ID3V2_HEADER_SIZE = 10;
+    static private final byte[] ID3V1_TAG = { 'T', 'A', 'G' };
+    static private final int ID3V1_SIZE = 128;
+    static private final byte[] APE_TAG = {
+        'A', 'P', 'E', 'T', 'A', 'G', 'E', 'X' };
+    static private final int APE_FOOTER_SIZE = 32;
+    static private final byte[] LYRICSBEGIN_TAG = {
+        'L', 'Y', 'R', 'I', 'C', 'S', 'B', 'E', 'G', 'I', 'N' };
+    static private final byte[] LYRICSEND_TAG = {
+        'L', 'Y', 'R', 'I', 'C', 'S', 'E', 'N', 'D' };
+    static private final byte[] LYRICS200_TAG = {
+        'L', 'Y', 'R', 'I', 'C', 'S', '2', '0', '0' };
+    // Lyrics3 v1 holds up to 5100 bytes of lyrics between its markers
+    static private final int LYRICS3_MAX_SIZE = 5100 + 11 + 9;
 };
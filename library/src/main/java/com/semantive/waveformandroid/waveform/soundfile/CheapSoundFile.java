@@ -17,6 +17,7 @@
 package com.semantive.waveformandroid.waveform.soundfile;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -47,11 +48,46 @@ public class CheapSoundFile {
         boolean reportProgress(double fractionComplete);
     }
 
+    public interface FrameListener {
+        /**
+         * Will be called by the CheapSoundFile subclass, on the thread
+         * that reads the file, with the gains of count frames as soon as
+         * they are known: gains[offset] to gains[offset + count - 1] are
+         * those of frames firstFrame to firstFrame + count - 1.  Frames
+         * are passed in order, each exactly once.  The array is only
+         * valid during the call, so copy what you need.
+         *
+         * Reading doesn't go on until this returns, so a consumer that
+         * can't keep up holds the reader back.  Return true to continue
+         * loading the file, and false to cancel.
+         */
+        boolean framesAvailable(int firstFrame, int[] gains, int offset, int count);
+    }
+
     public interface Factory {
         public CheapSoundFile create();
         public String[] getSupportedExtensions();
+
+        /**
+         * Returns how sure this factory is, from 0 (not at all) to
+         * PROBE_CERTAIN, that a file starting with the given bytes is in
+         * its format.  Only the first length bytes of header are valid.
+         */
+        public int probe(byte[] header, int length);
     }
 
+    // Scores returned by Factory.probe()
+    public static final int PROBE_NONE = 0;
+    public static final int PROBE_POSSIBLE = 50;
+    public static final int PROBE_LIKELY = 75;
+    public static final int PROBE_CERTAIN = 100;
+
+    // How much of a file create() reads to probe its format
+    public static final int HEADER_SIZE = 4096;
+
+    // Most frames passed to a FrameListener at once
+    public static final int FRAME_SLICE_SIZE = 1024;
+
     static Factory[] sSubclassFactories = new Factory[] {
         CheapAAC.getFactory(),
         CheapAMR.getFactory(),
@@ -74,33 +110,146 @@ public class CheapSoundFile {
 
 	/**
 	 * Static method to create the appropriate CheapSoundFile subclass
-	 * given a filename.
-	 *
-	 * TODO: make this more modular rather than hardcoding the logic
+	 * given a filename.  The format is probed from the first bytes of
+	 * the file, so files with a wrong or no extension open as well.
 	 */
     public static CheapSoundFile create(String fileName,
                                         ProgressListener progressListener)
         throws java.io.FileNotFoundException,
                java.io.IOException {
+        return create(fileName, progressListener, null);
+    }
+
+    /**
+     * Like create(String, ProgressListener), and passes the gains to the
+     * FrameListener while the file is being read.
+     */
+    public static CheapSoundFile create(String fileName,
+                                        ProgressListener progressListener,
+                                        FrameListener frameListener)
+        throws java.io.FileNotFoundException,
+               java.io.IOException {
         File f = new File(fileName);
         if (!f.exists()) {
             throw new java.io.FileNotFoundException(fileName);
         }
-        String name = f.getName().toLowerCase();
-        String[] components = name.split("\\.");
-        if (components.length < 2) {
-            return null;
+        byte[] header = new byte[HEADER_SIZE];
+        int headerLength = readHeader(f, header);
+
+        // MP3 and ADTS files may both start with an ID3v2 tag, which can
+        // be longer than the header, so tell them apart by the audio
+        // after it
+        Factory factory = null;
+        int audioStart = getId3v2End(header, headerLength);
+        if (audioStart > 0) {
+            byte[] audio = new byte[HEADER_SIZE];
+            int audioLength = readHeader(f, audio, audioStart);
+            factory = findFactory(f.getName(), audio, audioLength);
+        }
+        if (factory == null) {
+            factory = findFactory(f.getName(), header, headerLength);
         }
-        Factory factory = sExtensionMap.get(components[components.length - 1]);
         if (factory == null) {
             return null;
         }
         CheapSoundFile soundFile = factory.create();
+        soundFile.mHeader = header;
+        soundFile.mHeaderLength = headerLength;
         soundFile.setProgressListener(progressListener);
+        soundFile.setFrameListener(frameListener);
         soundFile.ReadFile(f);
         return soundFile;
     }
 
+    /**
+     * Picks the factory whose probe() scores the header highest.  The
+     * factory for the extension of the file name wins ties, and is the
+     * one used if no factory recognizes the header at all.  Returns null
+     * if there is neither.
+     */
+    static Factory findFactory(String fileName, byte[] header, int headerLength) {
+        String[] components = fileName.toLowerCase().split("\\.");
+        Factory extensionFactory = null;
+        if (components.length >= 2) {
+            extensionFactory = sExtensionMap.get(components[components.length - 1]);
+        }
+
+        Factory best = extensionFactory;
+        int bestScore = (extensionFactory != null) ?
+            extensionFactory.probe(header, headerLength) : PROBE_NONE;
+        for (Factory f : sSubclassFactories) {
+            int score = f.probe(header, headerLength);
+            if (score > bestScore) {
+                best = f;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Reads the start of a file into header and returns the number of
+     * bytes read, which is less than its length for short files.
+     */
+    static int readHeader(File file, byte[] header) throws java.io.IOException {
+        return readHeader(file, header, 0);
+    }
+
+    /**
+     * Like readHeader(File, byte[]), from the given position of the file.
+     */
+    static int readHeader(File file, byte[] header, long position)
+        throws java.io.IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            stream.getChannel().position(position);
+            int length = 0;
+            while (length < header.length) {
+                int count = stream.read(header, length, header.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+            return length;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns whether the given bytes of the header hold the ASCII
+     * characters of magic.
+     */
+    protected static boolean hasMagic(byte[] header, int length,
+                                      int offset, String magic) {
+        if (offset + magic.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if (header[offset + i] != magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns where the ID3v2 tag at the start of the header ends, or 0
+     * if there is none.
+     */
+    protected static int getId3v2End(byte[] header, int length) {
+        if (!hasMagic(header, length, 0, "ID3") || length < 10) {
+            return 0;
+        }
+        int size = 0;
+        for (int i = 6; i < 10; i++) {
+            size = (size << 7) | (header[i] & 0x7F);
+        }
+        int footer = ((header[5] & 0x10) != 0) ? 10 : 0;
+        return 10 + size + footer;
+    }
+
     public static boolean isFilenameSupported(String filename) {
         String[] components = filename.toLowerCase().split("\\.");
         if (components.length < 2) {
@@ -119,7 +268,18 @@ public class CheapSoundFile {
     }
 
     protected ProgressListener mProgressListener = null;
+    protected FrameListener mFrameListener = null;
     protected File mInputFile = null;
+    protected boolean mParallelScanEnabled = true;
+
+    // The start of the file, if create() already read it to probe the
+    // format; see getHeader()
+    private byte[] mHeader = null;
+    private int mHeaderLength;
+
+    // Frames passed to the FrameListener so far
+    private int mDeliveredFrames;
+    private boolean mFramesCancelled;
 
     protected CheapSoundFile() {
     }
@@ -127,17 +287,103 @@ public class CheapSoundFile {
     public void ReadFile(File inputFile)
         throws java.io.FileNotFoundException,
                java.io.IOException {
+        if (mInputFile != null && !mInputFile.equals(inputFile)) {
+            mHeader = null;
+        }
         mInputFile = inputFile;
+        mDeliveredFrames = 0;
+        mFramesCancelled = false;
+    }
+
+    /**
+     * Returns the first HEADER_SIZE bytes of the input file, or all of
+     * it if it is shorter; see getHeaderLength().  The bytes create()
+     * probed the format with are reused, so the header is only read
+     * from the file if ReadFile was called directly.
+     */
+    protected byte[] getHeader() throws java.io.IOException {
+        if (mHeader == null) {
+            byte[] header = new byte[HEADER_SIZE];
+            mHeaderLength = readHeader(mInputFile, header);
+            mHeader = header;
+        }
+        return mHeader;
+    }
+
+    protected int getHeaderLength() throws java.io.IOException {
+        getHeader();
+        return mHeaderLength;
     }
 
     public void setProgressListener(ProgressListener progressListener) {
         mProgressListener = progressListener;
     }
 
+    public void setFrameListener(FrameListener frameListener) {
+        mFrameListener = frameListener;
+    }
+
+    /**
+     * Passes the gains of the frames before numFrames that the
+     * FrameListener hasn't had yet, if they make up at least a whole
+     * slice, so subclasses can call this after every frame.  The gains
+     * of those frames must be final.  Returns false once the listener
+     * has asked to stop.
+     */
+    protected boolean deliverFrames(int numFrames) {
+        if (mFrameListener == null ||
+            numFrames - mDeliveredFrames < FRAME_SLICE_SIZE) {
+            return !mFramesCancelled;
+        }
+        return deliverFramesUpTo(numFrames - (numFrames - mDeliveredFrames) % FRAME_SLICE_SIZE);
+    }
+
+    /**
+     * Passes the gains of all frames the FrameListener hasn't had yet;
+     * subclasses call this once they are done reading.
+     */
+    protected boolean deliverRemainingFrames() {
+        return deliverFramesUpTo(getNumFrames());
+    }
+
+    private boolean deliverFramesUpTo(int numFrames) {
+        if (mFrameListener == null || mFramesCancelled) {
+            return !mFramesCancelled;
+        }
+        int[] gains = getFrameGains();
+        while (mDeliveredFrames < numFrames) {
+            int count = Math.min(numFrames - mDeliveredFrames, FRAME_SLICE_SIZE);
+            if (!mFrameListener.framesAvailable(mDeliveredFrames, gains,
+                                                mDeliveredFrames, count)) {
+                mFramesCancelled = true;
+                return false;
+            }
+            mDeliveredFrames += count;
+        }
+        return true;
+    }
+
+    /**
+     * Lets subclasses that support it scan large files on several
+     * threads.  The result is the same either way; the default is on.
+     */
+    public void setParallelScanEnabled(boolean enabled) {
+        mParallelScanEnabled = enabled;
+    }
+
     public int getNumFrames() {
         return 0;
     }
 
+    /**
+     * Returns the number of frames the file will have once it has been
+     * read completely.  Formats that store this in their header know it
+     * before ReadFile is done; the rest return the frames read so far.
+     */
+    public int getExpectedNumFrames() {
+        return getNumFrames();
+    }
+
     public int getSamplesPerFrame() {
         return 0;
     }
@@ -146,7 +392,99 @@ public class CheapSoundFile {
         return null;
     }
 
-    public int getFileSizeBytes() {
+    /**
+     * Returns the start times of the frames, for formats whose frames
+     * don't all last getSamplesPerFrame() samples, or null if they do.
+     */
+    FrameTimeIndex getFrameTimeIndex() {
+        return null;
+    }
+
+    /**
+     * Returns the time, in seconds, of a position between frames: 1.5 is
+     * halfway through the second frame.
+     */
+    public double framesToSeconds(double frames) {
+        FrameTimeIndex index = getFrameTimeIndex();
+        if (index != null) {
+            return index.getSeconds(frames);
+        }
+        return frames * getSamplesPerFrame() / getSampleRate();
+    }
+
+    /**
+     * Returns the position between frames of the given time in seconds.
+     */
+    public double secondsToFrames(double seconds) {
+        FrameTimeIndex index = getFrameTimeIndex();
+        if (index != null) {
+            return index.getFrame(seconds);
+        }
+        return seconds * getSampleRate() / getSamplesPerFrame();
+    }
+
+    // Layout of the values getFrameEnvelope() stores per channel
+    public static final int ENVELOPE_MIN = 0;
+    public static final int ENVELOPE_MAX = 1;
+    public static final int ENVELOPE_RMS = 2;
+    public static final int ENVELOPE_VALUES = 3;
+
+    /**
+     * Returns the volume envelope of every channel: for each frame and
+     * channel, the smallest and largest sample and the RMS level, all
+     * scaled to the range of a signed 16-bit sample.  Everything is
+     * packed into a single array of getEnvelopeStride() values per
+     * frame; the values for channel c of frame f are at
+     *   f * getEnvelopeStride() + c * ENVELOPE_VALUES + ENVELOPE_MIN, etc.
+     *
+     * Formats that don't decode any samples estimate the envelope from
+     * their frame gains, so min and max are symmetric.  This default
+     * does that for a single channel.  The array may be built on every
+     * call, so hold on to it rather than calling this repeatedly.
+     */
+    public short[] getFrameEnvelope() {
+        int numFrames = getNumFrames();
+        int[] gains = getFrameGains();
+        int maxGain = 1;
+        for (int i = 0; i < numFrames; i++) {
+            if (gains[i] > maxGain)
+                maxGain = gains[i];
+        }
+
+        short[] envelope = new short[numFrames * ENVELOPE_VALUES];
+        for (int i = 0; i < numFrames; i++) {
+            putEstimatedEnvelope(envelope, i * ENVELOPE_VALUES,
+                                 gains[i], maxGain);
+        }
+        return envelope;
+    }
+
+    /**
+     * Returns the number of channels in getFrameEnvelope(), which can be
+     * less than getChannels() for formats that only have one gain value
+     * per frame.
+     */
+    public int getEnvelopeChannels() {
+        return 1;
+    }
+
+    public int getEnvelopeStride() {
+        return getEnvelopeChannels() * ENVELOPE_VALUES;
+    }
+
+    /**
+     * Stores the envelope of one channel of one frame estimated from its
+     * gain, taking the gain as the peak level of a sine wave.
+     */
+    protected static void putEstimatedEnvelope(short[] envelope, int index,
+                                               int gain, int maxGain) {
+        int peak = (int) ((long) Math.max(gain, 0) * Short.MAX_VALUE / maxGain);
+        envelope[index + ENVELOPE_MIN] = (short) -peak;
+        envelope[index + ENVELOPE_MAX] = (short) peak;
+        envelope[index + ENVELOPE_RMS] = (short) (peak * 0.7071f);
+    }
+
+    public long getFileSizeBytes() {
         return 0;
     }
 
@@ -172,7 +510,7 @@ public class CheapSoundFile {
      * the header, this returns the byte offset of the given frame,
      * otherwise returns -1.
      */
-    public int getSeekableFrameOffset(int frame) {
+    public long getSeekableFrameOffset(int frame) {
         return -1;
     }
 
@@ -16,9 +16,9 @@
 
 package com.semantive.waveformandroid.waveform.soundfile;
 
-import android.util.Log;
-
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * CheapWAV represents a standard 16-bit WAV file, splitting it into
@@ -29,6 +29,11 @@ import java.io.File;
 public class CheapWAV extends CheapSoundFile {
     public static final String TAG = "CheapWAV";
 
+    // Files with fewer frames than this are always read on one thread
+    private static final int PARALLEL_MIN_FRAMES = 4096;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int PROGRESS_INTERVAL_FRAMES = 256;
+
     public static Factory getFactory() {
         return new Factory() {
             public CheapSoundFile create() {
@@ -37,13 +42,26 @@ public class CheapWAV extends CheapSoundFile {
             public String[] getSupportedExtensions() {
                 return new String[]{"wav"};
             }
+            public int probe(byte[] header, int length) {
+                return probeHeader(header, length);
+            }
         };
     }
 
+    static int probeHeader(byte[] header, int length) {
+        if ((hasMagic(header, length, 0, "RIFF") ||
+             hasMagic(header, length, 0, "RF64")) &&
+            hasMagic(header, length, 8, "WAVE")) {
+            return PROBE_CERTAIN;
+        }
+        return PROBE_NONE;
+    }
+
     // Member variables containing frame info
     private int mNumFrames;
     private int[] mFrameGains;
-    private int mFileSize;
+    private short[] mFrameEnvelope;
+    private long mFileSize;
     private int mSampleRate;
     private int mChannels;
 
@@ -62,7 +80,15 @@ public class CheapWAV extends CheapSoundFile {
         return mFrameGains;
     }
 
-    public int getFileSizeBytes() {
+    public short[] getFrameEnvelope() {
+        return mFrameEnvelope;
+    }
+
+    public int getEnvelopeChannels() {
+        return mChannels;
+    }
+
+    public long getFileSizeBytes() {
         return mFileSize;
     }
 
@@ -84,42 +110,176 @@ public class CheapWAV extends CheapSoundFile {
 
     public void ReadFile(File inputFile) throws java.io.IOException {
         super.ReadFile(inputFile);
-        mFileSize = (int) mInputFile.length();
+        mFileSize = mInputFile.length();
 
         if (mFileSize < 128) {
             throw new java.io.IOException("File too small to parse");
         }
+        WavFile wavFile = null;
         try {
-            WavFile wavFile = WavFile.openWavFile(inputFile);
+            wavFile = WavFile.openWavFile(inputFile);
             mNumFrames = (int) (wavFile.getNumFrames() / getSamplesPerFrame());
             mFrameGains = new int[mNumFrames];
             mSampleRate = (int) wavFile.getSampleRate();
             mChannels = wavFile.getNumChannels();
+            mFrameEnvelope = new short[mNumFrames * getEnvelopeStride()];
 
-            int gain, value;
-            int[] buffer = new int[getSamplesPerFrame()];
-            for (int i = 0; i < mNumFrames; i++) {
-                gain = -1;
-                wavFile.readFrames(buffer, getSamplesPerFrame());
-                for (int j = 0; j < getSamplesPerFrame(); j++) {
-                    value = buffer[j];
-                    if (gain < value) {
-                        gain = value;
-                    }
-                }
-                mFrameGains[i] = (int) Math.sqrt(gain);
-                if (mProgressListener != null) {
-                    boolean keepGoing = mProgressListener.reportProgress(i * 1.0 / mFrameGains.length);
-                    if (!keepGoing) {
+            if (mParallelScanEnabled &&
+                ParallelScanner.getParallelism() > 1 &&
+                mNumFrames >= PARALLEL_MIN_FRAMES) {
+                readFramesParallel(wavFile);
+            } else {
+                FrameReader reader = new FrameReader(wavFile);
+                for (int i = 0; i < mNumFrames; i++) {
+                    reader.readFrame(i);
+                    if (!deliverFrames(i + 1)) {
                         break;
                     }
+                    if (mProgressListener != null) {
+                        boolean keepGoing = mProgressListener.reportProgress(i * 1.0 / mFrameGains.length);
+                        if (!keepGoing) {
+                            break;
+                        }
+                    }
                 }
             }
+            deliverRemainingFrames();
+        } catch (WavFileException e) {
+            // The same as the parallel path, which can only throw
+            // IOExceptions from its chunks
+            throw new java.io.IOException(e);
+        } finally {
             if (wavFile != null) {
                 wavFile.close();
             }
-        } catch (WavFileException e) {
-            Log.e(TAG, "Exception while reading wav file", e);
         }
     }
+
+    /**
+     * WAV frames are all the same size, so the frames can be split into
+     * chunks that are read at the same time, each through its own region
+     * of the file.  Every chunk fills in its own part of the arrays.
+     */
+    private void readFramesParallel(final WavFile wavFile) throws java.io.IOException {
+        int numChunks = ParallelScanner.getParallelism() * CHUNKS_PER_THREAD;
+        int chunkFrames = Math.max(mNumFrames / numChunks, PARALLEL_MIN_FRAMES / 4);
+
+        List<ParallelScanner.Chunk> chunks = new ArrayList<>();
+        final List<Integer> chunkEnds = new ArrayList<>();
+        for (int start = 0; start < mNumFrames; start += chunkFrames) {
+            final int first = start;
+            final int last = Math.min(start + chunkFrames, mNumFrames);
+            chunkEnds.add(last);
+            chunks.add(scanner -> {
+                WavFile region = wavFile.openRegion((long) first * getSamplesPerFrame());
+                try {
+                    FrameReader reader = new FrameReader(region);
+                    int reported = first;
+                    for (int i = first; i < last; i++) {
+                        reader.readFrame(i);
+                        if (i - reported == PROGRESS_INTERVAL_FRAMES) {
+                            scanner.addProgress(i - reported);
+                            reported = i;
+                            if (scanner.isCancelled()) {
+                                return;
+                            }
+                        }
+                    }
+                    scanner.addProgress(last - reported);
+                } catch (WavFileException e) {
+                    throw new java.io.IOException(e);
+                } finally {
+                    region.close();
+                }
+            });
+        }
+
+        new ParallelScanner(mProgressListener, mNumFrames).run(
+            chunks, index -> deliverFrames(chunkEnds.get(index)));
+    }
+
+    /**
+     * Computes the gain and the envelope of frames read from a WavFile.
+     */
+    private class FrameReader {
+        private final WavFile mWavFile;
+        private final int mZero;
+        private final float mScale;
+        private final int[] mBuffer;
+        private final int[] mMin;
+        private final int[] mMax;
+        private final double[] mSumSquares;
+
+        FrameReader(WavFile wavFile) {
+            mWavFile = wavFile;
+
+            // Samples of 8 bits are unsigned, larger ones are signed.  The
+            // envelope is scaled to 16 bits by the size of the container.
+            int sampleBits = (wavFile.getValidBits() + 7) / 8 * 8;
+            mZero = (sampleBits == 8) ? 128 : 0;
+            mScale = (float) Math.pow(2, 16 - sampleBits);
+
+            mBuffer = new int[getSamplesPerFrame() * mChannels];
+            mMin = new int[mChannels];
+            mMax = new int[mChannels];
+            mSumSquares = new double[mChannels];
+        }
+
+        /**
+         * Reads the next frame from the WavFile and stores its gain and
+         * envelope as those of the given frame.
+         */
+        void readFrame(int frame) throws java.io.IOException, WavFileException {
+            int samplesPerFrame = getSamplesPerFrame();
+            int channels = mChannels;
+            int[] buffer = mBuffer;
+            int[] min = mMin;
+            int[] max = mMax;
+            double[] sumSquares = mSumSquares;
+            int zero = mZero;
+
+            int gain = -1;
+            int value;
+            for (int c = 0; c < channels; c++) {
+                min[c] = Integer.MAX_VALUE;
+                max[c] = Integer.MIN_VALUE;
+                sumSquares[c] = 0;
+            }
+            mWavFile.readFrames(buffer, samplesPerFrame);
+
+            // One pass over the interleaved samples does the gain and
+            // the envelope of every channel
+            for (int j = 0; j < buffer.length; ) {
+                for (int c = 0; c < channels; c++, j++) {
+                    value = buffer[j];
+                    if (gain < value) {
+                        gain = value;
+                    }
+                    value -= zero;
+                    if (value < min[c])
+                        min[c] = value;
+                    if (value > max[c])
+                        max[c] = value;
+                    sumSquares[c] += (double) value * value;
+                }
+            }
+            mFrameGains[frame] = (int) Math.sqrt(gain);
+
+            int index = frame * channels * ENVELOPE_VALUES;
+            for (int c = 0; c < channels; c++, index += ENVELOPE_VALUES) {
+                double rms = Math.sqrt(sumSquares[c] / samplesPerFrame);
+                mFrameEnvelope[index + ENVELOPE_MIN] = toShort(min[c] * mScale);
+                mFrameEnvelope[index + ENVELOPE_MAX] = toShort(max[c] * mScale);
+                mFrameEnvelope[index + ENVELOPE_RMS] = toShort(rms * mScale);
+            }
+        }
+    }
+
+    private static short toShort(double value) {
+        if (value >= Short.MAX_VALUE)
+            return Short.MAX_VALUE;
+        if (value <= Short.MIN_VALUE)
+            return Short.MIN_VALUE;
+        return (short) value;
+    }
 }
@@ -0,0 +1,152 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+/**
+ * Compact index of the byte offset at which each frame starts.
+ *
+ * Offsets are added in increasing order while a file is scanned.  They
+ * are grouped in blocks of 64 frames: each block keeps the absolute
+ * offset of its first frame, and the distances to the following frames
+ * are stored as bit-packed differences from the smallest distance in
+ * the block.  CBR streams therefore cost about one bit per frame and VBR
+ * streams around ten, instead of the 64 a long[] would need, while a
+ * lookup never has to decode more than one block.  Distances between
+ * consecutive frames must fit in an int; offsets themselves needn't.
+ */
+class FrameOffsetIndex {
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private int mSize;
+
+    // Per-block data
+    private int mNumBlocks;
+    private long[] mBlockOffsets;   // Offset of the first frame in the block
+    private int[] mBlockMinDeltas;  // Smallest distance between two frames
+    private int[] mBlockBitStarts;  // Position of the block in mBits
+    private byte[] mBlockWidths;    // Bits used per distance
+
+    // Packed distances of all blocks
+    private long[] mBits;
+    private int mBitCount;
+
+    // Offsets of the block that is still being filled
+    private long[] mPending;
+    private int mNumPending;
+
+    public FrameOffsetIndex(int expectedFrames) {
+        int blocks = Math.max((expectedFrames >> BLOCK_SHIFT) + 1, 4);
+        mBlockOffsets = new long[blocks];
+        mBlockMinDeltas = new int[blocks];
+        mBlockBitStarts = new int[blocks];
+        mBlockWidths = new byte[blocks];
+        mBits = new long[blocks];
+        mPending = new long[BLOCK_SIZE];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Appends the offset of the next frame.  Offsets must not decrease.
+     */
+    public void add(long offset) {
+        mPending[mNumPending++] = offset;
+        mSize++;
+        if (mNumPending == BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Returns the offset of the given frame, which must be less than
+     * size().
+     */
+    public long get(int frame) {
+        int block = frame >> BLOCK_SHIFT;
+        int index = frame & (BLOCK_SIZE - 1);
+        if (block == mNumBlocks) {
+            return mPending[index];
+        }
+
+        long offset = mBlockOffsets[block] + (long) index * mBlockMinDeltas[block];
+        int width = mBlockWidths[block];
+        if (width > 0) {
+            int bitPos = mBlockBitStarts[block];
+            for (int i = 0; i < index; i++) {
+                offset += readBits(bitPos, width);
+                bitPos += width;
+            }
+        }
+        return offset;
+    }
+
+    private void flushBlock() {
+        if (mNumBlocks == mBlockOffsets.length) {
+            int newLength = mNumBlocks * 3 / 2 + 1;
+            mBlockOffsets = java.util.Arrays.copyOf(mBlockOffsets, newLength);
+            mBlockMinDeltas = grow(mBlockMinDeltas, newLength);
+            mBlockBitStarts = grow(mBlockBitStarts, newLength);
+            byte[] newWidths = new byte[newLength];
+            System.arraycopy(mBlockWidths, 0, newWidths, 0, mNumBlocks);
+            mBlockWidths = newWidths;
+        }
+
+        int minDelta = Integer.MAX_VALUE;
+        int maxDelta = 0;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            int delta = (int) (mPending[i] - mPending[i - 1]);
+            if (delta < minDelta)
+                minDelta = delta;
+            if (delta > maxDelta)
+                maxDelta = delta;
+        }
+        int width = 32 - Integer.numberOfLeadingZeros(maxDelta - minDelta);
+
+        int block = mNumBlocks++;
+        mBlockOffsets[block] = mPending[0];
+        mBlockMinDeltas[block] = minDelta;
+        mBlockBitStarts[block] = mBitCount;
+        mBlockWidths[block] = (byte) width;
+
+        if (width > 0) {
+            int needed = ((mBitCount + width * (BLOCK_SIZE - 1)) >> 6) + 1;
+            if (needed > mBits.length) {
+                long[] newBits = new long[Math.max(needed, mBits.length * 3 / 2)];
+                System.arraycopy(mBits, 0, newBits, 0, mBits.length);
+                mBits = newBits;
+            }
+            for (int i = 1; i < BLOCK_SIZE; i++) {
+                writeBits((int) (mPending[i] - mPending[i - 1]) - minDelta, width);
+            }
+        }
+        mNumPending = 0;
+    }
+
+    private void writeBits(int value, int width) {
+        long v = value & 0xffffffffL;
+        int word = mBitCount >> 6;
+        int shift = mBitCount & 63;
+        mBits[word] |= v << shift;
+        if (shift + width > 64) {
+            mBits[word + 1] |= v >>> (64 - shift);
+        }
+        mBitCount += width;
+    }
+
+    private int readBits(int bitPos, int width) {
+        int word = bitPos >> 6;
+        int shift = bitPos & 63;
+        long v = mBits[word] >>> shift;
+        if (shift + width > 64) {
+            v |= mBits[word + 1] << (64 - shift);
+        }
+        return (int) (v & ((1L << width) - 1));
+    }
+
+    private static int[] grow(int[] array, int newLength) {
+        int[] newArray = new int[newLength];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
@@ -0,0 +1,173 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+/**
+ * Start time of every frame of a file whose frames don't all last as
+ * long, stored as runs of frames of the same duration, the way the stts
+ * atom of MP4 files does.  Most files have only a couple of runs, so this
+ * is far smaller than a timestamp per frame.
+ *
+ * Times are in units of the timescale, getTimescale() per second.  Looking
+ * up the time of a frame checks the run of the previous lookup first, so
+ * walking the frames in order is O(1) per frame; other lookups do a
+ * binary search over the runs, as does finding the frame at a time.
+ *
+ * Frames past the end of the index are taken to last as long as the last
+ * frame, so the index can be used while a file is still being read.
+ */
+class FrameTimeIndex {
+    private int mTimescale;
+
+    private int mNumRuns;
+    private int[] mRunFirstFrames = new int[4];
+    private long[] mRunStartTimes = new long[4];
+    private int[] mRunDurations = new int[4];
+    private int mNumFrames;
+
+    // Run of the last lookup
+    private int mLastRun;
+
+    public FrameTimeIndex(int timescale) {
+        mTimescale = timescale;
+    }
+
+    public int getTimescale() {
+        return mTimescale;
+    }
+
+    /**
+     * Sets the number of time units per second, for files that only tell
+     * after listing the frame durations.
+     */
+    public void setTimescale(int timescale) {
+        mTimescale = timescale;
+    }
+
+    /**
+     * Returns the number of runs of frames of the same duration.
+     */
+    public int getNumRuns() {
+        return mNumRuns;
+    }
+
+    /**
+     * Returns the duration of the frames of the first run, 0 if empty.
+     */
+    public int getFirstDuration() {
+        return (mNumRuns > 0) ? mRunDurations[0] : 0;
+    }
+
+    /**
+     * Returns the number of frames in the given run.
+     */
+    public int getRunLength(int run) {
+        int end = (run + 1 < mNumRuns) ? mRunFirstFrames[run + 1] : mNumFrames;
+        return end - mRunFirstFrames[run];
+    }
+
+    /**
+     * Returns the duration of the frames of the given run.
+     */
+    public int getRunDuration(int run) {
+        return mRunDurations[run];
+    }
+
+    public int size() {
+        return mNumFrames;
+    }
+
+    /**
+     * Appends count frames that each last duration time units.
+     */
+    public void add(int count, int duration) {
+        if (count <= 0) {
+            return;
+        }
+        if (mNumRuns == 0 || mRunDurations[mNumRuns - 1] != duration) {
+            if (mNumRuns == mRunFirstFrames.length) {
+                int maxRuns = mNumRuns * 2;
+                mRunFirstFrames = java.util.Arrays.copyOf(mRunFirstFrames, maxRuns);
+                mRunStartTimes = java.util.Arrays.copyOf(mRunStartTimes, maxRuns);
+                mRunDurations = java.util.Arrays.copyOf(mRunDurations, maxRuns);
+            }
+            mRunFirstFrames[mNumRuns] = mNumFrames;
+            mRunStartTimes[mNumRuns] = getTime(mNumFrames);
+            mRunDurations[mNumRuns] = duration;
+            mNumRuns++;
+        }
+        mNumFrames += count;
+    }
+
+    /**
+     * Returns the time at which the given frame starts, in time units.
+     */
+    public long getTime(int frame) {
+        if (mNumRuns == 0) {
+            return 0;
+        }
+        int run = findRunOfFrame(frame);
+        return mRunStartTimes[run] +
+            (long) (frame - mRunFirstFrames[run]) * mRunDurations[run];
+    }
+
+    /**
+     * Returns the time of a position between frames, in seconds.
+     */
+    public double getSeconds(double frame) {
+        if (mNumRuns == 0) {
+            return 0;
+        }
+        int whole = (int) Math.floor(frame);
+        int run = findRunOfFrame(whole);
+        double time = mRunStartTimes[run] +
+            (frame - mRunFirstFrames[run]) * mRunDurations[run];
+        return time / mTimescale;
+    }
+
+    /**
+     * Returns the position, between frames, of the given time in seconds.
+     */
+    public double getFrame(double seconds) {
+        if (mNumRuns == 0) {
+            return 0;
+        }
+        double time = seconds * mTimescale;
+
+        // Last run that starts at or before time
+        int low = 0;
+        int high = mNumRuns - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mRunStartTimes[mid] <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (mRunDurations[low] == 0) {
+            return mRunFirstFrames[low];
+        }
+        return mRunFirstFrames[low] +
+            (time - mRunStartTimes[low]) / mRunDurations[low];
+    }
+
+    private int findRunOfFrame(int frame) {
+        int run = mLastRun;
+        if (run < mNumRuns && mRunFirstFrames[run] <= frame &&
+            (run == mNumRuns - 1 || frame < mRunFirstFrames[run + 1])) {
+            return run;
+        }
+
+        int low = 0;
+        int high = mNumRuns - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mRunFirstFrames[mid] <= frame) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        mLastRun = low;
+        return low;
+    }
+}
@@ -0,0 +1,203 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the chunks of a file scan on a shared pool of worker threads.
+ *
+ * The pool has one thread per core and chunks are queued on it, so a
+ * thread that is done with its chunk simply takes the next one; callers
+ * should split their work into a few chunks per thread to keep all
+ * cores busy until the end.  (ForkJoinPool would do the same, but it is
+ * not available before API level 21.)
+ *
+ * Workers add the amount of work they have done, in whatever unit
+ * the caller chose for the total (bytes, frames...), to a shared
+ * counter.  The calling thread turns that into calls to the
+ * ProgressListener, so the listener is never called concurrently, and
+ * if the listener asks to stop, the workers are told to give up.  The
+ * calling thread can also be told when the chunks are done, in order,
+ * to hand on their results while the later chunks are still scanned.
+ */
+class ParallelScanner {
+    public interface Chunk {
+        /**
+         * Scans this chunk.  Implementations should call addProgress()
+         * every now and then and return early once isCancelled() is true.
+         */
+        void scan(ParallelScanner scanner) throws IOException;
+    }
+
+    public interface ChunkListener {
+        /**
+         * Called on the thread that called run() once the chunk with the
+         * given index and all chunks before it have been scanned.  Return
+         * true to continue, and false to cancel the scan.
+         */
+        boolean chunkScanned(int index) throws IOException;
+    }
+
+    private static final int PROGRESS_INTERVAL_MS = 50;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    // Number of chunks to scan at a time, 0 for one per core
+    private static int sParallelism;
+
+    public static int getParallelism() {
+        if (sParallelism > 0) {
+            return sParallelism;
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Sets the number of chunks to scan at a time, or 0 for one per core,
+     * so that tests can take the parallel paths on a single core.  The
+     * threads are only created once, so a scan may have fewer.
+     */
+    static void setParallelism(int parallelism) {
+        sParallelism = parallelism;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            int threads = getParallelism();
+            sExecutor = new ThreadPoolExecutor(
+                threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CheapSoundFile scan");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    private final CheapSoundFile.ProgressListener mProgressListener;
+    private final long mTotalWork;
+    private final AtomicLong mWorkDone = new AtomicLong();
+    private volatile boolean mCancelled;
+
+    public ParallelScanner(CheapSoundFile.ProgressListener progressListener,
+                           long totalWork) {
+        mProgressListener = progressListener;
+        mTotalWork = Math.max(totalWork, 1);
+    }
+
+    public void addProgress(long work) {
+        mWorkDone.addAndGet(work);
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Scans all chunks and waits for them to finish.  Returns false if
+     * the ProgressListener cancelled the scan, in which case only some
+     * of the chunks will have been scanned completely.
+     */
+    public boolean run(List<? extends Chunk> chunks) throws IOException {
+        return run(chunks, null);
+    }
+
+    /**
+     * Like run(List), and calls the ChunkListener for each chunk in
+     * order, until the scan is cancelled.
+     */
+    public boolean run(List<? extends Chunk> chunks, ChunkListener listener)
+            throws IOException {
+        ThreadPoolExecutor executor = getExecutor();
+        List<Future<?>> futures = new ArrayList<>(chunks.size());
+        for (final Chunk chunk : chunks) {
+            futures.add(executor.submit(() -> {
+                if (!mCancelled) {
+                    chunk.scan(this);
+                }
+                return null;
+            }));
+        }
+
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<?> future = futures.get(i);
+            boolean scanned = false;
+            while (true) {
+                try {
+                    future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    scanned = true;
+                    break;
+                } catch (TimeoutException e) {
+                    reportProgress();
+                } catch (ExecutionException e) {
+                    // Stop the others, but wait for them so that nobody
+                    // touches the file once we've returned.
+                    mCancelled = true;
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    mCancelled = true;
+                    interrupted = true;
+                    if (failure == null) {
+                        failure = new InterruptedIOException();
+                    }
+                }
+            }
+
+            if (scanned && listener != null && !mCancelled) {
+                try {
+                    if (!listener.chunkScanned(i)) {
+                        mCancelled = true;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    mCancelled = true;
+                    failure = e;
+                }
+            }
+        }
+        reportProgress();
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException(failure.toString());
+        }
+        return !mCancelled;
+    }
+
+    private void reportProgress() {
+        if (mProgressListener != null && !mCancelled) {
+            boolean keepGoing = mProgressListener.reportProgress(
+                Math.min(mWorkDone.get() * 1.0 / mTotalWork, 1.0));
+            if (!keepGoing) {
+                mCancelled = true;
+            }
+        }
+    }
+}
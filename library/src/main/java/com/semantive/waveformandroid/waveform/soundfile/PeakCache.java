@@ -0,0 +1,420 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Keeps what reading a sound file found out about its frames in a
+ * directory, so opening the same file again takes a lookup instead of
+ * a scan of the whole file.
+ *
+ * Every file gets one entry, named after a hash of its path.  The entry
+ * holds the size and modification time the file had and an MD5 of
+ * SAMPLE_BLOCKS blocks spread over it, and is only used while all three
+ * still match; the sampled hash catches files that were rewritten in
+ * place with the same size within the resolution of the mtime.
+ *
+ * Entries are big-endian:
+ *   int     MAGIC, VERSION
+ *   long    file size, modification time
+ *   byte[]  MD5 of the sampled blocks, 16 bytes
+ *   string  path, file type (int length, UTF-8 bytes)
+ *   int     sample rate, samples per frame, channels, average kbps
+ *   int     number of frames, bytes per gain (2 or 4)
+ *   int     timescale, number of runs, then count and duration of each
+ *           run of the FrameTimeIndex; no runs if frames last as long
+ *   int     1 if frame offsets follow, 0 if not
+ *   long    offset of frame 0, then an int distance to each next frame
+ *           up to the end of the audio, if there are frame offsets
+ *   gains   one short or int per frame
+ *   int     number of channels of the envelope
+ *   short   the envelope, getEnvelopeStride() values per frame
+ * and are read through a memory mapping.
+ *
+ * Once the entries take up more than the budget given to the cache,
+ * those used least recently are deleted.  Using an entry updates its
+ * modification time, which is what the order is taken from.
+ */
+public class PeakCache {
+    private static final int MAGIC = 0x5746504b;  // "WFPK"
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".peaks";
+
+    // Blocks read to compute the sampled hash of a file
+    private static final int SAMPLE_BLOCKS = 16;
+    private static final int SAMPLE_BLOCK_SIZE = 4096;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * Creates a cache in the given directory, which is created when the
+     * first entry is written, that deletes entries once they take up
+     * more than maxBytes.
+     */
+    public PeakCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached frames of the given file, or null if there are
+     * none or the file has changed since they were stored.
+     */
+    public CheapSoundFile get(File file) throws IOException {
+        File entry = getEntryFile(file);
+        if (!entry.isFile()) {
+            return null;
+        }
+
+        CheapSoundFile soundFile;
+        RandomAccessFile raf = new RandomAccessFile(entry, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            soundFile = readEntry(buffer, file);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // Cut short or corrupt
+            soundFile = null;
+        } finally {
+            raf.close();
+        }
+
+        if (soundFile == null) {
+            entry.delete();
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return soundFile;
+    }
+
+    /**
+     * Stores the frames of a sound file that has been read completely
+     * from the given file, then trims the cache to its budget.
+     */
+    public void put(File file, CheapSoundFile soundFile) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+
+        // Write under another name and rename, so that readers never
+        // see half an entry
+        File entry = getEntryFile(file);
+        File temp = new File(mDirectory, entry.getName() + ".tmp");
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                writeEntry(out, file, soundFile);
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            // trim() only looks at whole entries, so don't leave half
+            // of one behind, e.g. when the disk is full
+            if (!written) {
+                temp.delete();
+            }
+        }
+        if (!temp.renameTo(entry)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp);
+        }
+
+        trim();
+    }
+
+    /**
+     * Deletes the entries used least recently until the rest fit in the
+     * budget.
+     */
+    public void trim() {
+        File[] entries = mDirectory.listFiles(
+            (File dir, String name) -> name.endsWith(SUFFIX));
+        if (entries == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File entry : entries) {
+            totalBytes += entry.length();
+        }
+        if (totalBytes <= mMaxBytes) {
+            return;
+        }
+
+        // The times can change while sorting, so take them first
+        final long[] lastUsed = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            lastUsed[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (Integer a, Integer b) -> Long.compare(lastUsed[a], lastUsed[b]));
+
+        for (int i = 0; i < order.length && totalBytes > mMaxBytes; i++) {
+            File entry = entries[order[i]];
+            long length = entry.length();
+            if (entry.delete()) {
+                totalBytes -= length;
+            }
+        }
+    }
+
+    File getEntryFile(File file) {
+        byte[] hash = md5().digest(getBytes(file.getAbsolutePath()));
+        return new File(mDirectory, CheapSoundFile.bytesToHex(hash) + SUFFIX);
+    }
+
+    private CheapSoundFile readEntry(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+
+        // Cheap checks first: the hash means reading from the file
+        long fileSize = buffer.getLong();
+        long lastModified = buffer.getLong();
+        if (fileSize != file.length() || lastModified != file.lastModified()) {
+            return null;
+        }
+        byte[] sampleHash = new byte[16];
+        buffer.get(sampleHash);
+        if (!getString(buffer).equals(file.getAbsolutePath()) ||
+            !Arrays.equals(sampleHash, computeSampleHash(file))) {
+            return null;
+        }
+
+        String filetype = getString(buffer);
+        int sampleRate = buffer.getInt();
+        int samplesPerFrame = buffer.getInt();
+        int channels = buffer.getInt();
+        int avgBitrateKbps = buffer.getInt();
+        int numFrames = buffer.getInt();
+        int gainBytes = buffer.getInt();
+        if (numFrames < 0 || (gainBytes != 2 && gainBytes != 4) ||
+            (long) numFrames * gainBytes > buffer.remaining()) {
+            // Not even the gains fit in the entry, so don't allocate for
+            // that many frames
+            return null;
+        }
+
+        int timescale = buffer.getInt();
+        int numRuns = buffer.getInt();
+        FrameTimeIndex frameTimes = null;
+        if (numRuns > 0) {
+            frameTimes = new FrameTimeIndex(timescale);
+            for (int i = 0; i < numRuns; i++) {
+                int count = buffer.getInt();
+                frameTimes.add(count, buffer.getInt());
+            }
+        }
+
+        FrameOffsetIndex frameOffsets = null;
+        if (buffer.getInt() != 0) {
+            frameOffsets = new FrameOffsetIndex(numFrames + 1);
+            long offset = buffer.getLong();
+            frameOffsets.add(offset);
+            for (int i = 0; i < numFrames; i++) {
+                offset += buffer.getInt();
+                frameOffsets.add(offset);
+            }
+        }
+
+        int[] frameGains = new int[numFrames];
+        if (gainBytes == 2) {
+            for (int i = 0; i < numFrames; i++) {
+                frameGains[i] = buffer.getShort() & 0xffff;
+            }
+        } else {
+            buffer.asIntBuffer().get(frameGains);
+            buffer.position(buffer.position() + 4 * numFrames);
+        }
+
+        int envelopeChannels = buffer.getInt();
+        long envelopeLength = (long) numFrames * envelopeChannels * CheapSoundFile.ENVELOPE_VALUES;
+        if (envelopeChannels < 1 || envelopeLength > buffer.remaining() / 2) {
+            return null;
+        }
+        short[] frameEnvelope = new short[(int) envelopeLength];
+        buffer.asShortBuffer().get(frameEnvelope);
+
+        return new CachedSoundFile(filetype, fileSize, sampleRate,
+                                   samplesPerFrame, channels, avgBitrateKbps,
+                                   frameGains, frameTimes, frameOffsets,
+                                   envelopeChannels, frameEnvelope);
+    }
+
+    private void writeEntry(DataOutputStream out, File file,
+                            CheapSoundFile soundFile) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(file.length());
+        out.writeLong(file.lastModified());
+        out.write(computeSampleHash(file));
+        putString(out, file.getAbsolutePath());
+        putString(out, soundFile.getFiletype());
+
+        int numFrames = soundFile.getNumFrames();
+        int[] frameGains = soundFile.getFrameGains();
+        int gainBytes = 2;
+        for (int i = 0; i < numFrames; i++) {
+            if (frameGains[i] < 0 || frameGains[i] > 0xffff) {
+                gainBytes = 4;
+                break;
+            }
+        }
+        out.writeInt(soundFile.getSampleRate());
+        out.writeInt(soundFile.getSamplesPerFrame());
+        out.writeInt(soundFile.getChannels());
+        out.writeInt(soundFile.getAvgBitrateKbps());
+        out.writeInt(numFrames);
+        out.writeInt(gainBytes);
+
+        FrameTimeIndex frameTimes = soundFile.getFrameTimeIndex();
+        if (frameTimes != null) {
+            out.writeInt(frameTimes.getTimescale());
+            out.writeInt(frameTimes.getNumRuns());
+            for (int i = 0; i < frameTimes.getNumRuns(); i++) {
+                out.writeInt(frameTimes.getRunLength(i));
+                out.writeInt(frameTimes.getRunDuration(i));
+            }
+        } else {
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+
+        if (hasFrameOffsets(soundFile)) {
+            out.writeInt(1);
+            long offset = soundFile.getSeekableFrameOffset(0);
+            out.writeLong(offset);
+            for (int i = 1; i <= numFrames; i++) {
+                long next = soundFile.getSeekableFrameOffset(i);
+                out.writeInt((int) (next - offset));
+                offset = next;
+            }
+        } else {
+            out.writeInt(0);
+        }
+
+        for (int i = 0; i < numFrames; i++) {
+            if (gainBytes == 2) {
+                out.writeShort(frameGains[i]);
+            } else {
+                out.writeInt(frameGains[i]);
+            }
+        }
+
+        short[] frameEnvelope = soundFile.getFrameEnvelope();
+        out.writeInt(soundFile.getEnvelopeChannels());
+        for (int i = 0; i < numFrames * soundFile.getEnvelopeStride(); i++) {
+            out.writeShort(frameEnvelope[i]);
+        }
+    }
+
+    /**
+     * Returns whether the sound file has the offsets of all its frames,
+     * and every distance between two of them fits in an int.
+     */
+    private static boolean hasFrameOffsets(CheapSoundFile soundFile) {
+        long offset = soundFile.getSeekableFrameOffset(0);
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 1; i <= soundFile.getNumFrames(); i++) {
+            long next = soundFile.getSeekableFrameOffset(i);
+            if (next < offset || next - offset > Integer.MAX_VALUE) {
+                return false;
+            }
+            offset = next;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the MD5 of the size of the file and SAMPLE_BLOCKS blocks
+     * spread evenly over it, from its first bytes to its last, or of
+     * the whole file if it is smaller than that.
+     */
+    static byte[] computeSampleHash(File file) throws IOException {
+        MessageDigest digest = md5();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ByteBuffer block = ByteBuffer.allocate(SAMPLE_BLOCK_SIZE);
+            block.putLong(size);
+            block.flip();
+            digest.update(block);
+
+            boolean small = size <= (long) SAMPLE_BLOCKS * SAMPLE_BLOCK_SIZE;
+            int numBlocks = small ?
+                (int) ((size + SAMPLE_BLOCK_SIZE - 1) / SAMPLE_BLOCK_SIZE) : SAMPLE_BLOCKS;
+            for (int i = 0; i < numBlocks; i++) {
+                long position = small ? (long) i * SAMPLE_BLOCK_SIZE :
+                    (size - SAMPLE_BLOCK_SIZE) * i / (SAMPLE_BLOCKS - 1);
+                block.clear();
+                while (block.hasRemaining()) {
+                    if (channel.read(block, position + block.position()) < 0) {
+                        break;
+                    }
+                }
+                block.flip();
+                digest.update(block);
+            }
+        } finally {
+            raf.close();
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to have MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = getBytes(s);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Wav file abstraction layer.
@@ -14,19 +16,31 @@ import java.io.IOException;
 public class WavFile {
     private enum IOState {READING, WRITING, CLOSED}
 
-    private final static int BUFFER_SIZE = 4096;
+    // Samples are decoded straight out of this buffer a block at a time,
+    // so it should be large enough that refills are rare
+    private final static int BUFFER_SIZE = 64 * 1024;
 
     private final static int FMT_CHUNK_ID = 0x20746D66;
     private final static int DATA_CHUNK_ID = 0x61746164;
     private final static int RIFF_CHUNK_ID = 0x46464952;
     private final static int RIFF_TYPE_ID = 0x45564157;
 
+    // RF64 files are WAV files over 4 GB.  Their 32-bit sizes are all
+    // 0xFFFFFFFF, the real ones are 64-bit values in a ds64 chunk that
+    // comes first
+    private final static int RF64_CHUNK_ID = 0x34364652;
+    private final static int DS64_CHUNK_ID = 0x34367364;
+    private final static long RF64_SIZE_IN_DS64 = 0xFFFFFFFFL;
+
     private File file;                        // File that will be read from or written to
     private IOState ioState;                // Specifies the IO State of the Wav File (used for snaity checking)
     private int bytesPerSample;            // Number of bytes required to store a single sample
     private long numFrames;                    // Number of frames within the data section
     private FileOutputStream oStream;    // Output stream used for writting data
     private FileInputStream iStream;        // Input stream used for reading data
+    private FileChannel channel;            // Channel used for positional reads by regions, see openRegion()
+    private long channelPosition;            // File position of the next positional read
+    private long dataOffset;                // File position of the first frame
     private float floatScale;                // Scaling factor used for int <-> float conversion
     private float floatOffset;            // Offset factor used for int <-> float conversion
     private boolean wordAlignAdjust;        // Specify if an extra byte at the end of the data chunk is required for word alignment
@@ -96,19 +110,21 @@ public class WavFile {
         long riffTypeID = getLE(wavFile.buffer, 8, 4);
 
         // Check the header bytes contains the correct signature
-        if (riffChunkID != RIFF_CHUNK_ID)
+        boolean rf64 = (riffChunkID == RF64_CHUNK_ID);
+        if (riffChunkID != RIFF_CHUNK_ID && !rf64)
             throw new WavFileException("Invalid Wav Header data, incorrect riff chunk ID");
         if (riffTypeID != RIFF_TYPE_ID) throw new WavFileException("Invalid Wav Header data, incorrect riff type ID");
 
-        // Check that the file size matches the number of bytes listed in header
-        if (file.length() != chunkSize + 8) {
-            throw new WavFileException("Header chunk size (" + chunkSize + ") does not match file size (" + file.length() + ")");
-        }
+        // Check that the file size matches the number of bytes listed in
+        // header; for RF64 files that has to wait for the ds64 chunk
+        if (!rf64) checkFileSize(file, chunkSize);
 
         wavFile.fileSize = chunkSize;
 
         boolean foundFormat = false;
         boolean foundData = false;
+        boolean foundSizes = false;
+        long ds64DataSize = 0;
 
         // Search for the Format and Data Chunks
         while (true) {
@@ -127,7 +143,23 @@ public class WavFile {
             // the actual number of bytes in the chunk
             long numChunkBytes = (chunkSize % 2 == 1) ? chunkSize + 1 : chunkSize;
 
-            if (chunkID == FMT_CHUNK_ID) {
+            if (rf64 && !foundSizes) {
+                if (chunkID != DS64_CHUNK_ID || chunkSize < 24)
+                    throw new WavFileException("RF64 file does not start with a ds64 chunk");
+                foundSizes = true;
+
+                // The sizes of the RIFF chunk and of the data chunk; the
+                // sample count that follows is redundant for PCM
+                bytesRead = wavFile.iStream.read(wavFile.buffer, 0, 24);
+                if (bytesRead != 24) throw new WavFileException("Could not read ds64 chunk");
+                long riffSize = getLE(wavFile.buffer, 0, 8);
+                ds64DataSize = getLE(wavFile.buffer, 8, 8);
+                checkFileSize(file, riffSize);
+                wavFile.fileSize = riffSize;
+
+                numChunkBytes -= 24;
+                if (numChunkBytes > 0) wavFile.iStream.skip(numChunkBytes);
+            } else if (chunkID == FMT_CHUNK_ID) {
                 // Flag that the format chunk has been found
                 foundFormat = true;
 
@@ -168,6 +200,8 @@ public class WavFile {
                 // before we can read the data chunk
                 if (foundFormat == false) throw new WavFileException("Data chunk found before Format chunk");
 
+                if (rf64 && chunkSize == RF64_SIZE_IN_DS64) chunkSize = ds64DataSize;
+
                 // Check that the chunkSize (wav data length) is a multiple of the
                 // block align (bytes per frame)
                 if (chunkSize % wavFile.blockAlign != 0)
@@ -175,6 +209,7 @@ public class WavFile {
 
                 // Calculate the number of frames
                 wavFile.numFrames = chunkSize / wavFile.blockAlign;
+                wavFile.dataOffset = wavFile.iStream.getChannel().position();
 
                 // Flag that we've found the wave data chunk
                 foundData = true;
@@ -210,6 +245,41 @@ public class WavFile {
         return wavFile;
     }
 
+    /**
+     * Returns a WavFile that reads this file's frames from startFrame on.
+     * It reads through positional reads on this file's channel, so any
+     * number of regions can be read at the same time, from different
+     * threads, without disturbing each other or this WavFile.  Regions
+     * must be closed before this WavFile is.
+     */
+    public WavFile openRegion(long startFrame) throws IOException {
+        if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+
+        WavFile region = new WavFile();
+        region.file = file;
+        region.channel = iStream.getChannel();
+        region.channelPosition = dataOffset + startFrame * blockAlign;
+        region.dataOffset = dataOffset;
+        region.numChannels = numChannels;
+        region.sampleRate = sampleRate;
+        region.blockAlign = blockAlign;
+        region.validBits = validBits;
+        region.bytesPerSample = bytesPerSample;
+        region.floatScale = floatScale;
+        region.floatOffset = floatOffset;
+        region.numFrames = numFrames;
+        region.fileSize = fileSize;
+        region.frameCounter = startFrame;
+        region.ioState = IOState.READING;
+        return region;
+    }
+
+    private static void checkFileSize(File file, long riffSize) throws WavFileException {
+        if (file.length() != riffSize + 8) {
+            throw new WavFileException("Header chunk size (" + riffSize + ") does not match file size (" + file.length() + ")");
+        }
+    }
+
     private static long getLE(byte[] buffer, int pos, int numBytes) {
         numBytes--;
         pos += numBytes;
@@ -220,25 +290,41 @@ public class WavFile {
         return val;
     }
 
-    private long readSample() throws IOException, WavFileException {
-        long val = 0;
-
-        for (int b = 0; b < bytesPerSample; b++) {
-            if (bufferPointer == bytesRead) {
-                int read = iStream.read(buffer, 0, BUFFER_SIZE);
-                if (read == -1) throw new WavFileException("Not enough data available");
-                bytesRead = read;
-                bufferPointer = 0;
+    /**
+     * Makes sure at least one whole frame is buffered, moving what is
+     * left of the buffer to the front and reading as much as fits.
+     */
+    private void fillBuffer() throws IOException, WavFileException {
+        int remaining = bytesRead - bufferPointer;
+        System.arraycopy(buffer, bufferPointer, buffer, 0, remaining);
+        bufferPointer = 0;
+        bytesRead = remaining;
+
+        while (bytesRead < blockAlign) {
+            int read;
+            if (channel != null) {
+                read = channel.read(ByteBuffer.wrap(buffer, bytesRead, BUFFER_SIZE - bytesRead), channelPosition);
+                if (read > 0) channelPosition += read;
+            } else {
+                read = iStream.read(buffer, bytesRead, BUFFER_SIZE - bytesRead);
             }
-
-            int v = buffer[bufferPointer];
-            if (b < bytesPerSample - 1 || bytesPerSample == 1) v &= 0xFF;
-            val += v << (b * 8);
-
-            bufferPointer++;
+            if (read == -1) throw new WavFileException("Not enough data available");
+            bytesRead += read;
         }
+    }
 
-        return val;
+    /**
+     * Returns the number of whole frames that can be decoded from the
+     * buffer without reading, limited to the frames left in the file
+     * and to numFramesToRead.  Refills the buffer if it is empty.
+     */
+    private int bufferedFrames(int numFramesToRead) throws IOException, WavFileException {
+        long framesLeft = numFrames - frameCounter;
+        if (framesLeft < numFramesToRead) numFramesToRead = (int) framesLeft;
+        if (numFramesToRead <= 0) return 0;
+
+        if (bytesRead - bufferPointer < blockAlign) fillBuffer();
+        return Math.min((bytesRead - bufferPointer) / blockAlign, numFramesToRead);
     }
 
     public int readFrames(float[] sampleBuffer, int numFramesToRead) throws IOException, WavFileException {
@@ -248,18 +334,20 @@ public class WavFile {
     private int readFramesInternal(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException {
         if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
 
-        for (int f = 0; f < numFramesToRead; f++) {
-            if (frameCounter == numFrames) return f;
-
-            for (int c = 0; c < numChannels; c++) {
-                sampleBuffer[offset] = floatOffset + (float) readSample() / floatScale;
-                offset++;
-            }
-
-            frameCounter++;
+        int framesRead = 0;
+        while (framesRead < numFramesToRead) {
+            int frames = bufferedFrames(numFramesToRead - framesRead);
+            if (frames == 0) break;
+
+            int numSamples = frames * numChannels;
+            decodeSamples(sampleBuffer, offset, numSamples);
+            offset += numSamples;
+            bufferPointer += frames * blockAlign;
+            frameCounter += frames;
+            framesRead += frames;
         }
 
-        return numFramesToRead;
+        return framesRead;
     }
 
     public int readFrames(int[] sampleBuffer, int numFramesToRead) throws IOException, WavFileException {
@@ -269,18 +357,89 @@ public class WavFile {
     private int readFramesInternal(int[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException {
         if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
 
-        for (int f = 0; f < numFramesToRead; f++) {
-            if (frameCounter == numFrames) return f;
+        int framesRead = 0;
+        while (framesRead < numFramesToRead) {
+            int frames = bufferedFrames(numFramesToRead - framesRead);
+            if (frames == 0) break;
+
+            int numSamples = frames * numChannels;
+            decodeSamples(sampleBuffer, offset, numSamples);
+            offset += numSamples;
+            bufferPointer += frames * blockAlign;
+            frameCounter += frames;
+            framesRead += frames;
+        }
 
-            for (int c = 0; c < numChannels; c++) {
-                sampleBuffer[offset] = (int) readSample();
-                offset++;
-            }
+        return framesRead;
+    }
 
-            frameCounter++;
+    // The decoders below convert numSamples little-endian samples starting
+    // at bufferPointer, with one loop per sample size so that the inner
+    // loops don't have to check the size or the end of the buffer.
+    // 8-bit samples are unsigned, larger ones are signed.
+
+    private void decodeSamples(int[] out, int offset, int numSamples) {
+        byte[] b = buffer;
+        int p = bufferPointer;
+        int end = offset + numSamples;
+        switch (bytesPerSample) {
+            case 1:
+                for (int i = offset; i < end; i++, p++)
+                    out[i] = b[p] & 0xFF;
+                break;
+            case 2:
+                for (int i = offset; i < end; i++, p += 2)
+                    out[i] = (b[p] & 0xFF) | (b[p + 1] << 8);
+                break;
+            case 3:
+                for (int i = offset; i < end; i++, p += 3)
+                    out[i] = (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | (b[p + 2] << 16);
+                break;
+            case 4:
+                for (int i = offset; i < end; i++, p += 4)
+                    out[i] = (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | ((b[p + 2] & 0xFF) << 16) | (b[p + 3] << 24);
+                break;
+            default:
+                for (int i = offset; i < end; i++, p += bytesPerSample)
+                    out[i] = (int) getSample(p);
+                break;
         }
+    }
 
-        return numFramesToRead;
+    private void decodeSamples(float[] out, int offset, int numSamples) {
+        byte[] b = buffer;
+        int p = bufferPointer;
+        int end = offset + numSamples;
+        float scale = 1 / floatScale;
+        switch (bytesPerSample) {
+            case 1:
+                for (int i = offset; i < end; i++, p++)
+                    out[i] = floatOffset + (b[p] & 0xFF) / floatScale;
+                break;
+            case 2:
+                for (int i = offset; i < end; i++, p += 2)
+                    out[i] = ((b[p] & 0xFF) | (b[p + 1] << 8)) * scale;
+                break;
+            case 3:
+                for (int i = offset; i < end; i++, p += 3)
+                    out[i] = ((b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | (b[p + 2] << 16)) * scale;
+                break;
+            case 4:
+                for (int i = offset; i < end; i++, p += 4)
+                    out[i] = ((b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | ((b[p + 2] & 0xFF) << 16) | (b[p + 3] << 24)) * scale;
+                break;
+            default:
+                for (int i = offset; i < end; i++, p += bytesPerSample)
+                    out[i] = floatOffset + (float) getSample(p) / floatScale;
+                break;
+        }
+    }
+
+    // Slow path for samples of more than 32 bits
+    private long getSample(int pos) {
+        long val = buffer[pos + bytesPerSample - 1];
+        for (int b = bytesPerSample - 2; b >= 0; b--) val = (val << 8) + (buffer[pos + b] & 0xFF);
+        return val;
     }
 
     public void close() throws IOException {
@@ -0,0 +1,178 @@
+package com.semantive.waveformandroid.waveform.view;
+
+import com.semantive.waveformandroid.waveform.soundfile.CheapSoundFile;
+
+/**
+ * Gains of the frames of a sound file that is still being read, so that
+ * a WaveformView can draw them before the whole file is known.
+ *
+ * The thread that reads the file is the only one that appends frames;
+ * any other thread may read them at the same time, without locking.
+ * Gains are stored first and only then is the number of frames, a
+ * volatile watermark, raised past them, so whoever reads getNumFrames()
+ * and then getGains() sees every gain below it.  The array is replaced
+ * by a larger copy when it fills up; the old one stays valid for readers
+ * that still hold it.
+ *
+ * Along with the gains the writer keeps a histogram of the smoothed
+ * gains, the same ones WaveformView calibrates its heights on, and
+ * publishes new Levels from it after every slice.  A frame is counted
+ * once the frame after it is known, so the histogram only grows.
+ */
+public class FrameGainsBuffer implements CheapSoundFile.FrameListener {
+    /**
+     * How WaveformView maps gains to heights: the gain times scaleFactor,
+     * less minGain, over range.
+     */
+    public static class Levels {
+        public final float scaleFactor;
+        public final float minGain;
+        public final float range;
+
+        Levels(float scaleFactor, float minGain, float range) {
+            this.scaleFactor = scaleFactor;
+            this.minGain = minGain;
+            this.range = range;
+        }
+    }
+
+    // Smoothed gains above this all go into the top bin
+    private static final int MAX_HISTOGRAM_SIZE = 1 << 16;
+
+    private volatile int[] mGains;
+    private volatile int mNumFrames;
+    private volatile Levels mLevels = new Levels(1.0f, 0.0f, 255.0f);
+
+    // Only used by the writer
+    private int[] mHistogram = new int[256];
+    private int mHistogramFrames;
+    private float mMaxGain = 1.0f;
+
+    public FrameGainsBuffer() {
+        this(CheapSoundFile.FRAME_SLICE_SIZE);
+    }
+
+    /**
+     * Makes room for the given number of frames up front, for callers
+     * that know about how long the file is.
+     */
+    public FrameGainsBuffer(int capacity) {
+        mGains = new int[Math.max(capacity, 2)];
+    }
+
+    /**
+     * Returns the number of frames whose gains can be read.
+     */
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    /**
+     * Returns an array that holds at least the first getNumFrames()
+     * gains, as of the last call to getNumFrames().
+     */
+    public int[] getGains() {
+        return mGains;
+    }
+
+    public Levels getLevels() {
+        return mLevels;
+    }
+
+    public boolean framesAvailable(int firstFrame, int[] gains, int offset, int count) {
+        append(gains, offset, count);
+        return true;
+    }
+
+    /**
+     * Appends the gains of count frames.  Must only ever be called from
+     * one thread at a time.
+     */
+    public void append(int[] gains, int offset, int count) {
+        int numFrames = mNumFrames;
+        int[] buffer = mGains;
+        if (numFrames + count > buffer.length) {
+            int[] grown = new int[Math.max(buffer.length * 2, numFrames + count)];
+            System.arraycopy(buffer, 0, grown, 0, numFrames);
+            buffer = grown;
+        }
+        System.arraycopy(gains, offset, buffer, numFrames, count);
+        numFrames += count;
+
+        // Smoothing a frame takes the one after it, so the last frame
+        // waits for the next slice
+        for (int i = mHistogramFrames; i < numFrames - 1; i++) {
+            float gain;
+            if (i == 0) {
+                gain = (buffer[0] / 2.0f) + (buffer[1] / 2.0f);
+            } else {
+                gain = (buffer[i - 1] / 3.0f) + (buffer[i] / 3.0f) + (buffer[i + 1] / 3.0f);
+            }
+            addToHistogram(gain);
+        }
+        mHistogramFrames = Math.max(mHistogramFrames, numFrames - 1);
+
+        // Publish: the array before the watermark, the watermark last
+        mGains = buffer;
+        mNumFrames = numFrames;
+        mLevels = computeLevels();
+    }
+
+    private void addToHistogram(float gain) {
+        if (gain > mMaxGain) {
+            mMaxGain = gain;
+        }
+        int bin = Math.max((int) gain, 0);
+        if (bin >= mHistogram.length) {
+            int size = Math.min(Math.max(mHistogram.length * 2, bin + 1), MAX_HISTOGRAM_SIZE);
+            mHistogram = java.util.Arrays.copyOf(mHistogram, size);
+            bin = Math.min(bin, size - 1);
+        }
+        mHistogram[bin]++;
+    }
+
+    /**
+     * Does what WaveformView.computeDoublesForAllZoomLevels() does with
+     * the frames counted so far, using the histogram instead of the
+     * gains, so it takes the same time however long the file is.
+     */
+    private Levels computeLevels() {
+        int numFrames = mHistogramFrames;
+
+        // Make sure the range is no more than 0 - 255
+        float scaleFactor = 1.0f;
+        if (mMaxGain > 255.0) {
+            scaleFactor = 255 / mMaxGain;
+        }
+
+        int maxGain = 0;
+        int gainHist[] = new int[256];
+        int[] histogram = mHistogram;
+        for (int bin = 0; bin < histogram.length; bin++) {
+            if (histogram[bin] == 0) {
+                continue;
+            }
+            int smoothedGain = Math.min((int) (bin * scaleFactor), 255);
+            if (smoothedGain > maxGain)
+                maxGain = smoothedGain;
+            gainHist[smoothedGain] += histogram[bin];
+        }
+
+        // Re-calibrate the min to be 5%
+        int minGain = 0;
+        int sum = 0;
+        while (minGain < 255 && sum < numFrames / 20) {
+            sum += gainHist[minGain];
+            minGain++;
+        }
+
+        // Re-calibrate the max to be 99%
+        sum = 0;
+        while (maxGain > 2 && sum < numFrames / 100) {
+            sum += gainHist[maxGain];
+            maxGain--;
+        }
+
+        return new Levels(scaleFactor, minGain, maxGain - minGain);
+    }
+}
@@ -0,0 +1,48 @@
+package com.semantive.waveformandroid.waveform.view;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Lines waiting to be drawn with one paint, so that drawing the waveform
+ * takes one Canvas.drawLines() call per paint rather than a drawLine()
+ * per pixel column.  The array is kept and reused from one draw to the
+ * next.
+ */
+class LineBatch {
+    final Paint mPaint;
+    private float[] mPoints = new float[4 * 1024];
+    private int mLength;
+
+    LineBatch(Paint paint) {
+        mPaint = paint;
+    }
+
+    boolean isEmpty() {
+        return mLength == 0;
+    }
+
+    void add(float x0, float y0, float x1, float y1) {
+        if (mLength + 4 > mPoints.length) {
+            mPoints = java.util.Arrays.copyOf(mPoints, mPoints.length * 2);
+        }
+        float[] points = mPoints;
+        points[mLength++] = x0;
+        points[mLength++] = y0;
+        points[mLength++] = x1;
+        points[mLength++] = y1;
+    }
+
+    /**
+     * Draws the lines and empties the batch.  Returns the number of
+     * calls made to the canvas.
+     */
+    int draw(Canvas canvas) {
+        if (mLength == 0) {
+            return 0;
+        }
+        canvas.drawLines(mPoints, 0, mLength, mPaint);
+        mLength = 0;
+        return 1;
+    }
+}
@@ -0,0 +1,115 @@
+package com.semantive.waveformandroid.waveform.view;
+
+/**
+ * The heights WaveformView draws, worked out once per sound file for
+ * every frame and then for every span of 2, 4, 8, ... frames.
+ *
+ * Level 0 holds the height of each frame, between 0 and 1, and level k
+ * the largest height of each run of 2^k frames.  The highest of any
+ * range of frames is then read from the level whose runs are about as
+ * long as the range, which never takes more than three lookups, so a
+ * column of pixels costs the same however many frames it covers and
+ * still shows the loudest of them.  Runs at the edges of the range may
+ * reach a little past it.
+ *
+ * The waveform is drawn symmetric about the middle from gains, which
+ * are magnitudes, so only the largest height of a run is kept; the
+ * smallest would never be drawn.  Heights are kept as shorts, so all
+ * levels together take about four bytes per frame.
+ */
+public class WaveformPyramid {
+    private static final float SCALE = Short.MAX_VALUE;
+
+    private final int mNumFrames;
+    private final short[][] mLevels;
+
+    /**
+     * Makes a pyramid for the given number of frames, whose heights are
+     * set with set() and then reduced with build().
+     */
+    public WaveformPyramid(int numFrames) {
+        mNumFrames = numFrames;
+        int numLevels = 1;
+        while ((numFrames - 1) >> (numLevels - 1) > 0) {
+            numLevels++;
+        }
+        mLevels = new short[numLevels][];
+        mLevels[0] = new short[numFrames];
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    /**
+     * Sets the height of a frame, from 0 to 1.
+     */
+    public void set(int frame, float height) {
+        mLevels[0][frame] = (short) (height * SCALE + 0.5f);
+    }
+
+    /**
+     * Works out the higher levels from the heights of the frames.
+     */
+    public void build() {
+        for (int level = 1; level < mLevels.length; level++) {
+            short[] below = mLevels[level - 1];
+            short[] values = new short[(below.length + 1) / 2];
+            for (int i = 0; i < values.length; i++) {
+                int j = i * 2;
+                short value = below[j];
+                if (j + 1 < below.length && below[j + 1] > value) {
+                    value = below[j + 1];
+                }
+                values[i] = value;
+            }
+            mLevels[level] = values;
+        }
+    }
+
+    /**
+     * Returns the height of the given frame.
+     */
+    public float getHeight(int frame) {
+        if (frame < 0 || frame >= mNumFrames) {
+            return 0;
+        }
+        return mLevels[0][frame] / SCALE;
+    }
+
+    /**
+     * Returns the height of pixel column x at zoomFactor pixels per
+     * frame: the height of its frame when zoomed in, and the highest of
+     * the frames it covers when zoomed out.
+     */
+    public float getColumnHeight(float zoomFactor, int x) {
+        if (zoomFactor >= 1.0) {
+            return getHeight((int) (x / zoomFactor));
+        }
+        return getMaxHeight((int) (x / zoomFactor), (int) ((x + 1) / zoomFactor));
+    }
+
+    /**
+     * Returns the largest height of the frames from first up to, but
+     * not including, end.
+     */
+    public float getMaxHeight(int first, int end) {
+        first = Math.max(first, 0);
+        end = Math.min(end, mNumFrames);
+        if (end <= first) {
+            return getHeight(first);
+        }
+
+        // The level whose runs are no longer than the range, so that
+        // at most three of them cover it
+        int level = 31 - Integer.numberOfLeadingZeros(end - first);
+        short[] values = mLevels[level];
+        int max = 0;
+        for (int i = first >> level; i <= (end - 1) >> level; i++) {
+            if (values[i] > max) {
+                max = values[i];
+            }
+        }
+        return max / SCALE;
+    }
+}
@@ -0,0 +1,158 @@
+package com.semantive.waveformandroid.waveform.view;
+
+import android.graphics.Canvas;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.util.Log;
+import android.view.Surface;
+import android.view.TextureView;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Draws the frames of a WaveformView into a TextureView on a thread of
+ * its own, for WaveformView.setRenderTarget().
+ *
+ * The UI thread hands frames over through an AtomicReference holding the
+ * latest frame not drawn yet, so neither thread ever waits for the other:
+ * post() swaps the new frame in and wakes the render thread if it had
+ * taken the previous one, and the render thread takes whatever frame is
+ * there, skipping any that came in while it was drawing, or parks until
+ * there is one.  Frames are immutable, so the render thread needs no
+ * lock to read them, and it draws them with a WaveformView.Drawer of its
+ * own.
+ */
+class WaveformRenderer implements TextureView.SurfaceTextureListener {
+    public static final String TAG = "WaveformRenderer";
+
+    private final WaveformView mView;
+    private final TextureView mTarget;
+    private final AtomicReference<WaveformView.Frame> mPendingFrame = new AtomicReference<>();
+
+    // Drawn again when the surface comes back or changes size
+    private WaveformView.Frame mLastFrame;
+
+    // Only used on the UI thread
+    private RenderThread mThread;
+
+    WaveformRenderer(WaveformView view, TextureView target) {
+        mView = view;
+        mTarget = target;
+        target.setOpaque(false);
+        target.setSurfaceTextureListener(this);
+        if (target.isAvailable()) {
+            start(target.getSurfaceTexture());
+        }
+    }
+
+    /**
+     * Has the given frame drawn instead of any earlier one still waiting.
+     * Called on the UI thread.
+     */
+    void post(WaveformView.Frame frame) {
+        mLastFrame = frame;
+        RenderThread thread = mThread;
+        if (mPendingFrame.getAndSet(frame) == null && thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Stops the render thread and waits for it to finish the frame it is
+     * drawing.  It starts again when the target's surface is next
+     * available.
+     */
+    void stop() {
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Stops the render thread and stops listening to the target.
+     */
+    void release() {
+        stop();
+        mTarget.setSurfaceTextureListener(null);
+    }
+
+    private void start(SurfaceTexture surfaceTexture) {
+        if (mThread != null) {
+            return;
+        }
+        if (mLastFrame != null) {
+            mPendingFrame.compareAndSet(null, mLastFrame);
+        }
+        mThread = new RenderThread(new Surface(surfaceTexture));
+        mThread.start();
+    }
+
+    public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int width, int height) {
+        start(surfaceTexture);
+    }
+
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int width, int height) {
+        if (mLastFrame != null) {
+            post(mLastFrame);
+        }
+    }
+
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
+        stop();
+        return true;
+    }
+
+    public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+    }
+
+    private class RenderThread extends Thread {
+        private final Surface mSurface;
+        private final WaveformView.Drawer mDrawer;
+        private volatile boolean mRunning;
+
+        RenderThread(Surface surface) {
+            super("WaveformRenderer");
+            mSurface = surface;
+            mDrawer = mView.createDrawer();
+            mRunning = true;
+        }
+
+        void quit() {
+            mRunning = false;
+            LockSupport.unpark(this);
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSurface.release();
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                WaveformView.Frame frame = mPendingFrame.getAndSet(null);
+                if (frame == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                Canvas canvas;
+                try {
+                    canvas = mSurface.lockCanvas(null);
+                } catch (Surface.OutOfResourcesException | IllegalArgumentException e) {
+                    Log.e(TAG, "Error while locking the surface", e);
+                    return;
+                }
+                try {
+                    canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+                    mDrawer.drawFrame(canvas, frame);
+                } finally {
+                    mSurface.unlockCanvasAndPost(canvas);
+                }
+            }
+        }
+    }
+}
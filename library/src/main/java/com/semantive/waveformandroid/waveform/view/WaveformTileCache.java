@@ -0,0 +1,192 @@
+package com.semantive.waveformandroid.waveform.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The waveform of a WaveformPyramid drawn into tiles TILE_WIDTH pixels
+ * wide, one set of tiles per zoom factor, so that scrolling only has to
+ * copy the tiles at the new offset instead of drawing every column again.
+ *
+ * Tiles are ALPHA_8 masks of the waveform's shape: Canvas.drawBitmap()
+ * fills a mask with the color of the paint it is given, so one tile can
+ * be drawn in the selected, unselected or segment colors, and moving the
+ * selection doesn't spoil it.  Tiles are kept in an LRU cache of at most
+ * the given number of bytes.  Tiles missing when drawing are rendered
+ * right away; prefetch() renders them ahead of time on a worker thread.
+ * Every zoom factor gets tiles of its own, so WaveformView doesn't use
+ * tiles while a pinch changes the zoom factor with every step.
+ */
+class WaveformTileCache {
+    static final int TILE_WIDTH = 256;
+
+    private final LruCache<TileKey, Bitmap> mTiles;
+    private final Set<TileKey> mPending = new HashSet<>();
+    private final Paint mMaskPaint;
+    private final ExecutorService mExecutor;
+    // Guarded by mPending
+    private boolean mShutdown;
+
+    WaveformTileCache(int maxBytes) {
+        mTiles = new LruCache<TileKey, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(TileKey key, Bitmap tile) {
+                return tile.getByteCount();
+            }
+        };
+        mMaskPaint = new Paint();
+        mMaskPaint.setAntiAlias(false);
+        mMaskPaint.setColor(0xFF000000);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "WaveformTiles");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the given tile of the waveform, rendering it if it isn't
+     * cached.  numPixels is the width of the whole waveform.
+     */
+    Bitmap getTile(WaveformPyramid pyramid, float zoomFactor, int numPixels, int index, int height) {
+        TileKey key = new TileKey(pyramid, zoomFactor, index, height);
+        Bitmap tile = mTiles.get(key);
+        if (tile == null) {
+            tile = render(pyramid, zoomFactor, numPixels, index, height);
+            mTiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Renders the given tile on the worker thread, unless it is cached,
+     * already on its way or past either end of the waveform, or the cache
+     * has been shut down.
+     */
+    void prefetch(final WaveformPyramid pyramid, final float zoomFactor, final int numPixels,
+                  final int index, final int height) {
+        if (index < 0 || index * TILE_WIDTH >= numPixels) {
+            return;
+        }
+        final TileKey key = new TileKey(pyramid, zoomFactor, index, height);
+        if (mTiles.get(key) != null) {
+            return;
+        }
+        synchronized (mPending) {
+            if (mShutdown || !mPending.add(key)) {
+                return;
+            }
+            mExecutor.execute(() -> {
+                try {
+                    mTiles.put(key, render(pyramid, zoomFactor, numPixels, index, height));
+                } finally {
+                    synchronized (mPending) {
+                        mPending.remove(key);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops every tile, e.g. to free them when a new sound file is set.
+     */
+    void clear() {
+        mTiles.evictAll();
+    }
+
+    /**
+     * Drops the tiles of every zoom factor but the given one, e.g. when a
+     * pinch ends at a zoom factor the tiles of the previous one are no
+     * use for.
+     */
+    void retainZoomFactor(float zoomFactor) {
+        for (TileKey key : mTiles.snapshot().keySet()) {
+            if (key.mZoomFactor != zoomFactor) {
+                mTiles.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Stops the worker thread for good; prefetch() does nothing after
+     * this, while getTile() still renders the tiles it is asked for.
+     */
+    void shutdown() {
+        synchronized (mPending) {
+            mShutdown = true;
+            mPending.clear();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Draws one line per pixel column of the tile, the same lines
+     * WaveformView draws when it doesn't use tiles.  Only reads the
+     * pyramid, so it can run on any thread.
+     */
+    private Bitmap render(WaveformPyramid pyramid, float zoomFactor, int numPixels, int index, int height) {
+        Bitmap tile = Bitmap.createBitmap(TILE_WIDTH, height, Bitmap.Config.ALPHA_8);
+        int first = index * TILE_WIDTH;
+        int width = Math.min(TILE_WIDTH, numPixels - first);
+        if (width <= 0) {
+            return tile;
+        }
+
+        int ctr = height / 2;
+        float[] points = new float[4 * width];
+        for (int x = 0; x < width; x++) {
+            int h = (int) (pyramid.getColumnHeight(zoomFactor, first + x) * height / 2);
+            points[4 * x] = x;
+            points[4 * x + 1] = ctr - h;
+            points[4 * x + 2] = x;
+            points[4 * x + 3] = ctr + 1 + h;
+        }
+        new Canvas(tile).drawLines(points, mMaskPaint);
+        return tile;
+    }
+
+    private static class TileKey {
+        final WaveformPyramid mPyramid;
+        final float mZoomFactor;
+        final int mIndex;
+        final int mHeight;
+
+        TileKey(WaveformPyramid pyramid, float zoomFactor, int index, int height) {
+            mPyramid = pyramid;
+            mZoomFactor = zoomFactor;
+            mIndex = index;
+            mHeight = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return mPyramid == other.mPyramid &&
+                Float.floatToIntBits(mZoomFactor) == Float.floatToIntBits(other.mZoomFactor) &&
+                mIndex == other.mIndex && mHeight == other.mHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(mPyramid);
+            hash = 31 * hash + Float.floatToIntBits(mZoomFactor);
+            hash = 31 * hash + mIndex;
+            return 31 * hash + mHeight;
+        }
+    }
+}
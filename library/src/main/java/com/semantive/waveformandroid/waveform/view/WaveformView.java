@@ -24,19 +24,27 @@ import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
+import android.view.TextureView;
 import android.view.View;
 import com.semantive.waveformandroid.R;
 import com.semantive.waveformandroid.waveform.Segment;
 import com.semantive.waveformandroid.waveform.soundfile.CheapSoundFile;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
 /**
  * WaveformView is an Android view that displays a visual representation
  * of an audio waveform.  It retrieves the frame gains from a CheapSoundFile
- * object and recomputes the shape contour at several zoom levels.
+ * object and can be zoomed continuously around any point, from the whole
+ * file down to MAX_ZOOM_FACTOR pixels per frame.  While the file is still
+ * loading it can draw the frames read so far from a FrameGainsBuffer
+ * instead.  It can also leave the drawing to a render thread of its own,
+ * see setRenderTarget().
  * <p/>
  * This class doesn't handle selection or any of the touch interactions
  * directly, so it exposes a listener interface.  The class that embeds
@@ -60,8 +68,63 @@ public class WaveformView extends View {
         public void waveformDraw();
         public void waveformZoomIn();
         public void waveformZoomOut();
+        public void waveformZoom(float zoomFactor, float focusX);
     }
 
+    /**
+     * What one frame of the view shows.  onDraw() takes one of these from
+     * the view's fields and draws it, or hands it to the render thread,
+     * which can then go on drawing while the fields change.
+     */
+    public static class Frame {
+        public final CheapSoundFile soundFile;
+        public final FrameGainsBuffer loadingGains;
+        public final WaveformPyramid pyramid;
+        public final float zoomFactor;
+        public final int maxPos;
+        public final int offset;
+        public final int selectionStart;
+        public final int selectionEnd;
+        public final int playbackPos;
+        public final int width;
+        public final int height;
+        public final boolean scaling;
+        public final NavigableMap<Double, Segment> segments;
+        public final Paint timecodePaint;
+        public final float density;
+        final WaveformTileCache tileCache;
+
+        protected Frame(WaveformView view) {
+            soundFile = view.mSoundFile;
+            loadingGains = view.mLoadingGains;
+            pyramid = view.mPyramid;
+            zoomFactor = view.mZoomFactor;
+            maxPos = view.maxPos();
+            offset = view.mOffset;
+            selectionStart = view.mSelectionStart;
+            selectionEnd = view.mSelectionEnd;
+            playbackPos = view.mPlaybackPos;
+            width = view.getMeasuredWidth();
+            height = view.getMeasuredHeight();
+            scaling = view.mScaleGestureDetector.isInProgress();
+            // The view replaces these rather than change them, so the
+            // frame can keep them as they are
+            segments = view.segmentsMap;
+            timecodePaint = view.mTimecodePaint;
+            density = view.mDensity;
+            tileCache = view.mTileCache;
+        }
+    }
+
+    // Most pixels a frame can be zoomed in to
+    public static final float MAX_ZOOM_FACTOR = 32.0f;
+
+    // Memory for the tiles of the waveform, see setTileCacheBytes()
+    public static final int DEFAULT_TILE_CACHE_BYTES = 4 * 1024 * 1024;
+
+    // Tiles to render ahead of the side the waveform is scrolling towards
+    protected static final int PREFETCH_TILES = 2;
+
     // Colors
     protected Paint mGridPaint;
     protected Paint mSelectedLinePaint;
@@ -72,10 +135,11 @@ public class WaveformView extends View {
     protected Paint mTimecodePaint;
 
     protected CheapSoundFile mSoundFile;
-    protected int[] mLenByZoomLevel;
-    protected float[] mZoomFactorByZoomLevel;
-    protected int mZoomLevel;
-    protected int mNumZoomLevels;
+    protected FrameGainsBuffer mLoadingGains;
+    protected WaveformPyramid mPyramid;
+    protected float mZoomFactor;
+    protected float mMinZoomFactor;
+    protected float mMaxZoomFactor;
     protected int mSampleRate;
     protected int mSamplesPerFrame;
     protected int mOffset;
@@ -83,18 +147,31 @@ public class WaveformView extends View {
     protected int mSelectionEnd;
     protected int mPlaybackPos;
     protected float mDensity;
-    protected float mInitialScaleSpan;
+    protected float mScaleStartZoomFactor;
+    protected int mScaleStartSelectionStart;
+    protected int mScaleStartSelectionEnd;
     protected WaveformListener mListener;
     protected GestureDetector mGestureDetector;
     protected ScaleGestureDetector mScaleGestureDetector;
     protected boolean mInitialized;
+    // Set when the sound file came before the view's width
+    protected boolean mFillViewPending;
 
     protected float range;
     protected float scaleFactor;
     protected float minGain;
 
     protected NavigableMap<Double, Segment> segmentsMap;
-    protected Segment nextSegment;
+
+    // Tiles of the waveform drawn so far, or null to draw it column by
+    // column
+    private WaveformTileCache mTileCache;
+    private int mTileCacheBytes;
+
+    // What onDraw() draws with, and the render thread that draws frames
+    // instead when the view has a render target
+    protected Drawer mDrawer;
+    private WaveformRenderer mRenderer;
 
     public WaveformView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -141,25 +218,28 @@ public class WaveformView extends View {
                 context,
                 new ScaleGestureDetector.SimpleOnScaleGestureListener() {
                     public boolean onScaleBegin(ScaleGestureDetector d) {
-                        mInitialScaleSpan = Math.abs(d.getCurrentSpanX());
+                        mScaleStartZoomFactor = mZoomFactor;
+                        mScaleStartSelectionStart = mSelectionStart;
+                        mScaleStartSelectionEnd = mSelectionEnd;
                         return true;
                     }
                     public boolean onScale(ScaleGestureDetector d) {
-                        float scale = Math.abs(d.getCurrentSpanX());
-                        if (scale - mInitialScaleSpan > 40) {
-                            mListener.waveformZoomIn();
-                            mInitialScaleSpan = scale;
-                        }
-                        if (scale - mInitialScaleSpan < -40) {
-                            mListener.waveformZoomOut();
-                            mInitialScaleSpan = scale;
-                        }
+                        mListener.waveformZoom(mZoomFactor * d.getScaleFactor(), d.getFocusX());
                         return true;
                     }
+                    public void onScaleEnd(ScaleGestureDetector d) {
+                        // Tiles are only drawn once the pinch is over, at
+                        // the zoom factor it ended with
+                        if (mTileCache != null) {
+                            mTileCache.retainZoomFactor(mZoomFactor);
+                        }
+                        invalidate();
+                    }
                 });
 
         mSoundFile = null;
-        mLenByZoomLevel = null;
+        mLoadingGains = null;
+        mZoomFactor = 1.0f;
         mOffset = 0;
         mPlaybackPos = -1;
         mSelectionStart = 0;
@@ -167,12 +247,23 @@ public class WaveformView extends View {
         mDensity = 1.0f;
         mInitialized = false;
         segmentsMap = new TreeMap<>();
-        nextSegment = null;
+        mTileCacheBytes = DEFAULT_TILE_CACHE_BYTES;
+        mTileCache = new WaveformTileCache(mTileCacheBytes);
+        mDrawer = createDrawer();
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        // Nothing to scroll or zoom until the sound file is there
+        if (!mInitialized) {
+            return true;
+        }
+
         mScaleGestureDetector.onTouchEvent(event);
+        if (mScaleGestureDetector.isInProgress() || event.getPointerCount() > 1) {
+            // Pinching zooms rather than scrolls
+            return true;
+        }
         if (mGestureDetector.onTouchEvent(event)) {
             return true;
         }
@@ -197,87 +288,178 @@ public class WaveformView extends View {
 
     public void setSoundFile(CheapSoundFile soundFile) {
         mSoundFile = soundFile;
+        mLoadingGains = null;
         mSampleRate = mSoundFile.getSampleRate();
         mSamplesPerFrame = mSoundFile.getSamplesPerFrame();
+        if (mTileCache != null) {
+            mTileCache.clear();
+        }
         computeDoublesForAllZoomLevels();
     }
 
+    /**
+     * Sets how much memory the tiles of the waveform may take.  Scrolling
+     * then copies tiles drawn before instead of drawing every column of
+     * the waveform again.  0 draws the waveform column by column, with
+     * drawWaveform(), every time.
+     */
+    public void setTileCacheBytes(int maxBytes) {
+        if (mTileCache != null) {
+            mTileCache.shutdown();
+        }
+        mTileCacheBytes = maxBytes;
+        mTileCache = (maxBytes > 0) ? new WaveformTileCache(maxBytes) : null;
+        invalidate();
+    }
+
+    /**
+     * Draws the waveform on a thread of its own into the given
+     * TextureView, which should lie right under this view and be just as
+     * big, instead of in onDraw().  onDraw() then only hands the render
+     * thread what to draw, so that scrolling, dragging the markers and
+     * everything else on the UI thread never waits for the waveform.
+     * null goes back to drawing in onDraw().  The tile cache should be
+     * set up before.
+     */
+    public void setRenderTarget(TextureView target) {
+        if (mRenderer != null) {
+            mRenderer.release();
+            mRenderer = null;
+        }
+        if (target != null) {
+            mRenderer = new WaveformRenderer(this, target);
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mTileCache == null && mTileCacheBytes > 0) {
+            mTileCache = new WaveformTileCache(mTileCacheBytes);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // The render thread may be using the tiles
+        if (mRenderer != null) {
+            mRenderer.stop();
+        }
+        // A shut down cache can't prefetch any more, so a new one is set
+        // up if the view comes back
+        if (mTileCache != null) {
+            mTileCache.shutdown();
+            mTileCache = null;
+        }
+    }
+
+    /**
+     * Draws the frames in the given buffer until setSoundFile() is
+     * called.  The buffer may be filled on another thread; call
+     * postInvalidate() to have new frames drawn.
+     */
+    public void setLoadingGains(FrameGainsBuffer gains) {
+        mLoadingGains = gains;
+        invalidate();
+    }
+
     public boolean isInitialized() {
         return mInitialized;
     }
 
-    public int getZoomLevel() {
-        return mZoomLevel;
+    /**
+     * Returns the number of pixels per frame.
+     */
+    public float getZoomFactor() {
+        return mZoomFactor;
     }
 
-    public void setZoomLevel(int zoomLevel) {
-        mZoomLevel = zoomLevel;
+    /**
+     * Sets the number of pixels per frame, within the range the view
+     * allows, and keeps the part of the waveform at focusX, in pixels
+     * from the left of the view, where it is.  The selection is scaled
+     * along.
+     */
+    public void setZoomFactor(float zoomFactor, float focusX) {
+        zoomFactor = Math.max(mMinZoomFactor, Math.min(zoomFactor, mMaxZoomFactor));
+        if (zoomFactor == mZoomFactor) {
+            return;
+        }
+
+        float factor = zoomFactor / mZoomFactor;
+        if (mScaleGestureDetector.isInProgress()) {
+            // Scale from where the pinch started, so that the rounding
+            // of every step doesn't add up
+            float startFactor = zoomFactor / mScaleStartZoomFactor;
+            mSelectionStart = Math.round(mScaleStartSelectionStart * startFactor);
+            mSelectionEnd = Math.round(mScaleStartSelectionEnd * startFactor);
+        } else {
+            mSelectionStart = Math.round(mSelectionStart * factor);
+            mSelectionEnd = Math.round(mSelectionEnd * factor);
+        }
+        mOffset = Math.round((mOffset + focusX) * factor - focusX);
+        if (mOffset < 0)
+            mOffset = 0;
+        mZoomFactor = zoomFactor;
+        invalidate();
     }
 
     public boolean canZoomIn() {
-        return (mZoomLevel < mNumZoomLevels - 1);
+        return (mZoomFactor < mMaxZoomFactor);
     }
 
+    /**
+     * Doubles the zoom factor around the middle of the view.
+     */
     public void zoomIn() {
-        if (canZoomIn()) {
-            mZoomLevel++;
-            float factor = mLenByZoomLevel[mZoomLevel] / (float) mLenByZoomLevel[mZoomLevel - 1];
-            mSelectionStart *= factor;
-            mSelectionEnd *= factor;
-            int offsetCenter = mOffset + (int) (getMeasuredWidth() / factor);
-            offsetCenter *= factor;
-            mOffset = offsetCenter - (int) (getMeasuredWidth() / factor);
-            if (mOffset < 0)
-                mOffset = 0;
-            invalidate();
-        }
+        setZoomFactor(mZoomFactor * 2, getMeasuredWidth() / 2);
     }
 
     public boolean canZoomOut() {
-        return (mZoomLevel > 0);
+        return (mZoomFactor > mMinZoomFactor);
     }
 
+    /**
+     * Halves the zoom factor around the middle of the view.
+     */
     public void zoomOut() {
-        if (canZoomOut()) {
-            mZoomLevel--;
-            float factor = mLenByZoomLevel[mZoomLevel + 1] / (float) mLenByZoomLevel[mZoomLevel];
-            mSelectionStart /= factor;
-            mSelectionEnd /= factor;
-            int offsetCenter = (int) (mOffset + getMeasuredWidth() / factor);
-            offsetCenter /= factor;
-            mOffset = offsetCenter - (int) (getMeasuredWidth() / factor);
-            if (mOffset < 0)
-                mOffset = 0;
-            invalidate();
-        }
+        setZoomFactor(mZoomFactor / 2, getMeasuredWidth() / 2);
     }
 
     public int maxPos() {
-        return mLenByZoomLevel[mZoomLevel];
+        if (mSoundFile == null) {
+            return 0;
+        }
+        return Math.round(mSoundFile.getNumFrames() * mZoomFactor);
     }
 
+    // Pixels are frames scaled by the zoom factor; the sound file knows
+    // when each frame starts, which needn't be at a constant rate.
+
     public int secondsToFrames(double seconds) {
-        return (int) (1.0 * seconds * mSampleRate / mSamplesPerFrame + 0.5);
+        return (int) (mSoundFile.secondsToFrames(seconds) + 0.5);
     }
 
     public int secondsToPixels(double seconds) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
-        return (int) (z * seconds * mSampleRate / mSamplesPerFrame + 0.5);
+        double z = mZoomFactor;
+        return (int) (z * mSoundFile.secondsToFrames(seconds) + 0.5);
     }
 
     public double pixelsToSeconds(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
-        return (pixels * (double) mSamplesPerFrame / (mSampleRate * z));
+        double z = mZoomFactor;
+        return mSoundFile.framesToSeconds(pixels / z);
     }
 
     public int millisecsToPixels(int msecs) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
-        return (int) ((msecs * 1.0 * mSampleRate * z) / (1000.0 * mSamplesPerFrame) + 0.5);
+        double z = mZoomFactor;
+        return (int) (z * mSoundFile.secondsToFrames(msecs / 1000.0) + 0.5);
     }
 
     public int pixelsToMillisecs(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
-        return (int) (pixels * (1000.0 * mSamplesPerFrame) / (mSampleRate * z) + 0.5);
+        double z = mZoomFactor;
+        return (int) (1000.0 * mSoundFile.framesToSeconds(pixels / z) + 0.5);
     }
 
     public void setParameters(int start, int end, int offset) {
@@ -308,167 +490,52 @@ public class WaveformView extends View {
 
     public void setSegments(final List<Segment> segments) {
         if (segments != null) {
+            // A new map, as the render thread may be drawing the old one
+            NavigableMap<Double, Segment> map = new TreeMap<>(segmentsMap);
             for (Segment segment : segments) {
-                segmentsMap.put(segment.getStop(), segment);
+                map.put(segment.getStop(), segment);
             }
+            segmentsMap = map;
         }
     }
 
     public void recomputeHeights(float density) {
         mDensity = density;
+        // A new paint, as the render thread may be drawing with the old one
+        mTimecodePaint = new Paint(mTimecodePaint);
         mTimecodePaint.setTextSize((int) (12 * density));
 
         invalidate();
     }
 
-    protected void drawWaveformLine(Canvas canvas, int x, int y0, int y1, Paint paint) {
-        canvas.drawLine(x, y0, x, y1, paint);
+    /**
+     * Returns the number of calls the last onDraw() made to the canvas.
+     */
+    public int getDrawCallCount() {
+        return mDrawer.mDrawCalls;
+    }
+
+    /**
+     * Returns a new Drawer; subclasses can return their own to change
+     * how frames are drawn.
+     */
+    protected Drawer createDrawer() {
+        return new Drawer();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (mSoundFile == null)
-            return;
-
-        int measuredWidth = getMeasuredWidth();
-        int measuredHeight = getMeasuredHeight();
-        int start = mOffset;
-        int width = mLenByZoomLevel[mZoomLevel] - start;
-        int ctr = measuredHeight / 2;
-
-        if (width > measuredWidth)
-            width = measuredWidth;
-
-        double onePixelInSecs = pixelsToSeconds(1);
-        boolean onlyEveryFiveSecs = (onePixelInSecs > 1.0 / 50.0);
-        double fractionalSecs = mOffset * onePixelInSecs;
-        int integerSecs = (int) fractionalSecs;
-
-        double timecodeIntervalSecs = 1.0;
-
-        int factor = 1;
-        while (timecodeIntervalSecs / onePixelInSecs < 50) {
-            timecodeIntervalSecs = 5.0 * factor;
-            factor++;
-        }
-
-        int integerTimecode = (int) (fractionalSecs / timecodeIntervalSecs);
-
-        int i = 0;
-        while (i < width) {
-            fractionalSecs += onePixelInSecs;
-            int integerSecsNew = (int) fractionalSecs;
-            if (integerSecsNew != integerSecs) {
-                integerSecs = integerSecsNew;
-                if (!onlyEveryFiveSecs || 0 == (integerSecs % 5)) {
-                    canvas.drawLine(i + 1, 0, i + 1, measuredHeight, mGridPaint);
-                }
-            }
-
-            // Draw waveform
-            drawWaveform(canvas, i, start, measuredHeight, ctr, selectWaveformPaint(i, start, fractionalSecs));
-
-            i++;
-        }
-
-        // If we can see the right edge of the waveform, draw the
-        // non-waveform area to the right as unselected
-        for (i = width; i < measuredWidth; i++) {
-            drawWaveformLine(canvas, i, 0, measuredHeight, mUnselectedBkgndLinePaint);
-        }
-
-        // Draw borders
-        canvas.drawLine(
-                mSelectionStart - mOffset + 0.5f, 30,
-                mSelectionStart - mOffset + 0.5f, measuredHeight,
-                mBorderLinePaint);
-        canvas.drawLine(
-                mSelectionEnd - mOffset + 0.5f, 0,
-                mSelectionEnd - mOffset + 0.5f, measuredHeight - 30,
-                mBorderLinePaint);
-
-        // Draw grid
-        fractionalSecs = mOffset * onePixelInSecs;
-        i = 0;
-        while (i < width) {
-            i++;
-            fractionalSecs += onePixelInSecs;
-            int integerSecs2 = (int) fractionalSecs;
-            int integerTimecodeNew = (int) (fractionalSecs / timecodeIntervalSecs);
-            if (integerTimecodeNew != integerTimecode) {
-                integerTimecode = integerTimecodeNew;
-
-                // Turn, e.g. 67 seconds into "1:07"
-                String timecodeMinutes = "" + (integerSecs2 / 60);
-                String timecodeSeconds = "" + (integerSecs2 % 60);
-                if ((integerSecs2 % 60) < 10) {
-                    timecodeSeconds = "0" + timecodeSeconds;
-                }
-                String timecodeStr = timecodeMinutes + ":" + timecodeSeconds;
-                float offset = (float) (0.5 * mTimecodePaint.measureText(timecodeStr));
-                canvas.drawText(timecodeStr,
-                        i - offset,
-                        (int) (12 * mDensity),
-                        mTimecodePaint);
-            }
-        }
-
-        if (mListener != null) {
-            mListener.waveformDraw();
-        }
-    }
-
-    protected void drawWaveform(final Canvas canvas, final int i, final int start, final int measuredHeight, final int ctr, final Paint paint) {
-        if (i + start < mSelectionStart || i + start >= mSelectionEnd) {
-            drawWaveformLine(canvas, i, 0, measuredHeight,
-                    mUnselectedBkgndLinePaint);
-        }
-
-        int h = (int) (getScaledHeight(mZoomFactorByZoomLevel[mZoomLevel], start + i) * getMeasuredHeight() / 2);
-        drawWaveformLine(
-                canvas, i,
-                ctr - h,
-                ctr + 1 + h,
-                paint);
-
-        if (i + start == mPlaybackPos) {
-            canvas.drawLine(i, 0, i, measuredHeight, mPlaybackLinePaint);
-        }
-    }
-
-    protected Paint selectWaveformPaint(final int i, final int start, final double fractionalSecs) {
-        Paint paint;
-        if (i + start >= mSelectionStart && i + start < mSelectionEnd) {
-            paint = mSelectedLinePaint;
+        Frame frame = new Frame(this);
+        if (mRenderer != null) {
+            mRenderer.post(frame);
         } else {
-            paint = mUnselectedLinePaint;
+            mDrawer.drawFrame(canvas, frame);
         }
 
-        if (segmentsMap != null && !segmentsMap.isEmpty()) {
-            if (nextSegment == null) {
-                Double key = segmentsMap.ceilingKey(fractionalSecs);
-                if (key != null) {
-                    nextSegment = segmentsMap.get(segmentsMap.ceilingKey(fractionalSecs));
-                }
-            }
-
-            if (nextSegment != null) {
-                if (nextSegment.getStart().compareTo(fractionalSecs) <= 0 && nextSegment.getStop().compareTo(fractionalSecs) >= 0) {
-                    paint = new Paint();
-                    paint.setAntiAlias(false);
-                    paint.setColor(nextSegment.getColor());
-                    return paint;
-                } else {
-                    Double key = segmentsMap.ceilingKey(fractionalSecs);
-                    if (key != null) {
-                        nextSegment = segmentsMap.get(segmentsMap.ceilingKey(fractionalSecs));
-                    }
-                }
-            }
+        if (mListener != null && mSoundFile != null) {
+            mListener.waveformDraw();
         }
-
-        return paint;
     }
 
     protected float getGain(int i, int numFrames, int[] frameGains) {
@@ -547,88 +614,431 @@ public class WaveformView extends View {
 
         range = maxGain - minGain;
 
-        mNumZoomLevels = 4;
-        mLenByZoomLevel = new int[4];
-        mZoomFactorByZoomLevel = new float[4];
+        // Heights only depend on the gains from here on, so work them
+        // out once for every frame and span of frames
+        int[] frameGains = mSoundFile.getFrameGains();
+        mPyramid = new WaveformPyramid(numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            mPyramid.set(i, getHeight(i, numFrames, frameGains, scaleFactor, minGain, range));
+        }
+        mPyramid.build();
+
+        // It starts out filling the view; before the view is laid out
+        // it has no width to fill, so it starts at a pixel per frame and
+        // onSizeChanged() fills the view once it has one
+        int width = getMeasuredWidth();
+        updateZoomRange(width);
+        if (width > 0) {
+            mZoomFactor = Math.min(width / (float) numFrames, mMaxZoomFactor);
+            mFillViewPending = false;
+        } else {
+            mZoomFactor = 1.0f;
+            mFillViewPending = true;
+        }
 
-        float ratio = getMeasuredWidth() / (float) numFrames;
+        mInitialized = true;
+    }
 
-        if (ratio < 1) {
-            mLenByZoomLevel[0] = Math.round(numFrames * ratio);
-            mZoomFactorByZoomLevel[0] = ratio;
+    /**
+     * All the way out the whole file fits a view of the given width, or
+     * takes a pixel per frame if it is shorter than that.
+     */
+    protected void updateZoomRange(int width) {
+        float ratio = (width > 0) ? width / (float) mSoundFile.getNumFrames() : 1.0f;
+        mMinZoomFactor = Math.min(ratio, 1.0f);
+        mMaxZoomFactor = Math.max(MAX_ZOOM_FACTOR, mMinZoomFactor);
+    }
 
-            mLenByZoomLevel[1] = numFrames;
-            mZoomFactorByZoomLevel[1] = 1.0f;
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mSoundFile == null || w <= 0 || w == oldw) {
+            return;
+        }
 
-            mLenByZoomLevel[2] = numFrames * 2;
-            mZoomFactorByZoomLevel[2] = 2.0f;
+        float zoomFactor = mZoomFactor;
+        if (mFillViewPending) {
+            zoomFactor = w / (float) mSoundFile.getNumFrames();
+            mFillViewPending = false;
+        }
+        updateZoomRange(w);
+        // Goes through the listener like a pinch, so that it picks up
+        // the new positions
+        if (mListener != null) {
+            mListener.waveformZoom(zoomFactor, 0);
+        } else {
+            setZoomFactor(zoomFactor, 0);
+        }
+    }
 
-            mLenByZoomLevel[3] = numFrames * 3;
-            mZoomFactorByZoomLevel[3] = 3.0f;
+    /**
+     * Draws frames, with paints and scratch state of its own.  onDraw()
+     * draws with one Drawer and the render thread with another, so the
+     * render thread never touches the view's fields.
+     */
+    protected class Drawer {
+        protected final Paint mGridPaint;
+        protected final Paint mSelectedLinePaint;
+        protected final Paint mUnselectedLinePaint;
+        protected final Paint mUnselectedBkgndLinePaint;
+        protected final Paint mBorderLinePaint;
+        protected final Paint mPlaybackLinePaint;
+
+        // The frame being drawn, and where the segment being drawn is
+        protected Frame mFrame;
+        protected Segment nextSegment;
+        protected final Map<Integer, Paint> mSegmentPaints = new HashMap<>();
+
+        // Lines of the draw under way, one batch per paint.  The grid and
+        // the background come first so that they end up below the
+        // waveform.
+        private final List<LineBatch> mLineBatches = new ArrayList<>();
+        protected int mDrawCalls;
+
+        // While drawing from tiles the columns are gathered into runs of
+        // the same paint, each ending at mRunEnds
+        private int mNumRuns;
+        private int[] mRunEnds = new int[16];
+        private Paint[] mRunPaints = new Paint[16];
+        protected int mLastDrawnOffset;
+
+        protected Drawer() {
+            mGridPaint = new Paint(WaveformView.this.mGridPaint);
+            mSelectedLinePaint = new Paint(WaveformView.this.mSelectedLinePaint);
+            mUnselectedLinePaint = new Paint(WaveformView.this.mUnselectedLinePaint);
+            mUnselectedBkgndLinePaint = new Paint(WaveformView.this.mUnselectedBkgndLinePaint);
+            mBorderLinePaint = new Paint(WaveformView.this.mBorderLinePaint);
+            mPlaybackLinePaint = new Paint(WaveformView.this.mPlaybackLinePaint);
+            mLineBatches.add(new LineBatch(mGridPaint));
+            mLineBatches.add(new LineBatch(mUnselectedBkgndLinePaint));
+        }
 
-            mZoomLevel = 0;
-        } else {
-            mLenByZoomLevel[0] = numFrames;
-            mZoomFactorByZoomLevel[0] = 1.0f;
+        /**
+         * Queues a vertical line to be drawn by flushLines(), along with all
+         * other lines of the same paint.
+         */
+        protected void drawWaveformLine(Canvas canvas, int x, int y0, int y1, Paint paint) {
+            getLineBatch(paint).add(x, y0, x, y1);
+        }
 
-            mLenByZoomLevel[1] = numFrames * 2;
-            mZoomFactorByZoomLevel[1] = 2f;
+        private LineBatch getLineBatch(Paint paint) {
+            List<LineBatch> batches = mLineBatches;
+            for (int i = 0; i < batches.size(); i++) {
+                if (batches.get(i).mPaint == paint) {
+                    return batches.get(i);
+                }
+            }
+            LineBatch batch = new LineBatch(paint);
+            batches.add(batch);
+            return batch;
+        }
 
-            mLenByZoomLevel[2] = numFrames * 3;
-            mZoomFactorByZoomLevel[2] = 3.0f;
+        /**
+         * Draws the queued lines with one call per paint.  Batches of paints
+         * that weren't used this time are dropped, except the first ones.
+         */
+        protected void flushLines(Canvas canvas) {
+            List<LineBatch> batches = mLineBatches;
+            for (int i = batches.size() - 1; i >= 2; i--) {
+                if (batches.get(i).isEmpty()) {
+                    batches.remove(i);
+                }
+            }
+            for (int i = 0; i < batches.size(); i++) {
+                mDrawCalls += batches.get(i).draw(canvas);
+            }
+        }
+
+        /**
+         * Draws the given frame.  Everything it and the methods it calls
+         * need from the view's state comes from mFrame.
+         */
+        protected void drawFrame(Canvas canvas, Frame frame) {
+            if (mFrame == null || mFrame.segments != frame.segments) {
+                nextSegment = null;
+            }
+            mFrame = frame;
+            mDrawCalls = 0;
+            if (frame.soundFile == null) {
+                if (frame.loadingGains != null) {
+                    drawLoadingWaveform(canvas);
+                    flushLines(canvas);
+                }
+                return;
+            }
 
-            mLenByZoomLevel[3] = numFrames * 4;
-            mZoomFactorByZoomLevel[3] = 4.0f;
+            int measuredWidth = frame.width;
+            int measuredHeight = frame.height;
+            int start = frame.offset;
+            int width = frame.maxPos - start;
+            int ctr = measuredHeight / 2;
 
-            mZoomLevel = 0;
-            for (int i = 0; i < 4; i++) {
-                if (mLenByZoomLevel[mZoomLevel] - getMeasuredWidth() > 0) {
-                    break;
+            if (width > measuredWidth)
+                width = measuredWidth;
+
+            double onePixelInSecs = getFrameSeconds(start + 1) - getFrameSeconds(start);
+            boolean onlyEveryFiveSecs = (onePixelInSecs > 1.0 / 50.0);
+            double fractionalSecs = getFrameSeconds(start);
+            int integerSecs = (int) fractionalSecs;
+
+            double timecodeIntervalSecs = 1.0;
+
+            int factor = 1;
+            while (timecodeIntervalSecs / onePixelInSecs < 50) {
+                timecodeIntervalSecs = 5.0 * factor;
+                factor++;
+            }
+
+            int integerTimecode = (int) (fractionalSecs / timecodeIntervalSecs);
+
+            // The tiles of a pinch would only be drawn once, so draw it directly
+            boolean tiled = frame.tileCache != null && !frame.scaling;
+            mNumRuns = 0;
+
+            int i = 0;
+            while (i < width) {
+                fractionalSecs = getFrameSeconds(start + i + 1);
+                int integerSecsNew = (int) fractionalSecs;
+                if (integerSecsNew != integerSecs) {
+                    integerSecs = integerSecsNew;
+                    if (!onlyEveryFiveSecs || 0 == (integerSecs % 5)) {
+                        getLineBatch(mGridPaint).add(i + 1, 0, i + 1, measuredHeight);
+                    }
+                }
+
+                // Draw waveform
+                Paint paint = selectWaveformPaint(i, start, fractionalSecs);
+                if (tiled) {
+                    addWaveformRun(i, paint);
                 } else {
-                    mZoomLevel = i;
+                    drawWaveform(canvas, i, start, measuredHeight, ctr, paint);
+                }
+
+                i++;
+            }
+
+            if (tiled) {
+                flushLines(canvas);
+                drawTiledWaveform(canvas, start, width, measuredWidth, measuredHeight);
+                prefetchTiles(start, measuredWidth, measuredHeight);
+            } else {
+                // If we can see the right edge of the waveform, draw the
+                // non-waveform area to the right as unselected
+                for (i = width; i < measuredWidth; i++) {
+                    drawWaveformLine(canvas, i, 0, measuredHeight, mUnselectedBkgndLinePaint);
+                }
+                flushLines(canvas);
+            }
+            mLastDrawnOffset = start;
+
+            int playbackPos = frame.playbackPos;
+            if (playbackPos >= start && playbackPos < start + width) {
+                canvas.drawLine(playbackPos - start, 0, playbackPos - start, measuredHeight, mPlaybackLinePaint);
+                mDrawCalls++;
+            }
+
+            // Draw borders
+            canvas.drawLine(
+                    frame.selectionStart - start + 0.5f, 30,
+                    frame.selectionStart - start + 0.5f, measuredHeight,
+                    mBorderLinePaint);
+            canvas.drawLine(
+                    frame.selectionEnd - start + 0.5f, 0,
+                    frame.selectionEnd - start + 0.5f, measuredHeight - 30,
+                    mBorderLinePaint);
+            mDrawCalls += 2;
+
+            // Draw grid
+            fractionalSecs = getFrameSeconds(start);
+            i = 0;
+            while (i < width) {
+                i++;
+                fractionalSecs = getFrameSeconds(start + i);
+                int integerSecs2 = (int) fractionalSecs;
+                int integerTimecodeNew = (int) (fractionalSecs / timecodeIntervalSecs);
+                if (integerTimecodeNew != integerTimecode) {
+                    integerTimecode = integerTimecodeNew;
+
+                    // Turn, e.g. 67 seconds into "1:07"
+                    String timecodeMinutes = "" + (integerSecs2 / 60);
+                    String timecodeSeconds = "" + (integerSecs2 % 60);
+                    if ((integerSecs2 % 60) < 10) {
+                        timecodeSeconds = "0" + timecodeSeconds;
+                    }
+                    String timecodeStr = timecodeMinutes + ":" + timecodeSeconds;
+                    float offset = (float) (0.5 * mFrame.timecodePaint.measureText(timecodeStr));
+                    canvas.drawText(timecodeStr,
+                            i - offset,
+                            (int) (12 * mFrame.density),
+                            mFrame.timecodePaint);
+                    mDrawCalls++;
                 }
             }
         }
 
-        mInitialized = true;
-    }
+        private double getFrameSeconds(int pixels) {
+            double z = mFrame.zoomFactor;
+            return mFrame.soundFile.framesToSeconds(pixels / z);
+        }
 
-    protected float getZoomedInHeight(float zoomLevel, int i) {
-        int f = (int) zoomLevel;
-        if (i == 0) {
-            return 0.5f * getHeight(0, mSoundFile.getNumFrames(), mSoundFile.getFrameGains(), scaleFactor, minGain, range);
+        protected void drawWaveform(final Canvas canvas, final int i, final int start, final int measuredHeight, final int ctr, final Paint paint) {
+            if (i + start < mFrame.selectionStart || i + start >= mFrame.selectionEnd) {
+                drawWaveformLine(canvas, i, 0, measuredHeight,
+                        mUnselectedBkgndLinePaint);
+            }
+
+            int h = (int) (getScaledHeight(mFrame.zoomFactor, start + i) * measuredHeight / 2);
+            drawWaveformLine(
+                    canvas, i,
+                    ctr - h,
+                    ctr + 1 + h,
+                    paint);
         }
-        if (i == 1) {
-            return getHeight(0, mSoundFile.getNumFrames(), mSoundFile.getFrameGains(), scaleFactor, minGain, range);
+
+        private void addWaveformRun(int i, Paint paint) {
+            if (mNumRuns == 0 || mRunPaints[mNumRuns - 1] != paint) {
+                if (mNumRuns == mRunEnds.length) {
+                    mRunEnds = java.util.Arrays.copyOf(mRunEnds, mNumRuns * 2);
+                    mRunPaints = java.util.Arrays.copyOf(mRunPaints, mNumRuns * 2);
+                }
+                mRunPaints[mNumRuns++] = paint;
+            }
+            mRunEnds[mNumRuns - 1] = i + 1;
         }
-        if (i % f == 0) {
-            float x1 = getHeight(i / f - 1, mSoundFile.getNumFrames(), mSoundFile.getFrameGains(), scaleFactor, minGain, range);
-            float x2 = getHeight(i / f, mSoundFile.getNumFrames(), mSoundFile.getFrameGains(), scaleFactor, minGain, range);
-            return 0.5f * (x1 + x2);
-        } else if ((i - 1) % f == 0) {
-            return getHeight((i - 1) / f, mSoundFile.getNumFrames(), mSoundFile.getFrameGains(), scaleFactor, minGain, range);
+
+        /**
+         * Draws the waveform from tiles, the same way drawWaveform() does
+         * column by column: the background overlay as one rectangle on each
+         * side of the selection, then each run of columns of the same paint,
+         * clipped to the run, from the tiles under it.
+         */
+        protected void drawTiledWaveform(Canvas canvas, int start, int width, int measuredWidth, int measuredHeight) {
+            int selectionStart = Math.max(0, Math.min(mFrame.selectionStart - start, width));
+            int selectionEnd = Math.max(selectionStart, Math.min(mFrame.selectionEnd - start, width));
+            if (selectionStart > 0) {
+                canvas.drawRect(0, 0, selectionStart, measuredHeight, mUnselectedBkgndLinePaint);
+                mDrawCalls++;
+            }
+            if (selectionEnd < measuredWidth) {
+                canvas.drawRect(selectionEnd, 0, measuredWidth, measuredHeight, mUnselectedBkgndLinePaint);
+                mDrawCalls++;
+            }
+
+            int numPixels = mFrame.maxPos;
+            int tileWidth = WaveformTileCache.TILE_WIDTH;
+            int runStart = 0;
+            for (int r = 0; r < mNumRuns; r++) {
+                int runEnd = mRunEnds[r];
+                canvas.save();
+                canvas.clipRect(runStart, 0, runEnd, measuredHeight);
+                for (int t = (start + runStart) / tileWidth; t <= (start + runEnd - 1) / tileWidth; t++) {
+                    canvas.drawBitmap(
+                            mFrame.tileCache.getTile(mFrame.pyramid, mFrame.zoomFactor, numPixels, t, measuredHeight),
+                            t * tileWidth - start, 0, mRunPaints[r]);
+                    mDrawCalls++;
+                }
+                canvas.restore();
+                runStart = runEnd;
+            }
         }
-        return 0;
-    }
 
-    protected float getZoomedOutHeight(float zoomLevel, int i) {
-        int f = (int) (i / zoomLevel);
-        float x1 = getHeight(f, mSoundFile.getNumFrames(), mSoundFile.getFrameGains(), scaleFactor, minGain, range);
-        float x2 = getHeight(f + 1, mSoundFile.getNumFrames(), mSoundFile.getFrameGains(), scaleFactor, minGain, range);
-        return 0.5f * (x1 + x2);
-    }
+        /**
+         * Has the tiles just past the side of the view the waveform is
+         * moving towards rendered in the background: the right while
+         * playing, and otherwise the way it scrolled since the last draw.
+         */
+        protected void prefetchTiles(int start, int measuredWidth, int measuredHeight) {
+            int direction;
+            if (mFrame.playbackPos >= 0 || start > mLastDrawnOffset) {
+                direction = 1;
+            } else if (start < mLastDrawnOffset) {
+                direction = -1;
+            } else {
+                return;
+            }
 
-    protected float getNormalHeight(int i) {
-        return getHeight(i, mSoundFile.getNumFrames(), mSoundFile.getFrameGains(), scaleFactor, minGain, range);
-    }
+            int tileWidth = WaveformTileCache.TILE_WIDTH;
+            int edge = (direction > 0) ? (start + measuredWidth - 1) / tileWidth : start / tileWidth;
+            for (int k = 1; k <= PREFETCH_TILES; k++) {
+                mFrame.tileCache.prefetch(mFrame.pyramid, mFrame.zoomFactor, mFrame.maxPos,
+                        edge + direction * k, measuredHeight);
+            }
+        }
 
-    protected float getScaledHeight(float zoomLevel, int i) {
-        if (zoomLevel == 1.0) {
-            return getNormalHeight(i);
-        } else if (zoomLevel < 1.0) {
-            return getZoomedOutHeight(zoomLevel, i);
+        /**
+         * Draws the frames loaded so far, one per pixel, with the levels the
+         * buffer has worked out from them.  Reads only what the buffer has
+         * published, so it never waits for the thread that loads the file.
+         */
+        protected void drawLoadingWaveform(Canvas canvas) {
+            // The watermark first: every gain below it is in the array
+            FrameGainsBuffer loadingGains = mFrame.loadingGains;
+            int numFrames = loadingGains.getNumFrames();
+            int[] frameGains = loadingGains.getGains();
+            FrameGainsBuffer.Levels levels = loadingGains.getLevels();
+
+            int measuredWidth = mFrame.width;
+            int measuredHeight = mFrame.height;
+            int ctr = measuredHeight / 2;
+            int width = Math.min(numFrames, measuredWidth);
+
+            for (int i = 0; i < width; i++) {
+                drawWaveformLine(canvas, i, 0, measuredHeight, mUnselectedBkgndLinePaint);
+                float height = getHeight(i, numFrames, frameGains,
+                        levels.scaleFactor, levels.minGain, levels.range);
+                int h = (int) (height * measuredHeight / 2);
+                drawWaveformLine(canvas, i, ctr - h, ctr + 1 + h, mUnselectedLinePaint);
+            }
+            for (int i = width; i < measuredWidth; i++) {
+                drawWaveformLine(canvas, i, 0, measuredHeight, mUnselectedBkgndLinePaint);
+            }
+        }
+
+        protected Paint selectWaveformPaint(final int i, final int start, final double fractionalSecs) {
+            Paint paint;
+            if (i + start >= mFrame.selectionStart && i + start < mFrame.selectionEnd) {
+                paint = mSelectedLinePaint;
+            } else {
+                paint = mUnselectedLinePaint;
+            }
+
+            if (mFrame.segments != null && !mFrame.segments.isEmpty()) {
+                if (nextSegment == null) {
+                    Double key = mFrame.segments.ceilingKey(fractionalSecs);
+                    if (key != null) {
+                        nextSegment = mFrame.segments.get(mFrame.segments.ceilingKey(fractionalSecs));
+                    }
+                }
+
+                if (nextSegment != null) {
+                    if (nextSegment.getStart().compareTo(fractionalSecs) <= 0 && nextSegment.getStop().compareTo(fractionalSecs) >= 0) {
+                        // One paint per color, so that the lines of a segment
+                        // are drawn together
+                        paint = mSegmentPaints.get(nextSegment.getColor());
+                        if (paint == null) {
+                            paint = new Paint();
+                            paint.setAntiAlias(false);
+                            paint.setColor(nextSegment.getColor());
+                            mSegmentPaints.put(nextSegment.getColor(), paint);
+                        }
+                        return paint;
+                    } else {
+                        Double key = mFrame.segments.ceilingKey(fractionalSecs);
+                        if (key != null) {
+                            nextSegment = mFrame.segments.get(mFrame.segments.ceilingKey(fractionalSecs));
+                        }
+                    }
+                }
+            }
+
+            return paint;
+        }
+
+        /**
+         * Returns the height of pixel column i at the given zoom factor.
+         */
+        protected float getScaledHeight(float zoomLevel, int i) {
+            return mFrame.pyramid.getColumnHeight(zoomLevel, i);
         }
-        return getZoomedInHeight(zoomLevel, i);
     }
 }
-
@@ -0,0 +1,159 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class AacFrameGainReaderTest {
+    private static final int NUM_FRAMES = 20000;
+
+    @Test
+    public void readsGainOfEachElementType() throws Exception {
+        byte[] data = {
+            // ID_SCE, gain 0x5a
+            (byte) 0x00 | (0x5a >> 7), (byte) (0x5a << 1), 0, 0,
+            // ID_CPE, long window, no mask, gain 0xc3 at bit 21
+            (byte) 0x20, 0, (byte) (0xc3 >> 5), (byte) (0xc3 << 3),
+            // ID_CCE, which takes the gain of the previous frame
+            (byte) 0x40, 0, 0, 0,
+        };
+        File file = writeTempFile(data);
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            AacFrameGainReader reader = new AacFrameGainReader(stream.getChannel());
+            assertEquals(0x5a, reader.readGain(0, 4));
+            assertEquals(0xc3, reader.readGain(4, 4));
+            assertEquals(AacFrameGainReader.GAIN_OF_PREVIOUS_FRAME, reader.readGain(8, 4));
+            assertEquals(0, reader.readGain(8, 3));
+            assertEquals(0, reader.readGain(-1, 4));
+        } finally {
+            stream.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readsGainPastTheMask() throws Exception {
+        byte[] data = new byte[24];
+
+        // ID_CPE, long window, mask of 5 bands at bit 19, gain past it
+        setBits(data, 0, 3, 1);
+        setBits(data, 9, 2, 0);
+        setBits(data, 12, 6, 5);
+        setBits(data, 19, 2, 1);
+        setBits(data, 21 + 5, 8, 0x9c);
+
+        // ID_CPE, long window, mask type 2 which has no mask bits
+        setBits(data, 64, 3, 1);
+        setBits(data, 64 + 9, 2, 1);
+        setBits(data, 64 + 12, 6, 40);
+        setBits(data, 64 + 19, 2, 2);
+        setBits(data, 64 + 21, 8, 0x3e);
+
+        // ID_CPE, eight short windows in two groups, 3 bands each
+        setBits(data, 128, 3, 1);
+        setBits(data, 128 + 9, 2, 2);
+        setBits(data, 128 + 12, 4, 3);
+        setBits(data, 128 + 16, 7, 0x7e);
+        setBits(data, 128 + 23, 2, 1);
+        setBits(data, 128 + 25 + 3 * 2, 8, 0xe1);
+
+        File file = writeTempFile(data);
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            AacFrameGainReader reader = new AacFrameGainReader(stream.getChannel());
+            assertEquals(0x9c, reader.readGain(0, 8));
+            assertEquals(0x3e, reader.readGain(8, 8));
+            assertEquals(0xe1, reader.readGain(16, 8));
+        } finally {
+            stream.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void allocatesNothingPerFrame() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean =
+            (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        // Random frames, so all element types and window sequences occur
+        Random random = new Random(1);
+        long[] offsets = new long[NUM_FRAMES];
+        int[] lens = new int[NUM_FRAMES];
+        int size = 0;
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            offsets[i] = size;
+            lens[i] = 4 + random.nextInt(600);
+            size += lens[i];
+        }
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        File file = writeTempFile(data);
+
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            AacFrameGainReader reader = new AacFrameGainReader(channel);
+            long threadId = Thread.currentThread().getId();
+
+            // Warm up until the JIT has compiled the frame path
+            int expected = 0;
+            for (int pass = 0; pass < 20; pass++) {
+                expected = readAll(reader, offsets, lens);
+            }
+
+            long before = allocationBean.getThreadAllocatedBytes(threadId);
+            int checksum = readAll(reader, offsets, lens);
+            long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+            // The same gains every time round
+            assertEquals(expected, checksum);
+            assertEquals("Bytes allocated per frame", 0, allocated / NUM_FRAMES);
+        } finally {
+            stream.close();
+            file.delete();
+        }
+    }
+
+    private static int readAll(AacFrameGainReader reader, long[] offsets, int[] lens)
+            throws Exception {
+        int checksum = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            checksum = 31 * checksum + reader.readGain(offsets[i], lens[i]);
+        }
+        return checksum;
+    }
+
+    // Big-endian, the way the bitstream is read
+    private static void setBits(byte[] data, int bit, int numBits, int value) {
+        for (int i = 0; i < numBits; i++) {
+            if ((value & (1 << (numBits - 1 - i))) != 0) {
+                data[(bit + i) / 8] |= 0x80 >> ((bit + i) % 8);
+            }
+        }
+    }
+
+    private static File writeTempFile(byte[] data) throws Exception {
+        File file = File.createTempFile("frames", ".aac");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,73 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class CheapAACTest {
+    @Test
+    public void readsSampleSizeTable() throws Exception {
+        CheapAAC aac = new CheapAAC();
+        parseStsz(aac, stsz(0, 3, 10, 20, 30), 24);
+        assertEquals(3, aac.getNumFrames());
+        assertEquals(3, aac.getFrameGains().length);
+    }
+
+    @Test
+    public void rejectsBadSampleCounts() throws Exception {
+        // Negative
+        assertStszRejected(stsz(0, -1), 12);
+        // More entries than the atom holds
+        assertStszRejected(stsz(0, 3, 10, 20), 20);
+        assertStszRejected(stsz(0, Integer.MAX_VALUE), 12);
+        // Frames of one size that can't fit in the file
+        assertStszRejected(stsz(100, 1000000000), 12);
+    }
+
+    private static void assertStszRejected(byte[] atom, long atomLen) throws Exception {
+        try {
+            parseStsz(new CheapAAC(), atom, atomLen);
+            fail("Accepted a bad sample count");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static void parseStsz(CheapAAC aac, byte[] atom, long atomLen) throws Exception {
+        File file = File.createTempFile("stsz", ".m4a");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(atom);
+            } finally {
+                out.close();
+            }
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                aac.parseStsz(channel, 0, atomLen);
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Version and flags, sample size, sample count and the sizes
+    private static byte[] stsz(int sampleSize, int count, int... sizes) {
+        ByteBuffer buffer = ByteBuffer.allocate(12 + 4 * sizes.length);
+        buffer.putInt(0).putInt(sampleSize).putInt(count);
+        for (int size : sizes) {
+            buffer.putInt(size);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,126 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class CheapAMRFrameDecoderTest {
+    private static final int NUM_FRAMES = 20000;
+    private static final int[] FRAME_TYPES = { 0, 1, 7 };
+    private static final int[] BLOCK_SIZES = { 12, 13, 15, 17, 19, 20, 26, 31 };
+
+    @Test
+    public void decodesFourGainsPerSupportedFrame() {
+        CheapAMR.FrameDecoder decoder = new CheapAMR.FrameDecoder();
+        byte[] data = new byte[32];
+        assertEquals(4, decoder.decode(0, data, 0));
+        assertEquals(4, decoder.decode(1, data, 0));
+        assertEquals(4, decoder.decode(7, data, 1));
+
+        // Other frame types count as one frame with a gain of 1
+        assertEquals(1, decoder.decode(8, data, 0));
+        assertEquals(1, decoder.mGains[0]);
+    }
+
+    @Test
+    public void decodesKnownGains() throws Exception {
+        // Frames of the types we decode, with the gains the decoder this
+        // one replaced worked out for them
+        File file = File.createTempFile("frames", ".amr");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(amrFrames(12, 1));
+            } finally {
+                out.close();
+            }
+            CheapAMR amr = new CheapAMR();
+            amr.ReadFile(file);
+            assertArrayEquals(new int[] {
+                3, 1, 2, 4, 1, 3, 7, 1, 1284, 138, 614, 972,
+                4, 4, 4, 3, 0, 2, 0, 1, 0, 4, 16, 56,
+                1, 1, 1, 2, 17, 4, 2, 1, 2, 0, 0, 50,
+                2, 3, 3, 1, 0, 1, 1, 0, 0, 0, 0, 22,
+            }, Arrays.copyOf(amr.getFrameGains(), amr.getNumFrames()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void allocatesNothingPerFrame() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean =
+            (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        // Random frames of each type and an unsupported one, so every
+        // code path gets exercised
+        int[] frameTypes = { 0, 1, 7, 8 };
+        Random random = new Random(1);
+        int[] types = new int[NUM_FRAMES];
+        byte[] data = new byte[NUM_FRAMES * 31];
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            types[i] = frameTypes[random.nextInt(frameTypes.length)];
+        }
+        random.nextBytes(data);
+
+        CheapAMR.FrameDecoder decoder = new CheapAMR.FrameDecoder();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up until the JIT has compiled the frame path
+        int expected = 0;
+        for (int pass = 0; pass < 20; pass++) {
+            expected = decodeAll(decoder, types, data);
+        }
+
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        int checksum = decodeAll(decoder, types, data);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        // The same gains every time round
+        assertEquals(expected, checksum);
+        assertEquals("Bytes allocated per frame", 0, allocated / NUM_FRAMES);
+    }
+
+    private static int decodeAll(CheapAMR.FrameDecoder decoder, int[] types, byte[] data) {
+        int checksum = 0;
+        for (int i = 0; i < types.length; i++) {
+            int numGains = decoder.decode(types[i], data, i * 31);
+            for (int j = 0; j < numGains; j++) {
+                checksum = 31 * checksum + decoder.mGains[j];
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Returns an AMR file of numFrames frames of types 0, 1 and 7 in
+     * turn, filled with random bits from the given seed.
+     */
+    static byte[] amrFrames(int numFrames, long seed) {
+        Random random = new Random(seed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = { '#', '!', 'A', 'M', 'R', '\n' };
+        out.write(header, 0, header.length);
+        for (int i = 0; i < numFrames; i++) {
+            int frameType = FRAME_TYPES[i % FRAME_TYPES.length];
+            out.write((frameType << 3) | 4);
+            byte[] block = new byte[BLOCK_SIZES[frameType]];
+            random.nextBytes(block);
+            out.write(block, 0, block.length);
+        }
+        return out.toByteArray();
+    }
+}
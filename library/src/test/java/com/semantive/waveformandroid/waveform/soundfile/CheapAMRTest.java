@@ -0,0 +1,58 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CheapAMRTest {
+    @Test
+    public void parses3gpInParallel() throws Exception {
+        // Enough frames for the parallel parser, in the mdat box at the
+        // end of the file as usual
+        byte[] amr = CheapAMRFrameDecoderTest.amrFrames(60000, 2);
+        File file = File.createTempFile("frames", ".3gp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.writeInt(20);
+                out.writeBytes("ftyp3gp4");
+                out.writeInt(0);
+                out.writeBytes("isom");
+                out.writeInt(16);
+                out.writeBytes("free");
+                out.writeLong(0);
+                out.writeInt(8 + amr.length - 6);
+                out.writeBytes("mdat");
+                out.write(amr, 6, amr.length - 6);
+            } finally {
+                out.close();
+            }
+
+            ParallelScanner.setParallelism(4);
+            CheapAMR parallel = new CheapAMR();
+            try {
+                parallel.ReadFile(file);
+            } finally {
+                ParallelScanner.setParallelism(0);
+            }
+            assertTrue(parallel.mParsedInParallel);
+
+            CheapAMR sequential = new CheapAMR();
+            sequential.setParallelScanEnabled(false);
+            sequential.ReadFile(file);
+            assertFalse(sequential.mParsedInParallel);
+
+            assertEquals(sequential.getNumFrames(), parallel.getNumFrames());
+            assertArrayEquals(
+                Arrays.copyOf(sequential.getFrameGains(), sequential.getNumFrames()),
+                Arrays.copyOf(parallel.getFrameGains(), parallel.getNumFrames()));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CheapSoundFileTest {
+    @Test
+    public void probesFormatFromHeader() {
+        assertFormat(new CheapWAV(), "sound", header("RIFF\0\0\0\0WAVEfmt "));
+        assertFormat(new CheapAMR(), "sound", header("#!AMR\n"));
+        assertFormat(new CheapAMR(), "sound", header("\0\0\0\u0014ftyp3gp4"));
+        assertFormat(new CheapAAC(), "sound", header("\0\0\0 ftypM4A "));
+        assertFormat(new CheapMP3(), "sound", header("ID3\u0004\0\0\0\0\0\0"));
+        assertFormat(new CheapAAC(), "sound", adtsFrames());
+    }
+
+    @Test
+    public void probesHeaderOverExtension() {
+        assertFormat(new CheapMP3(), "sound.wav", mp3Frames());
+        assertFormat(new CheapAAC(), "sound.mp3", header("\0\0\0 ftypmp42"));
+
+        // CheapAMR only reads 3gp4 files
+        assertFormat(new CheapAAC(), "sound.3gp", header("\0\0\0 ftyp3gp5"));
+    }
+
+    @Test
+    public void fallsBackToExtension() {
+        byte[] unknown = header("unknown format");
+        assertFormat(new CheapWAV(), "sound.wav", unknown);
+        assertNull(CheapSoundFile.findFactory("sound", unknown, unknown.length));
+        assertNull(CheapSoundFile.findFactory("sound.txt", unknown, unknown.length));
+    }
+
+    @Test
+    public void probesPastLongId3Tag() throws Exception {
+        // No extension, and a tag longer than the header
+        int tagSize = 2 * CheapSoundFile.HEADER_SIZE;
+        File file = File.createTempFile("sound", "");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 'I', 'D', '3', 4, 0, 0,
+                0, (byte) (tagSize >> 14), (byte) ((tagSize >> 7) & 0x7f), (byte) (tagSize & 0x7f) });
+            out.write(new byte[tagSize]);
+            out.write(mp3Frames());
+        } finally {
+            out.close();
+        }
+
+        try {
+            CheapSoundFile soundFile = CheapSoundFile.create(file.getPath(), null);
+            assertTrue(soundFile instanceof CheapMP3);
+            assertTrue(soundFile.getNumFrames() > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void passesFramesInOrderWhileReading() throws Exception {
+        int numFrames = 3 * CheapSoundFile.FRAME_SLICE_SIZE + 100;
+        File file = File.createTempFile("frames", ".aac");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < numFrames; i++) {
+                out.write(adtsFrame(i % 200));
+            }
+        } finally {
+            out.close();
+        }
+
+        try {
+            final int[] received = new int[numFrames];
+            final int[] next = { 0 };
+            CheapSoundFile soundFile = new CheapAAC();
+            soundFile.setFrameListener((firstFrame, gains, offset, count) -> {
+                assertEquals(next[0], firstFrame);
+                assertTrue(count <= CheapSoundFile.FRAME_SLICE_SIZE);
+                System.arraycopy(gains, offset, received, firstFrame, count);
+                next[0] += count;
+                return true;
+            });
+            soundFile.ReadFile(file);
+            assertEquals(numFrames, next[0]);
+            assertArrayEquals(Arrays.copyOf(soundFile.getFrameGains(), numFrames), received);
+            assertEquals(199, received[199]);
+
+            // Cancelling stops the reading after the current slice
+            next[0] = 0;
+            soundFile = new CheapAAC();
+            soundFile.setFrameListener((firstFrame, gains, offset, count) -> {
+                next[0] += count;
+                return false;
+            });
+            soundFile.ReadFile(file);
+            assertEquals(CheapSoundFile.FRAME_SLICE_SIZE, next[0]);
+            assertEquals(CheapSoundFile.FRAME_SLICE_SIZE, soundFile.getNumFrames());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertFormat(CheapSoundFile expected, String name, byte[] header) {
+        CheapSoundFile.Factory factory = CheapSoundFile.findFactory(name, header, header.length);
+        assertNotNull(name, factory);
+        assertEquals(name, expected.getClass(), factory.create().getClass());
+    }
+
+    private static byte[] header(String magic) {
+        byte[] header = new byte[64];
+        for (int i = 0; i < magic.length(); i++) {
+            header[i] = (byte) magic.charAt(i);
+        }
+        return header;
+    }
+
+    // Two ADTS frames of 20 bytes, 44.1 kHz stereo
+    private static byte[] adtsFrames() {
+        byte[] data = new byte[64];
+        for (int i = 0; i < 2 * 20; i += 20) {
+            data[i] = (byte) 0xff;
+            data[i + 1] = (byte) 0xf1;
+            data[i + 2] = (byte) 0x50;
+            data[i + 3] = (byte) 0x80;
+            data[i + 4] = (byte) (20 >> 3);
+            data[i + 5] = (byte) ((20 & 7) << 5);
+        }
+        return data;
+    }
+
+    // An ADTS frame of 20 bytes with a mono element of the given gain
+    private static byte[] adtsFrame(int gain) {
+        byte[] frame = Arrays.copyOf(adtsFrames(), 20);
+        frame[7] = (byte) (gain >> 7);
+        frame[8] = (byte) (gain << 1);
+        return frame;
+    }
+
+    // Two MPEG 1 Layer III frames of 128 kbps at 44.1 kHz, 417 bytes each
+    private static byte[] mp3Frames() {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < 2 * 417; i += 417) {
+            data[i] = (byte) 0xff;
+            data[i + 1] = (byte) 0xfb;
+            data[i + 2] = (byte) 0x90;
+            data[i + 3] = (byte) 0x64;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,33 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameOffsetIndexTest {
+    @Test
+    public void storesOffsetsPastFourGigabytes() {
+        // VBR frames from just under 2 GB to past 4 GB, so blocks start
+        // on both sides of the 32-bit limits
+        Random random = new Random(1);
+        int numFrames = 20000;
+        long[] offsets = new long[numFrames];
+        long offset = Integer.MAX_VALUE - 1000000L;
+        for (int i = 0; i < numFrames; i++) {
+            offsets[i] = offset;
+            offset += 100000 + random.nextInt(100000);
+        }
+        assertTrue(offsets[numFrames - 1] > 0x100000000L);
+
+        FrameOffsetIndex index = new FrameOffsetIndex(0);
+        for (long o : offsets) {
+            index.add(o);
+        }
+        assertEquals(numFrames, index.size());
+        for (int i = 0; i < numFrames; i++) {
+            assertEquals(offsets[i], index.get(i));
+        }
+    }
+}
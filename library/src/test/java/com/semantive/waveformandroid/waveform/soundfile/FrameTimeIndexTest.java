@@ -0,0 +1,63 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameTimeIndexTest {
+    @Test
+    public void mergesRunsOfTheSameDuration() {
+        FrameTimeIndex index = new FrameTimeIndex(44100);
+        index.add(10, 1024);
+        index.add(5, 1024);
+        index.add(1, 2048);
+        index.add(0, 512);
+        index.add(4, 1024);
+        assertEquals(3, index.getNumRuns());
+        assertEquals(20, index.size());
+        assertEquals(1024, index.getFirstDuration());
+    }
+
+    @Test
+    public void mapsFramesToTimesAndBack() {
+        FrameTimeIndex index = new FrameTimeIndex(1000);
+        index.add(10, 20);   // frames 0-9 start at 0-180
+        index.add(2, 100);   // frames 10-11 start at 200, 300
+        index.add(5, 10);    // frames 12-16 start at 400-440
+
+        assertEquals(0, index.getTime(0));
+        assertEquals(180, index.getTime(9));
+        assertEquals(300, index.getTime(11));
+        assertEquals(430, index.getTime(15));
+        assertEquals(450, index.getTime(17));
+
+        // Past the end, frames last as long as the last one
+        assertEquals(500, index.getTime(22));
+
+        assertEquals(0.25, index.getSeconds(10.5), 1e-9);
+        assertEquals(0.405, index.getSeconds(12.5), 1e-9);
+        for (double frame = 0; frame < 20; frame += 0.25) {
+            assertEquals(frame, index.getFrame(index.getSeconds(frame)), 1e-9);
+        }
+        assertEquals(10.5, index.getFrame(0.25), 1e-9);
+    }
+
+    @Test
+    public void lookupsInAnyOrderAgree() {
+        FrameTimeIndex index = new FrameTimeIndex(48000);
+        long[] times = new long[1000];
+        long time = 0;
+        for (int i = 0; i < times.length; i++) {
+            times[i] = time;
+            int duration = (i % 7 == 0) ? 2048 : 1024;
+            index.add(1, duration);
+            time += duration;
+        }
+        for (int i = times.length - 1; i >= 0; i -= 3) {
+            assertEquals(times[i], index.getTime(i));
+        }
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(times[i], index.getTime(i));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeakCacheTest {
+    private static class FakeSoundFile extends CheapSoundFile {
+        int[] mGains;
+        FrameTimeIndex mTimes;
+
+        FakeSoundFile(int[] gains, FrameTimeIndex times) {
+            mGains = gains;
+            mTimes = times;
+        }
+
+        public int getNumFrames() { return mGains.length; }
+        public int getSamplesPerFrame() { return 1152; }
+        public int[] getFrameGains() { return mGains; }
+        FrameTimeIndex getFrameTimeIndex() { return mTimes; }
+        public int getSampleRate() { return 44100; }
+        public int getChannels() { return 2; }
+        public int getAvgBitrateKbps() { return 128; }
+        public String getFiletype() { return "MP3"; }
+        public long getSeekableFrameOffset(int frame) {
+            return 100 + 417L * Math.min(frame, mGains.length);
+        }
+        public int getEnvelopeChannels() { return 2; }
+        public short[] getFrameEnvelope() {
+            short[] envelope = new short[mGains.length * getEnvelopeStride()];
+            for (int i = 0; i < envelope.length; i++) {
+                envelope[i] = (short) (i * 40503);
+            }
+            return envelope;
+        }
+    }
+
+    private final List<File> mTempDirs = new ArrayList<>();
+
+    private File createTempDir() throws IOException {
+        File dir = File.createTempFile("peaks", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        mTempDirs.add(dir);
+        return dir;
+    }
+
+    @After
+    public void deleteTempDirs() {
+        for (File dir : mTempDirs) {
+            File[] entries = dir.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    entry.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private static File createSoundFile(int length) throws IOException {
+        File file = File.createTempFile("sound", ".mp3");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (i * 31 + (i >> 8));
+            }
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void returnsWhatWasStored() throws IOException {
+        File file = createSoundFile(200000);
+        PeakCache cache = new PeakCache(createTempDir(), 1 << 20);
+        assertNull(cache.get(file));
+
+        int[] gains = new int[5000];
+        for (int i = 0; i < gains.length; i++) {
+            gains[i] = (i * 7919) % 300;
+        }
+        FrameTimeIndex times = new FrameTimeIndex(44100);
+        times.add(4000, 1024);
+        times.add(1000, 960);
+        cache.put(file, new FakeSoundFile(gains, times));
+
+        CheapSoundFile cached = cache.get(file);
+        assertNotNull(cached);
+        assertEquals("MP3", cached.getFiletype());
+        assertEquals(44100, cached.getSampleRate());
+        assertEquals(1152, cached.getSamplesPerFrame());
+        assertEquals(2, cached.getChannels());
+        assertEquals(128, cached.getAvgBitrateKbps());
+        assertEquals(200000, cached.getFileSizeBytes());
+        assertArrayEquals(gains, cached.getFrameGains());
+        assertEquals(2, cached.getEnvelopeChannels());
+        assertArrayEquals(new FakeSoundFile(gains, times).getFrameEnvelope(),
+                          cached.getFrameEnvelope());
+        assertEquals(times.getSeconds(4500.5), cached.framesToSeconds(4500.5), 1e-9);
+        assertEquals(100, cached.getSeekableFrameOffset(0));
+        assertEquals(100 + 417L * 2500, cached.getSeekableFrameOffset(2500));
+        assertEquals(100 + 417L * 5000, cached.getSeekableFrameOffset(5000));
+    }
+
+    @Test
+    public void missesFilesThatChanged() throws IOException {
+        File file = createSoundFile(300000);
+        long lastModified = file.lastModified();
+        PeakCache cache = new PeakCache(createTempDir(), 1 << 20);
+        cache.put(file, new FakeSoundFile(new int[] { 1, 2, 3 }, null));
+        assertNotNull(cache.get(file));
+
+        // Same size and time, different bytes at the end
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(299000);
+            raf.write(new byte[1000]);
+        } finally {
+            raf.close();
+        }
+        file.setLastModified(lastModified);
+        assertNull(cache.get(file));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws IOException {
+        File dir = createTempDir();
+        PeakCache unlimited = new PeakCache(dir, 1 << 20);
+        File[] files = new File[4];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = createSoundFile(1000 + i);
+            unlimited.put(files[i], new FakeSoundFile(new int[2000], null));
+            unlimited.getEntryFile(files[i]).setLastModified(1000000L * (i + 1));
+        }
+
+        // Room for three entries
+        long entryBytes = unlimited.getEntryFile(files[0]).length();
+        PeakCache cache = new PeakCache(dir, 3 * entryBytes + entryBytes / 2);
+
+        // The first one is used again, so the second one goes
+        assertNotNull(cache.get(files[0]));
+        cache.trim();
+        assertNotNull(cache.get(files[0]));
+        assertNull(cache.get(files[1]));
+        assertNotNull(cache.get(files[2]));
+        assertNotNull(cache.get(files[3]));
+    }
+}
@@ -0,0 +1,51 @@
+package com.semantive.waveformandroid.waveform.soundfile;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class WavFileTest {
+    @Test
+    public void readsRf64SizesFromDs64Chunk() throws Exception {
+        int numFrames = 1000;
+        int dataSize = numFrames * 4;
+        ByteBuffer wav = ByteBuffer.allocate(12 + 36 + 24 + 8 + dataSize)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RF64".getBytes("US-ASCII")).putInt(-1).put("WAVE".getBytes("US-ASCII"));
+        wav.put("ds64".getBytes("US-ASCII")).putInt(28)
+            .putLong(wav.capacity() - 8).putLong(dataSize).putLong(numFrames).putInt(0);
+        wav.put("fmt ".getBytes("US-ASCII")).putInt(16)
+            .putShort((short) 1).putShort((short) 2).putInt(44100)
+            .putInt(44100 * 4).putShort((short) 4).putShort((short) 16);
+        wav.put("data".getBytes("US-ASCII")).putInt(-1);
+        for (int i = 0; i < numFrames; i++) {
+            wav.putShort((short) i).putShort((short) -i);
+        }
+
+        File file = File.createTempFile("rf64", ".wav");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(wav.array());
+        } finally {
+            out.close();
+        }
+
+        WavFile wavFile = WavFile.openWavFile(file);
+        try {
+            assertEquals(numFrames, wavFile.getNumFrames());
+            assertEquals(2, wavFile.getNumChannels());
+            int[] samples = new int[numFrames * 2];
+            assertEquals(numFrames, wavFile.readFrames(samples, numFrames));
+            assertEquals(999, samples[1998]);
+            assertEquals(-999, samples[1999]);
+        } finally {
+            wavFile.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.semantive.waveformandroid.waveform.view;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameGainsBufferTest {
+    @Test
+    public void growsPastItsCapacity() {
+        FrameGainsBuffer buffer = new FrameGainsBuffer(4);
+        int[] slice = new int[10];
+        for (int i = 0; i < 100; i += slice.length) {
+            for (int j = 0; j < slice.length; j++) {
+                slice[j] = i + j;
+            }
+            buffer.append(slice, 3, 7);
+        }
+        assertEquals(70, buffer.getNumFrames());
+        int[] gains = buffer.getGains();
+        for (int i = 0; i < 70; i++) {
+            assertEquals(i / 7 * 10 + 3 + i % 7, gains[i]);
+        }
+    }
+
+    @Test
+    public void refinesLevelsAsFramesArrive() {
+        FrameGainsBuffer buffer = new FrameGainsBuffer();
+        int[] quiet = new int[1000];
+        java.util.Arrays.fill(quiet, 10);
+        buffer.append(quiet, 0, quiet.length);
+        FrameGainsBuffer.Levels levels = buffer.getLevels();
+        assertEquals(1.0f, levels.scaleFactor, 0);
+        assertEquals(11.0f, levels.minGain, 0);
+
+        // Louder frames past 255 scale everything down
+        int[] loud = new int[1000];
+        for (int i = 0; i < loud.length; i++) {
+            loud[i] = (i % 2 == 0) ? 510 : 0;
+        }
+        buffer.append(loud, 0, loud.length);
+        levels = buffer.getLevels();
+        assertTrue(levels.scaleFactor < 1.0f);
+        assertEquals(255 / 340.0f, levels.scaleFactor, 1e-6f);
+        assertTrue(levels.range > 0);
+    }
+}
@@ -0,0 +1,79 @@
+package com.semantive.waveformandroid.waveform.view;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WaveformPyramidTest {
+    private static float max(float[] heights, int first, int end) {
+        float max = 0;
+        for (int i = Math.max(first, 0); i < Math.min(end, heights.length); i++) {
+            max = Math.max(max, heights[i]);
+        }
+        return max;
+    }
+
+    @Test
+    public void keepsThePeaksOfEveryRange() {
+        Random random = new Random(1);
+        float[] heights = new float[1000];
+        WaveformPyramid pyramid = new WaveformPyramid(heights.length);
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = Math.round(random.nextFloat() * 1000) / 1000.0f;
+            pyramid.set(i, heights[i]);
+        }
+        pyramid.build();
+
+        for (int i = 0; i < heights.length; i++) {
+            assertEquals(heights[i], pyramid.getHeight(i), 1e-4f);
+        }
+        for (int first = 0; first < heights.length; first += 7) {
+            for (int end = first + 1; end <= heights.length; end += 13) {
+                // Never misses a peak, and looks no further than one
+                // range to either side
+                float max = pyramid.getMaxHeight(first, end);
+                int span = end - first;
+                assertTrue(max >= max(heights, first, end) - 1e-4f);
+                assertTrue(max <= max(heights, first - span, end + span) + 1e-4f);
+            }
+        }
+
+        // Ranges of whole runs are exact
+        assertEquals(max(heights, 512, 768), pyramid.getMaxHeight(512, 768), 1e-4f);
+        assertEquals(max(heights, 0, 1000), pyramid.getMaxHeight(0, 1000), 1e-4f);
+    }
+
+    @Test
+    public void scalesColumnsByZoomFactor() {
+        WaveformPyramid pyramid = new WaveformPyramid(4);
+        pyramid.set(0, 0.25f);
+        pyramid.set(1, 1.0f);
+        pyramid.set(2, 0.5f);
+        pyramid.set(3, 0.0f);
+        pyramid.build();
+
+        // Zoomed in, every frame takes several columns
+        assertEquals(0.25f, pyramid.getColumnHeight(2.0f, 1), 1e-4f);
+        assertEquals(1.0f, pyramid.getColumnHeight(2.0f, 2), 1e-4f);
+
+        // Zoomed out, a column shows the highest of its frames
+        assertEquals(1.0f, pyramid.getColumnHeight(0.5f, 0), 1e-4f);
+        assertEquals(0.5f, pyramid.getColumnHeight(0.5f, 1), 1e-4f);
+    }
+
+    @Test
+    public void handlesTinyFiles() {
+        WaveformPyramid empty = new WaveformPyramid(0);
+        empty.build();
+        assertEquals(0, empty.getMaxHeight(0, 10), 0);
+
+        WaveformPyramid one = new WaveformPyramid(1);
+        one.set(0, 0.5f);
+        one.build();
+        assertEquals(0.5f, one.getMaxHeight(0, 1), 1e-4f);
+        assertEquals(0.5f, one.getMaxHeight(0, 100), 1e-4f);
+        assertEquals(0, one.getHeight(1), 0);
+    }
+}